@@ -34,7 +34,7 @@ import org.slf4j.LoggerFactory;
  * not be used as a production capability.
  *
  * AppD initialization
- *      Run embedded Jetty server...
+ *      Run embedded Jetty server, serving the REST API and the WebSocket push channel of the war...
  *
  *
  * @author Frank Tarsillo on 7/5/18.
@@ -66,6 +66,11 @@ public class AppD {
 
         WebAppContext webapp = new WebAppContext();
         webapp.setWar(config.get(ConfigId.WAR_FILE, "lib/appd-service.war"));
+
+        //The WebSocket servlet of the war must use the server's websocket implementation
+        webapp.prependServerClass("-org.eclipse.jetty.websocket.");
+        webapp.addSystemClass("org.eclipse.jetty.websocket.");
+
         server.setHandler(webapp);
 
 
@@ -0,0 +1,68 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.api;
+
+import com.google.gson.Gson;
+import org.fdc3.appd.poc.dao.AppsDAOFactory;
+import org.fdc3.appd.poc.dao.UserDAOFactory;
+import org.fdc3.appd.poc.model.ReplicationStats;
+
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operational endpoints, restricted to admin users.
+ */
+@Path("/admin")
+public class AdminRestService {
+
+    /**
+     * Metrics of the asynchronous S3 replication queues (applications and users)
+     *
+     * @return Queue depth, queued bytes, lag and counters of each replication queue, empty if S3 is not replicated
+     * asynchronously
+     */
+    @GET
+    @Path("/replication")
+    @RolesAllowed({"admin"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getReplication() {
+
+        List<ReplicationStats> stats = new ArrayList<>();
+
+        ReplicationStats appStats = AppsDAOFactory.getAppsDAO().getReplicationStats();
+        ReplicationStats userStats = UserDAOFactory.getUserDAO().getReplicationStats();
+
+        if (appStats != null)
+            stats.add(appStats);
+
+        if (userStats != null)
+            stats.add(userStats);
+
+        return Response.status(Response.Status.OK).entity(new Gson().toJson(stats)).build();
+    }
+
+}
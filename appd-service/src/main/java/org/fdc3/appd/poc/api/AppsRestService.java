@@ -0,0 +1,592 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.fdc3.appd.poc.dao.AppsDAO;
+import org.fdc3.appd.poc.dao.AppsDAOFactory;
+import org.fdc3.appd.poc.model.AppSearch;
+import org.fdc3.appd.poc.model.BulkResult;
+import org.fdc3.appd.poc.model.ChangeEvent;
+import org.fdc3.appd.poc.model.EncodedApplication;
+import org.fdc3.appd.poc.model.IntentResolution;
+import org.fdc3.appd.poc.model.UserSecurity;
+import org.fdc3.appd.poc.util.ApplicationsStreamingOutput;
+import org.fdc3.appd.poc.util.ChangesStreamingOutput;
+import org.fdc3.appd.poc.util.NdjsonStreamingOutput;
+import org.fdc3.appd.poc.util.ResolutionsStreamingOutput;
+import org.fdc3.appd.poc.util.SseChangeListener;
+import org.fdc3.appd.server.model.Application;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Application directory extensions which are not part of the generated V1 API.
+ * <p>
+ * Search supports filtering by name, publisher, intent, context type and free text, resolved through the
+ * {@link AppsDAO} indexes, and streams results in pages of at most {@link #MAX_LIMIT} applications.  A ranked
+ * full-text query orders results by relevance.
+ */
+@Path("/apps")
+public class AppsRestService {
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+    public static final int DEFAULT_SUGGESTIONS = 10;
+    public static final int MAX_SUGGESTIONS = 50;
+    public static final int MAX_RESOLUTIONS = 1000;
+    public static final int MAX_BULK = 10000;
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    private Logger logger = LoggerFactory.getLogger(AppsRestService.class);
+    private Configuration config = Configuration.get();
+    private final Gson gson = new Gson();
+    private final int sseSendQueue = config.getInt(ConfigId.SSE_SEND_QUEUE, 1000);
+
+
+    /**
+     * Filtered and paginated application search
+     *
+     * @param name      Application name (case-insensitive)
+     * @param publisher Publisher/company (case-insensitive)
+     * @param intent    Intent name handled by the application
+     * @param context   Context type accepted by any of the application intents
+     * @param text      Free text matched against name, title, tooltip and description
+     * @param q         Ranked full-text query over name, title, tooltip and description, results are ordered by
+     *                  relevance instead of appId
+     * @param limit     Page size, defaults to {@link #DEFAULT_LIMIT}
+     * @param cursor    Opaque cursor returned by a previous page
+     * @return Page of applications with the cursor of the next page, if any
+     */
+    @GET
+    @Path("/search")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response search(@QueryParam("name") String name,
+                           @QueryParam("publisher") String publisher,
+                           @QueryParam("intent") String intent,
+                           @QueryParam("context") String context,
+                           @QueryParam("text") String text,
+                           @QueryParam("q") String q,
+                           @QueryParam("limit") Integer limit,
+                           @QueryParam("cursor") String cursor) {
+
+        JsonObject jo = new JsonObject();
+
+        int pageSize = limit == null ? DEFAULT_LIMIT : limit;
+
+        if (pageSize < 1 || pageSize > MAX_LIMIT) {
+            jo.addProperty("message", "limit must be between 1 and " + MAX_LIMIT);
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        boolean ranked = q != null && !q.trim().isEmpty();
+        String afterAppId;
+        int offset = 0;
+
+        try {
+            afterAppId = ApplicationsStreamingOutput.decodeCursor(cursor);
+
+            //Ranked pages are addressed by offset
+            if (ranked && afterAppId != null)
+                offset = Integer.parseInt(afterAppId);
+
+            if (offset < 0)
+                throw new IllegalArgumentException("Negative offset");
+
+        } catch (IllegalArgumentException e) {
+            logger.debug("Invalid search cursor [{}]", cursor);
+            jo.addProperty("message", "invalid cursor");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        //Every ranked page keeps offset + limit matches, so deep pages are refused
+        if (offset > AppsDAO.MAX_RANK_DEPTH) {
+            jo.addProperty("message", "ranked results are limited to the best " + AppsDAO.MAX_RANK_DEPTH);
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+
+        //Results only depend on the query and the catalog content
+        EntityTag tag = new EntityTag(appsDAO.getCatalogDigest());
+
+        AppSearch search = new AppSearch(name, publisher, intent, context, text);
+
+        if (ranked) {
+            int start = offset;
+            Iterator<EncodedApplication> applications = appsDAO.rankApps(q, search, start, pageSize).iterator();
+
+            return Response.status(Response.Status.OK)
+                    .entity(new ApplicationsStreamingOutput(applications, pageSize, (last, count) -> ApplicationsStreamingOutput.encodeCursor(Integer.toString(start + count))))
+                    .tag(tag).build();
+        }
+
+        Iterator<EncodedApplication> applications = appsDAO.findApps(search, afterAppId);
+
+        return Response.status(Response.Status.OK).entity(new ApplicationsStreamingOutput(applications, pageSize)).tag(tag).build();
+    }
+
+
+    /**
+     * Typeahead suggestions of application names and titles
+     *
+     * @param prefix Typed prefix, matched against the start of names, titles and their words
+     * @param limit  Maximum number of suggestions, defaults to {@link #DEFAULT_SUGGESTIONS}
+     * @return Suggestions with their appId and field (name or title)
+     */
+    @GET
+    @Path("/autocomplete")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response autocomplete(@QueryParam("prefix") String prefix,
+                                 @QueryParam("limit") Integer limit) {
+
+        JsonObject jo = new JsonObject();
+
+        int size = limit == null ? DEFAULT_SUGGESTIONS : limit;
+
+        if (size < 1 || size > MAX_SUGGESTIONS) {
+            jo.addProperty("message", "limit must be between 1 and " + MAX_SUGGESTIONS);
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        if (prefix == null || prefix.trim().isEmpty()) {
+            jo.addProperty("message", "prefix is required");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+
+        EntityTag tag = new EntityTag(appsDAO.getCatalogDigest());
+
+        jo.add("suggestions", gson.toJsonTree(appsDAO.suggestApps(prefix, size)));
+        jo.addProperty("message", "OK");
+
+        return Response.status(Response.Status.OK).entity(jo.toString()).tag(tag).build();
+    }
+
+
+    /**
+     * Resolve an intent: the applications handling it, for a context type if given
+     *
+     * @param intent  Intent name
+     * @param context Context type, any context if not given
+     * @return A single resolution with the matching applications
+     */
+    @GET
+    @Path("/resolve")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response resolve(@QueryParam("intent") String intent,
+                            @QueryParam("context") String context) {
+
+        if (intent == null || intent.trim().isEmpty()) {
+            JsonObject jo = new JsonObject();
+            jo.addProperty("message", "intent is required");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+
+        EntityTag tag = new EntityTag(appsDAO.getCatalogDigest());
+
+        //context= is sent by forms with an empty field, it means any context
+        IntentResolution resolution = new IntentResolution(intent, context == null || context.trim().isEmpty() ? null : context);
+
+        return Response.status(Response.Status.OK)
+                .entity(new ResolutionsStreamingOutput(appsDAO, Collections.singletonList(resolution)))
+                .tag(tag).build();
+    }
+
+
+    /**
+     * Resolve many intents in one call
+     *
+     * @param body Json array of {"intent":"...","context":"..."}, context optional, at most {@link #MAX_RESOLUTIONS}
+     * @return One resolution per requested pair, in request order
+     */
+    @POST
+    @Path("/resolve")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response resolveAll(String body) {
+
+        JsonObject jo = new JsonObject();
+        IntentResolution[] resolutions;
+
+        try {
+            resolutions = gson.fromJson(body, IntentResolution[].class);
+        } catch (JsonParseException e) {
+            logger.debug("Invalid resolution request", e);
+            resolutions = null;
+        }
+
+        if (resolutions == null) {
+            jo.addProperty("message", "expected a json array of {\"intent\":\"...\",\"context\":\"...\"}");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        if (resolutions.length > MAX_RESOLUTIONS) {
+            jo.addProperty("message", "at most " + MAX_RESOLUTIONS + " resolutions per request");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        for (IntentResolution resolution : resolutions) {
+            if (resolution == null || resolution.getIntent() == null || resolution.getIntent().trim().isEmpty()) {
+                jo.addProperty("message", "intent is required in every resolution");
+                return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+            }
+        }
+
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+
+        EntityTag tag = new EntityTag(appsDAO.getCatalogDigest());
+
+        return Response.status(Response.Status.OK)
+                .entity(new ResolutionsStreamingOutput(appsDAO, Arrays.asList(resolutions)))
+                .tag(tag).build();
+    }
+
+
+    /**
+     * Catch up with the catalog after being offline, without a full download.  Each application changed since the
+     * given catalog version is returned once, in its current state, or as a delete.  The returned version is passed as
+     * since on the next call.
+     * <p>
+     * When the changes are no longer retained, or the catalog was replaced, 410 Gone is returned with
+     * {"resync":true,"version":V}: the client reloads the whole catalog, then continues from V.  A client without a
+     * version can send since=0 to obtain the current one before its first full download.
+     *
+     * @param since Catalog version the client is at
+     * @return Changes since the version
+     */
+    @GET
+    @Path("/changes")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response changes(@QueryParam("since") String since) {
+
+        JsonObject jo = new JsonObject();
+        long version;
+
+        try {
+            version = Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            jo.addProperty("message", "since must be a catalog version");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+        List<ChangeEvent> events = appsDAO.getChangesSince(version);
+
+        if (events == null || events.stream().anyMatch(event -> ChangeEvent.RESET.equals(event.getType()))) {
+            jo.addProperty("resync", true);
+            jo.addProperty("version", appsDAO.getCatalogVersion());
+            jo.addProperty("message", "changes since version " + version + " are no longer available, reload the catalog");
+            return Response.status(Response.Status.GONE).entity(jo.toString()).build();
+        }
+
+        //Each application once, in the order of its last change
+        Set<String> appIds = new LinkedHashSet<>();
+
+        for (ChangeEvent event : events) {
+            appIds.remove(event.getAppId());
+            appIds.add(event.getAppId());
+        }
+
+        long last = events.isEmpty() ? version : events.get(events.size() - 1).getVersion();
+
+        return Response.status(Response.Status.OK).entity(new ChangesStreamingOutput(appsDAO, version, last, appIds)).build();
+    }
+
+
+    /**
+     * Push catalog changes as server-sent events, instead of polling the catalog.  Each event is named after the
+     * change type (upsert, delete or reset) and carries {"id","type","appId","version"}, the application itself is
+     * then fetched by appId.
+     *
+     * @param lastEventId Last-Event-ID sent by a reconnecting client, the changes it missed are sent first.  If they
+     *                    are no longer retained a resync event is sent, and the client must reload the catalog
+     * @param sink        Event stream
+     * @param sse         Event factory
+     */
+    @GET
+    @Path("/events")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void events(@HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId, @Context SseEventSink sink, @Context Sse sse) {
+
+        Long since = null;
+
+        if (lastEventId != null && !lastEventId.trim().isEmpty()) {
+            try {
+                since = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                //Unknown event id, the client is told to resync
+                since = -1L;
+            }
+        }
+
+        AppsDAOFactory.getAppsDAO().subscribe(since, new SseChangeListener(sink, sse, gson, sseSendQueue));
+    }
+
+
+    /**
+     * Export the whole catalog as newline-delimited json, in appId order.  The export streams from the cache, so its
+     * memory use is constant whatever the size of the catalog.  Applications changed during the export are written in
+     * their state when reached.
+     *
+     * @param after          AppId to resume after, e.g. the last appId received by an interrupted export
+     * @param acceptEncoding Accept-Encoding header, the stream is gzip compressed if it accepts gzip
+     * @return One application json per line
+     */
+    @GET
+    @Path("/export")
+    @RolesAllowed({"admin", "user", "guest"})
+    @Produces(NDJSON)
+    public Response export(@QueryParam("after") String after, @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+
+        boolean gzip = acceptsGzip(acceptEncoding);
+
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+
+        Response.ResponseBuilder response = Response.status(Response.Status.OK)
+                .entity(new NdjsonStreamingOutput(appsDAO.findApps(null, after == null || after.isEmpty() ? null : after), gzip))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        if (gzip)
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+
+        return response.build();
+    }
+
+
+    /**
+     * Check whether an Accept-Encoding header accepts gzip.  A gzip coding takes precedence over the * wildcard, and
+     * either is refused with q=0.  A malformed q-value counts as 0.
+     *
+     * @param acceptEncoding Accept-Encoding header, may be null
+     * @return true if the response may be gzip compressed
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+
+        if (acceptEncoding == null)
+            return false;
+
+        Float gzip = null;
+        Float any = null;
+
+        for (String coding : acceptEncoding.split(",")) {
+
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.length() > 1 && Character.toLowerCase(param.charAt(0)) == 'q' && param.substring(1).trim().startsWith("=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(param.indexOf('=') + 1).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            if (name.equals("gzip") || name.equals("x-gzip"))
+                gzip = gzip == null ? q : Math.max(gzip, q);
+            else if (name.equals("*"))
+                any = any == null ? q : Math.max(any, q);
+        }
+
+        Float q = gzip != null ? gzip : any;
+        return q != null && q > 0;
+    }
+
+
+    /**
+     * Import many applications in one request.  Every record is validated and authorized like a single upsert (appId,
+     * name and manifest required, publisher must be the caller's company, and so must the publisher of the application
+     * it replaces), then the valid records are stored as one batch.  Invalid records do not fail the import, each
+     * record gets its own result.
+     *
+     * @param body            Json array of applications, or newline-delimited json, at most {@link #MAX_BULK} records
+     * @param securityContext Caller
+     * @return Result per record in request order, with created, updated and failed counts
+     */
+    @POST
+    @Path("/bulk")
+    @RolesAllowed({"admin", "user"})
+    @Consumes({MediaType.APPLICATION_JSON, NDJSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkImport(InputStream body, @Context SecurityContext securityContext) {
+
+        JsonObject jo = new JsonObject();
+        List<JsonElement> records = new ArrayList<>();
+
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+
+            //Lenient to accept several top-level values, i.e. newline-delimited json
+            reader.setLenient(true);
+
+            JsonParser parser = new JsonParser();
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+
+            if (array)
+                reader.beginArray();
+
+            while (reader.hasNext() && records.size() <= MAX_BULK)
+                records.add(parser.parse(reader));
+
+            if (array && records.size() <= MAX_BULK)
+                reader.endArray();
+
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            logger.debug("Invalid bulk import", e);
+            jo.addProperty("message", "expected a json array or newline-delimited json of applications");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        if (records.size() > MAX_BULK) {
+            jo.addProperty("message", "at most " + MAX_BULK + " applications per request");
+            return Response.status(Response.Status.BAD_REQUEST).entity(jo.toString()).build();
+        }
+
+        UserSecurity userSecurity = (UserSecurity) securityContext.getUserPrincipal();
+        AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
+        Map<String, Application> existing = appsDAO.getApps();
+
+        List<BulkResult> results = new ArrayList<>(records.size());
+        List<Application> valid = new ArrayList<>(records.size());
+        //Results of the valid applications, in the same order
+        List<BulkResult> pending = new ArrayList<>(records.size());
+        Set<String> appIds = new HashSet<>();
+
+        for (int i = 0; i < records.size(); i++) {
+
+            Application application;
+
+            try {
+                application = gson.fromJson(records.get(i), Application.class);
+            } catch (JsonParseException e) {
+                results.add(new BulkResult(i, null, BulkResult.ERROR, "not an application model"));
+                continue;
+            }
+
+            String error = null;
+
+            if (application == null || application.getName() == null || application.getAppId() == null || application.getManifest() == null) {
+                error = "required attributes not provided (appId,name,manifest)";
+            } else if (application.getPublisher() == null || !application.getPublisher().equalsIgnoreCase(userSecurity.getCompany())) {
+                error = userSecurity.getEmail() + " is not administrator for company/publisher= " + application.getPublisher();
+            } else if (!appIds.add(application.getAppId())) {
+                error = "duplicate appId in request";
+            }
+
+            Application previous = error == null ? existing.get(application.getAppId()) : null;
+
+            if (previous != null && (previous.getPublisher() == null || !previous.getPublisher().equalsIgnoreCase(userSecurity.getCompany())))
+                error = "Unable to update application. " + userSecurity.getEmail() + " is not the administrator for company/publisher= " + previous.getPublisher();
+
+            if (error != null) {
+                results.add(new BulkResult(i, application == null ? null : application.getAppId(), BulkResult.ERROR, error));
+                continue;
+            }
+
+            //Created or updated is only known once the appId is locked
+            BulkResult result = new BulkResult(i, application.getAppId(), null, null);
+
+            results.add(result);
+            pending.add(result);
+            valid.add(application);
+        }
+
+        //The owner of existing applications is checked again atomically with the update
+        List<BulkResult> stored = valid.isEmpty() ? Collections.emptyList() : appsDAO.upsertApps(valid,
+                current -> current == null || (current.getPublisher() != null && current.getPublisher().equalsIgnoreCase(userSecurity.getCompany())));
+
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).setStatus(stored.get(i).getStatus());
+            pending.get(i).setMessage(stored.get(i).getMessage());
+        }
+
+        int created = 0;
+        int updated = 0;
+
+        for (BulkResult result : results) {
+            if (BulkResult.CREATED.equals(result.getStatus()))
+                created++;
+            else if (BulkResult.UPDATED.equals(result.getStatus()))
+                updated++;
+        }
+
+        jo.add("results", gson.toJsonTree(results));
+        jo.addProperty("created", created);
+        jo.addProperty("updated", updated);
+        jo.addProperty("failed", results.size() - created - updated);
+        jo.addProperty("message", "OK");
+
+        return Response.status(Response.Status.OK).entity(jo.toString()).build();
+    }
+
+}
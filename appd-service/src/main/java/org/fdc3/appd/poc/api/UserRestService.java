@@ -19,6 +19,7 @@
 package org.fdc3.appd.poc.api;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import org.fdc3.appd.poc.dao.UserDAO;
 import org.fdc3.appd.poc.dao.UserDAOFactory;
 import org.fdc3.appd.poc.exceptions.UserExistingException;
@@ -39,8 +40,11 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.ArrayList;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -172,10 +176,21 @@ public class UserRestService  {
         UserDAO userDao = UserDAOFactory.getUserDAO();
 
         try {
-            List<User> usersJson = new ArrayList<>(userDao.getAllUsers());
+            Iterator<User> users = userDao.iterateUsers();
 
-            // Return the users on the response
-            return Response.status(Response.Status.OK).entity(new Gson().toJsonTree(usersJson)).build();
+            // Stream the users on the response, one at a time and without security context
+            StreamingOutput entity = output -> {
+                Gson gson = new Gson();
+                JsonWriter writer = new JsonWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+                writer.beginArray();
+                while (users.hasNext())
+                    gson.toJson(users.next(), User.class, writer);
+                writer.endArray();
+                writer.flush();
+            };
+
+            return Response.status(Response.Status.OK).entity(entity).build();
         } catch (UserNotFoundException e) {
             return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage()).build();
         } catch (Exception e) {
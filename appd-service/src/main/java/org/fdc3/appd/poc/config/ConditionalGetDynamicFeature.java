@@ -0,0 +1,42 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.config;
+
+import org.fdc3.appd.poc.filter.ConditionalGetFilter;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Registers the {@link ConditionalGetFilter} on all GET resource methods
+ */
+@Provider
+public class ConditionalGetDynamicFeature implements DynamicFeature {
+
+    @Override
+    public void configure(ResourceInfo resourceInfo, FeatureContext featureContext) {
+
+        if (resourceInfo.getResourceMethod() != null && resourceInfo.getResourceMethod().isAnnotationPresent(GET.class))
+            featureContext.register(new ConditionalGetFilter());
+    }
+}
@@ -39,7 +39,36 @@ public enum ConfigId {
     HTTP_CONTEXT_PATH(false),
     HTTP_PORT(false),
     JSON_USERS_DIR(false),
-    JSON_APPS_DIR(false);
+    JSON_APPS_DIR(false),
+    PRIME_THREADS(false),
+    S3_MAX_CONNECTIONS(false),
+    SNAPSHOT_ENABLED(false),
+    SNAPSHOT_INTERVAL(false),
+    WAL_ENABLED(false),
+    WAL_COMPACT_SIZE(false),
+    S3_WRITE_BEHIND(false),
+    S3_WRITE_QUEUE_BYTES(false),
+    S3_WRITE_THREADS(false),
+    S3_FLUSH_TIMEOUT(false),
+    S3_RESYNC_INTERVAL(false),
+    JSON_WATCH_ENABLED(false),
+    JSON_WATCH_DEBOUNCE(false),
+    CHANGE_JOURNAL_SIZE(false),
+    CHANGE_HEARTBEAT(false),
+    SSE_SEND_QUEUE(false),
+    WS_SEND_BUFFER(false),
+    WS_IDLE_TIMEOUT(false),
+    WS_MAX_SUBSCRIPTIONS(false),
+    STORAGE_BACKEND(false),
+    STORAGE_DIR(false),
+    STORAGE_CACHE_SIZE(false),
+    STORAGE_JDBC_URL(false),
+    STORAGE_JDBC_USER(false),
+    STORAGE_JDBC_PASSWORD(false),
+    STORAGE_JDBC_POOL_SIZE(false),
+    STORAGE_JDBC_JSON_TYPE(false),
+    USER_CACHE_SIZE(false),
+    USER_CACHE_EXPIRY(false);
 
 
 
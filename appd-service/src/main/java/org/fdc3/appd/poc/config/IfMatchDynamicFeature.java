@@ -0,0 +1,43 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.config;
+
+import org.fdc3.appd.poc.filter.IfMatchFilter;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Registers the {@link IfMatchFilter} on all POST resource methods
+ */
+@Provider
+public class IfMatchDynamicFeature implements DynamicFeature {
+
+    @Override
+    public void configure(ResourceInfo resourceInfo, FeatureContext featureContext) {
+
+        if (resourceInfo.getResourceMethod() != null && resourceInfo.getResourceMethod().isAnnotationPresent(POST.class))
+            featureContext.register(new IfMatchFilter());
+    }
+}
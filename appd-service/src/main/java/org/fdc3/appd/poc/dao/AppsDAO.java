@@ -19,14 +19,63 @@
 package org.fdc3.appd.poc.dao;
 
 import org.fdc3.appd.poc.exceptions.DaoException;
+import org.fdc3.appd.poc.exceptions.UpsertDeniedException;
+import org.fdc3.appd.poc.exceptions.VersionConflictException;
+import org.fdc3.appd.poc.model.AppSearch;
+import org.fdc3.appd.poc.model.AppSearchPage;
+import org.fdc3.appd.poc.model.BulkResult;
+import org.fdc3.appd.poc.model.ChangeEvent;
+import org.fdc3.appd.poc.model.EncodedApplication;
+import org.fdc3.appd.poc.model.ReplicationStats;
+import org.fdc3.appd.poc.model.Suggestion;
 import org.fdc3.appd.server.model.Application;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
 
 /**
  * @author Frank Tarsillo on 10/12/18.
  */
 public interface AppsDAO {
+
+    /**
+     * Deepest ranked match a page may start at, see {@link #rankApps(String, AppSearch, int, int)}
+     */
+    int MAX_RANK_DEPTH = 10000;
+
+    /**
+     * Receives catalog changes, see {@link #subscribe(Long, ChangeListener)}.  Called on a single dispatcher thread, a
+     * listener throwing an exception is unsubscribed.
+     */
+    interface ChangeListener {
+
+        /**
+         * An application changed
+         *
+         * @param event Change, in id order
+         * @throws Exception Listener failed and must be unsubscribed
+         */
+        void changed(ChangeEvent event) throws Exception;
+
+        /**
+         * Changes after the requested event id are no longer retained, the subscriber must reload the catalog
+         *
+         * @param lastEventId Id of the last change included in a reload, later changes follow
+         * @throws Exception Listener failed and must be unsubscribed
+         */
+        void resync(long lastEventId) throws Exception;
+
+        /**
+         * No change for a while, e.g. to keep a connection alive
+         *
+         * @throws Exception Listener failed and must be unsubscribed
+         */
+        void idle() throws Exception;
+    }
+
     /**
      * Obtain a singleton instance.  This will also create cache from persist on first call
      *
@@ -39,7 +88,168 @@ public interface AppsDAO {
 
     Application getApp(String appId) throws DaoException;
 
+    /**
+     * Retrieve an application definition with its pre-encoded json
+     *
+     * @param appId Application identification
+     * @return Encoded application
+     * @throws DaoException Application not found
+     */
+    EncodedApplication getEncodedApp(String appId) throws DaoException;
+
     void setApp(Application application) throws DaoException;
 
+    /**
+     * Atomically upsert an application definition: writers of the same appId are serialized from the checks to the
+     * cache update, readers and writers of other appIds are not blocked
+     *
+     * @param application     Application to upsert, with an appId
+     * @param authorize       Checked against the current definition (null if new), null to allow any upsert
+     * @param expectedVersion Revision number or hash of the definition the change is based on, * for any existing
+     *                        definition, null to skip the version check
+     * @return Stored definition, with its new revision
+     * @throws UpsertDeniedException    Rejected by the authorization check
+     * @throws VersionConflictException The current definition is not the expected version
+     * @throws DaoException             Application could not be persisted
+     */
+    EncodedApplication upsertApp(Application application, Predicate<Application> authorize, String expectedVersion) throws DaoException;
+
+    /**
+     * Upsert many application definitions as one batch, with batched persistence
+     *
+     * @param applications Validated applications with an appId, without duplicate appIds
+     * @param authorize    Checked against the current definition of each application (null if new), null to allow any
+     *                     upsert
+     * @return Result of each application, in the given order: created or updated, as seen with its appId locked, or
+     * error with the failure message
+     */
+    List<BulkResult> upsertApps(List<Application> applications, Predicate<Application> authorize);
+
     void prime();
+
+    /**
+     * Applications handling the given intent name (case-insensitive)
+     *
+     * @param intent Intent name
+     * @return Matching applications, empty if none
+     */
+    List<Application> getAppsByIntent(String intent);
+
+    /**
+     * Applications accepting the given context type on any of their intents (case-insensitive)
+     *
+     * @param context Context type
+     * @return Matching applications, empty if none
+     */
+    List<Application> getAppsByContext(String context);
+
+    /**
+     * Applications published by the given company/publisher (case-insensitive)
+     *
+     * @param publisher Publisher name
+     * @return Matching applications, empty if none
+     */
+    List<Application> getAppsByPublisher(String publisher);
+
+    /**
+     * Applications with the given name, ignoring case and whitespace differences
+     *
+     * @param name Application name
+     * @return Matching applications, empty if none
+     */
+    List<Application> getAppsByName(String name);
+
+    /**
+     * Resolve an intent: the applications handling the intent for the given context type, from the precomputed
+     * (intent, context) map
+     *
+     * @param intent  Intent name (case-insensitive)
+     * @param context Context type (case-insensitive), null or blank for any context
+     * @return Encoded applications in appId order, empty if none
+     */
+    List<EncodedApplication> resolveIntent(String intent, String context);
+
+    /**
+     * Search applications in appId order.  Criteria backed by an index are resolved through the index, so the cost
+     * depends on the size of the smallest matching index entry rather than the catalog.
+     *
+     * @param search     Search criteria
+     * @param afterAppId Continue after this appId (exclusive), null to start from the beginning
+     * @param limit      Maximum number of applications to return, 0 for no limit
+     * @return Page of matching applications
+     */
+    AppSearchPage searchApps(AppSearch search, String afterAppId, int limit);
+
+    /**
+     * Lazily search applications in appId order, for streaming results without materializing them
+     *
+     * @param search     Search criteria, null matches everything
+     * @param afterAppId Continue after this appId (exclusive), null to start from the beginning
+     * @return Iterator over matching encoded applications
+     */
+    Iterator<EncodedApplication> findApps(AppSearch search, String afterAppId);
+
+    /**
+     * Rank applications by relevance to a free text query over name, title, tooltip and description
+     *
+     * @param query  Free text query
+     * @param search Additional search criteria, null for none
+     * @param offset Number of best matches to skip, at most {@link #MAX_RANK_DEPTH}
+     * @param limit  Maximum number of applications to return
+     * @return Matching encoded applications, best first
+     */
+    List<EncodedApplication> rankApps(String query, AppSearch search, int offset, int limit);
+
+    /**
+     * Autocomplete application names and titles
+     *
+     * @param prefix Typed prefix, case-insensitive, matching the start of the text or of any later word
+     * @param limit  Maximum number of suggestions
+     * @return Suggestions without duplicate texts, start of text matches first, then alphabetical
+     */
+    List<Suggestion> suggestApps(String prefix, int limit);
+
+    /**
+     * Catalog version, incremented on every change to the cached applications
+     *
+     * @return Current catalog version
+     */
+    long getCatalogVersion();
+
+    /**
+     * Digest of the whole catalog content, derived from the application hashes.  Two catalogs holding the same
+     * applications have the same digest, so it can tag any response computed from the catalog alone.
+     *
+     * @return Hex encoded catalog digest
+     */
+    String getCatalogDigest();
+
+    /**
+     * Metrics of the asynchronous S3 replication of application upserts
+     *
+     * @return Replication metrics, null if S3 replication is disabled or synchronous
+     */
+    ReplicationStats getReplicationStats();
+
+    /**
+     * Changes made since a catalog version, from the bounded change journal
+     *
+     * @param version Catalog version the client is at
+     * @return Changes in version order, empty if none, null if changes after the version are no longer retained
+     */
+    List<ChangeEvent> getChangesSince(long version);
+
+    /**
+     * Subscribe to catalog changes
+     *
+     * @param lastEventId Last change id seen by the subscriber, to receive the changes it missed first, null to only
+     *                    receive new changes
+     * @param listener    Change listener
+     */
+    void subscribe(Long lastEventId, ChangeListener listener);
+
+    /**
+     * @param listener Change listener to unsubscribe
+     */
+    void unsubscribe(ChangeListener listener);
 }
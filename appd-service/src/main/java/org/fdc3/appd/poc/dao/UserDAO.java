@@ -21,9 +21,11 @@ package org.fdc3.appd.poc.dao;
 
 import org.fdc3.appd.poc.exceptions.UserExistingException;
 import org.fdc3.appd.poc.exceptions.UserNotFoundException;
+import org.fdc3.appd.poc.model.ReplicationStats;
 import org.fdc3.appd.poc.model.User;
 import org.fdc3.appd.poc.model.UserSecurity;
 
+import java.util.Iterator;
 import java.util.List;
 
 public interface UserDAO {
@@ -34,9 +36,23 @@ public interface UserDAO {
 
 	 List<User> getAllUsers();
 
+	 /**
+	  * Iterate over all users without copying them, for streaming
+	  *
+	  * @return Iterator over all users
+	  */
+	 Iterator<User> iterateUsers();
+
 	 UserSecurity getUserAuthentication(String id) throws UserNotFoundException;
 	 boolean setUserAuthentication(UserSecurity user) throws UserNotFoundException;
 
 	 boolean updateUser(User user) throws UserNotFoundException;
 	 boolean deleteUser(String id) throws UserNotFoundException;
+
+	 /**
+	  * Metrics of the asynchronous S3 replication of user updates
+	  *
+	  * @return Replication metrics, null if S3 replication is disabled or synchronous
+	  */
+	 ReplicationStats getReplicationStats();
 }
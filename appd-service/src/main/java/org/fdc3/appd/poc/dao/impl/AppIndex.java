@@ -0,0 +1,244 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.server.model.Application;
+import org.fdc3.appd.server.model.Intent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary indexes over the application cache.
+ * <p>
+ * Each index maps a normalized key (intent name, context type, publisher or application name) to the sorted set of
+ * appIds carrying that key, so a lookup only touches the matching appIds instead of the whole catalog.  Intent
+ * resolution is precomputed as well: each (intent, context type) pair declared by an intent maps to its appIds.
+ * <p>
+ * Individual key updates are atomic; callers are expected to serialize {@link #update(Application, Application)}
+ * per appId so the old and new keys of an application are swapped as one step.
+ */
+public class AppIndex {
+
+    private final ConcurrentMap<String, NavigableSet<String>> intents = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> contexts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> publishers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> names = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> resolutions = new ConcurrentHashMap<>();
+
+    private static final char SEPARATOR = '\u0000';
+
+
+    /**
+     * Normalize an index key.  Keys are case-insensitive and ignore surrounding/repeated whitespace.
+     *
+     * @param key Raw key
+     * @return Normalized key or null if nothing is left
+     */
+    public static String normalize(String key) {
+
+        if (key == null)
+            return null;
+
+        String normalized = key.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+
+    /**
+     * Replace the index entries of an application.
+     *
+     * @param previous Previously indexed definition, null if new
+     * @param current  New definition, null if removed
+     */
+    public void update(Application previous, Application current) {
+
+        String appId = current != null ? current.getAppId() : previous != null ? previous.getAppId() : null;
+
+        if (appId == null)
+            return;
+
+        swap(intents, appId, intentKeys(previous), intentKeys(current));
+        swap(contexts, appId, contextKeys(previous), contextKeys(current));
+        swap(publishers, appId, singleKey(previous == null ? null : previous.getPublisher()), singleKey(current == null ? null : current.getPublisher()));
+        swap(names, appId, singleKey(previous == null ? null : previous.getName()), singleKey(current == null ? null : current.getName()));
+        swap(resolutions, appId, resolutionKeys(previous), resolutionKeys(current));
+    }
+
+    /**
+     * Drop all index entries
+     */
+    public void clear() {
+        intents.clear();
+        contexts.clear();
+        publishers.clear();
+        names.clear();
+        resolutions.clear();
+    }
+
+
+    public NavigableSet<String> getAppIdsByIntent(String intent) {
+        return lookup(intents, intent);
+    }
+
+    public NavigableSet<String> getAppIdsByContext(String context) {
+        return lookup(contexts, context);
+    }
+
+    public NavigableSet<String> getAppIdsByPublisher(String publisher) {
+        return lookup(publishers, publisher);
+    }
+
+    public NavigableSet<String> getAppIdsByName(String name) {
+        return lookup(names, name);
+    }
+
+    /**
+     * AppIds of the applications with an intent of the given name declaring the given context type
+     *
+     * @param intent  Intent name
+     * @param context Context type
+     * @return Sorted appIds
+     */
+    public NavigableSet<String> getAppIdsByIntentAndContext(String intent, String context) {
+
+        String normalizedIntent = normalize(intent);
+        String normalizedContext = normalize(context);
+
+        if (normalizedIntent == null || normalizedContext == null)
+            return Collections.emptyNavigableSet();
+
+        NavigableSet<String> appIds = resolutions.get(normalizedIntent + SEPARATOR + normalizedContext);
+
+        return appIds == null ? Collections.emptyNavigableSet() : Collections.unmodifiableNavigableSet(appIds);
+    }
+
+
+    private NavigableSet<String> lookup(ConcurrentMap<String, NavigableSet<String>> index, String key) {
+
+        String normalized = normalize(key);
+
+        NavigableSet<String> appIds = normalized == null ? null : index.get(normalized);
+
+        return appIds == null ? Collections.emptyNavigableSet() : Collections.unmodifiableNavigableSet(appIds);
+    }
+
+
+    private void swap(ConcurrentMap<String, NavigableSet<String>> index, String appId, Set<String> oldKeys, Set<String> newKeys) {
+
+        for (String key : oldKeys) {
+            if (newKeys.contains(key))
+                continue;
+
+            index.computeIfPresent(key, (k, appIds) -> {
+                appIds.remove(appId);
+                return appIds.isEmpty() ? null : appIds;
+            });
+        }
+
+        for (String key : newKeys) {
+            index.compute(key, (k, appIds) -> {
+                if (appIds == null)
+                    appIds = new ConcurrentSkipListSet<>();
+
+                appIds.add(appId);
+                return appIds;
+            });
+        }
+    }
+
+
+    private static Set<String> singleKey(String key) {
+
+        String normalized = normalize(key);
+
+        return normalized == null ? Collections.emptySet() : Collections.singleton(normalized);
+    }
+
+    private static Set<String> intentKeys(Application application) {
+
+        if (application == null || application.getIntents() == null)
+            return Collections.emptySet();
+
+        Set<String> keys = new HashSet<>();
+
+        for (Intent intent : application.getIntents()) {
+            String normalized = intent == null ? null : normalize(intent.getName());
+            if (normalized != null)
+                keys.add(normalized);
+        }
+
+        return keys;
+    }
+
+    private static Set<String> contextKeys(Application application) {
+
+        if (application == null || application.getIntents() == null)
+            return Collections.emptySet();
+
+        Set<String> keys = new HashSet<>();
+
+        for (Intent intent : application.getIntents()) {
+
+            if (intent == null || intent.getContexts() == null)
+                continue;
+
+            for (String context : intent.getContexts()) {
+                String normalized = normalize(context);
+                if (normalized != null)
+                    keys.add(normalized);
+            }
+        }
+
+        return keys;
+    }
+
+    private static Set<String> resolutionKeys(Application application) {
+
+        if (application == null || application.getIntents() == null)
+            return Collections.emptySet();
+
+        Set<String> keys = new HashSet<>();
+
+        for (Intent intent : application.getIntents()) {
+
+            String normalizedIntent = intent == null ? null : normalize(intent.getName());
+
+            if (normalizedIntent == null || intent.getContexts() == null)
+                continue;
+
+            for (String context : intent.getContexts()) {
+                String normalizedContext = normalize(context);
+                if (normalizedContext != null)
+                    keys.add(normalizedIntent + SEPARATOR + normalizedContext);
+            }
+        }
+
+        return keys;
+    }
+
+}
@@ -18,48 +18,197 @@
 
 package org.fdc3.appd.poc.dao.impl;
 
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import org.fdc3.appd.poc.config.ConfigId;
 import org.fdc3.appd.poc.config.Configuration;
 import org.fdc3.appd.poc.exceptions.DaoException;
+import org.fdc3.appd.poc.exceptions.ProgramFault;
+import org.fdc3.appd.poc.exceptions.UpsertDeniedException;
+import org.fdc3.appd.poc.exceptions.VersionConflictException;
+import org.fdc3.appd.poc.model.AppSearch;
+import org.fdc3.appd.poc.model.AppSearchPage;
+import org.fdc3.appd.poc.model.BulkResult;
+import org.fdc3.appd.poc.model.ChangeEvent;
+import org.fdc3.appd.poc.model.EncodedApplication;
+import org.fdc3.appd.poc.model.ReplicationStats;
+import org.fdc3.appd.poc.model.RevisedApplication;
+import org.fdc3.appd.poc.model.Suggestion;
 import org.fdc3.appd.poc.util.AwsS3Client;
 import org.fdc3.appd.server.model.Application;
+import org.fdc3.appd.server.model.Intent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * DAO for Applications supporting both retrieval and persist.
  * <p>
- * Persist supported through both local serialized json files and AWS S3 options
+ * Persist supported through both local serialized json files and AWS S3 options, or an embedded storage backend
+ * selected by storage.backend, see {@link RecordStore}
  *
  * @author Frank Tarsillo on 7/9/18.
  */
 public class AppsDAOImpl implements org.fdc3.appd.poc.dao.AppsDAO {
 
+    /**
+     * Serializes the schema fields of an application only.  The revision of a loaded copy is written from the encoded
+     * application, not from the loaded field, and is never sent to clients.
+     */
+    public static final ExclusionStrategy SCHEMA_FIELDS = new ExclusionStrategy() {
+        @Override
+        public boolean shouldSkipField(FieldAttributes field) {
+            return field.getDeclaringClass() == RevisedApplication.class;
+        }
 
-    private ConcurrentMap<String, Application> apps = new ConcurrentHashMap<>();
+        @Override
+        public boolean shouldSkipClass(Class<?> type) {
+            return false;
+        }
+    };
+
+
+    private ConcurrentNavigableMap<String, Application> apps = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, EncodedApplication> encodedApps = new ConcurrentHashMap<>();
+    private final AppIndex index = new AppIndex();
+    private final TextIndex textIndex = new TextIndex();
+    private final PrefixIndex prefixIndex = new PrefixIndex();
+    private final Object writeLock = new Object();
+    private final ConcurrentHashMap<String, AppLock> appLocks = new ConcurrentHashMap<>();
+    //Starts from the startup time, so versions of a previous run are older than any change of this one
+    private final AtomicLong catalogVersion = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+    private final AtomicLong catalogDigest = new AtomicLong();
     private Configuration config = Configuration.get();
     private String directory = config.get(ConfigId.JSON_APPS_DIR, "json/apps");
 
     private Logger logger = LoggerFactory.getLogger(AppsDAOImpl.class);
     private AwsS3Client awsS3Client;
+    private final Gson gson = new GsonBuilder().addSerializationExclusionStrategy(SCHEMA_FIELDS).create();
+    private final JsonStreamLoader<RevisedApplication> applicationLoader = new JsonStreamLoader<>(gson, RevisedApplication.class);
+    private final LocalJsonStore localStore = new LocalJsonStore("applications", directory);
+    private MutationLog mutationLog;
+    private S3WriteBehind s3WriteBehind;
+    private S3Resync s3Resync;
+    private RecordStore recordStore;
+    private final ChangeJournal changeJournal = new ChangeJournal("applications", catalogVersion.get());
+
+    //Writer lock of one appId, only mapped while held or awaited
+    private static class AppLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int holders;
+    }
+
+    //Parses json records (files, snapshot, write-ahead log, S3) into the cache, keeping the newest revision
+    private final LocalJsonStore.RecordHandler recordHandler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) throws Exception {
+            return applicationLoader.load(json, application -> merge(application, accept, false));
+        }
+
+        @Override
+        public void remove(String appId) {
+            uncache(appId);
+        }
+    };
+
+    //Parses the copies of other nodes from S3 into the cache, and into the storage backend when one is configured
+    private final LocalJsonStore.RecordHandler remoteHandler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) throws Exception {
+            return applicationLoader.load(json, application -> merge(application, accept, true));
+        }
+
+        @Override
+        public Callable<Collection<String>> parse(Reader json) throws Exception {
+
+            List<RevisedApplication> applications = applicationLoader.parse(json);
+
+            return () -> {
+                List<String> appIds = new ArrayList<>(applications.size());
+
+                for (RevisedApplication application : applications) {
+                    String appId = merge(application, key -> true, true);
+                    if (appId != null)
+                        appIds.add(appId);
+                }
+
+                return appIds;
+            };
+        }
+
+        @Override
+        public void remove(String appId) {
+
+            if (recordStore != null)
+                recordStore.remove(appId);
+
+            uncache(appId);
+        }
+    };
 
 
     public AppsDAOImpl() {
 
+        //Applications are persisted to the selected storage backend instead of the json files, when one is configured
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("publisher", "publisher");
+        attributes.put("intent", "intents.name");
+
+        try {
+            recordStore = RecordStore.open("applications", null, attributes);
+        } catch (IOException e) {
+            logger.error("Could not open Applications storage backend..exiting", e);
+            System.exit(1);
+        }
 
         //Init S3 client
-        if (config.getBoolean(ConfigId.S3_ENABLED, false))
+        if (config.getBoolean(ConfigId.S3_ENABLED, false)) {
             awsS3Client = new AwsS3Client();
 
+            //S3 puts are replicated in the background, off the request thread
+            if (config.getBoolean(ConfigId.S3_WRITE_BEHIND, true))
+                s3WriteBehind = new S3WriteBehind("applications", awsS3Client, config.get(ConfigId.S3_BUCKET, ""));
+
+            s3Resync = new S3Resync("applications", awsS3Client, config.get(ConfigId.S3_BUCKET, ""), config.get(ConfigId.S3_JSON_APPS_PREFIX, "json"),
+                    remoteHandler, key -> s3WriteBehind != null && s3WriteBehind.isPending(key));
+        }
+
+        //Upserts go to a write-ahead log, compacted into the json files in the background
+        if (recordStore == null && config.getBoolean(ConfigId.WAL_ENABLED, true))
+            mutationLog = new MutationLog("applications", Paths.get(directory, "wal"), localStore);
+
         prime();
     }
 
@@ -76,12 +225,31 @@ public class AppsDAOImpl implements org.fdc3.appd.poc.dao.AppsDAO {
 
     /**
      * Define the known list of applications.  This will overwrite any existing cache of application defs
+     * <p>
+     * The applications are copied into an appId ordered cache, later changes to the given map are not reflected.
      *
      * @param apps All known apps.
      */
     @Override
     public void setApps(ConcurrentMap<String, Application> apps) {
-        this.apps = apps;
+
+        synchronized (writeLock) {
+            index.clear();
+            textIndex.clear();
+            prefixIndex.clear();
+            encodedApps.clear();
+            catalogDigest.set(0);
+            apps.values().forEach(application -> {
+                EncodedApplication encodedApp = encode(application, revisionOf(application, null));
+                index.update(null, application);
+                textIndex.update(null, application);
+                prefixIndex.update(null, application);
+                encodedApps.put(application.getAppId(), encodedApp);
+                catalogDigest.addAndGet(digestOf(encodedApp));
+            });
+            this.apps = new ConcurrentSkipListMap<>(apps);
+            changeJournal.publish(ChangeEvent.RESET, null, catalogVersion.incrementAndGet(), null, null);
+        }
     }
 
 
@@ -103,6 +271,25 @@ public class AppsDAOImpl implements org.fdc3.appd.poc.dao.AppsDAO {
         return application;
     }
 
+    /**
+     * Retrieve application definition by AppID together with its json encoding.  The encoding is built when the
+     * application is upserted, so this does not serialize anything.
+     *
+     * @param appId Application identification
+     * @return Encoded application definition
+     * @throws DaoException General data management exception
+     */
+    @Override
+    public EncodedApplication getEncodedApp(String appId) throws DaoException {
+
+        EncodedApplication encodedApp = appId == null ? null : encodedApps.get(appId);
+
+        if (encodedApp == null)
+            throw new DaoException("Application not found");
+
+        return encodedApp;
+    }
+
     /**
      * Upsert an application definition into cache.  This will also persist to disk or S3
      *
@@ -118,9 +305,442 @@ public class AppsDAOImpl implements org.fdc3.appd.poc.dao.AppsDAO {
         if (application.getAppId() == null)
             application.setAppId(java.util.UUID.randomUUID().toString());
 
-        persist(application);
-        apps.put(application.getAppId(), application);
+        upsertApp(application, null, null);
+    }
+
+    /**
+     * Atomically upsert an application definition.  Writers of the same appId are serialized from the authorization
+     * check to the cache update, so the check and the version always see the definition being replaced, and the
+     * persisted order is the cached order.  Readers never wait, and writers of other appIds only share the short
+     * index update.
+     *
+     * @param application     Application to upsert, with an appId
+     * @param authorize       Checked against the current definition (null if new), null to allow any upsert
+     * @param expectedVersion Revision number or hash of the definition the change is based on, * for any existing
+     *                        definition, null to skip the version check
+     * @return Stored definition, with its new revision
+     * @throws UpsertDeniedException     Rejected by the authorization check
+     * @throws VersionConflictException  The current definition is not the expected version
+     * @throws DaoException              Application could not be persisted
+     */
+    @Override
+    public EncodedApplication upsertApp(Application application, Predicate<Application> authorize, String expectedVersion) throws DaoException {
+
+        if (application == null || application.getAppId() == null)
+            throw new DaoException("No application provided");
+
+        String appId = application.getAppId();
+        AppLock appLock = lock(appId);
+
+        try {
+            EncodedApplication current = encodedApps.get(appId);
+            Application previous = current == null ? null : current.getApplication();
+
+            if (authorize != null && !authorize.test(previous))
+                throw new UpsertDeniedException("Not allowed to upsert application [" + appId + "]");
+
+            if (expectedVersion != null && !isVersion(current, expectedVersion))
+                throw new VersionConflictException("Application [" + appId + "] is at revision " + (current == null ? 0 : current.getRevision()));
+
+            EncodedApplication encodedApp = encode(application, current == null ? 1 : current.getRevision() + 1);
+
+            persist(encodedApp);
+            cache(encodedApp);
+            stamp(encodedApp);
+
+            return encodedApp;
+
+        } finally {
+            unlock(appId, appLock);
+        }
+    }
+
+    /**
+     * Merge a parsed record, unless it has no appId or is not accepted
+     *
+     * @return AppId of the merged application, null if skipped
+     */
+    private String merge(RevisedApplication application, Predicate<String> accept, boolean remote) {
+
+        if (application == null || application.getAppId() == null) {
+            logger.warn("Skipping application without appId");
+            return null;
+        }
+
+        if (!accept.test(application.getAppId()))
+            return null;
+
+        merge(application, remote);
+        return application.getAppId();
+    }
+
+    /**
+     * Cache a stored copy of an application unless the cache holds a newer revision.  Replicas resolve conflicting
+     * copies the same way: the highest revision wins, then the highest hash for copies of the same revision.  A copy
+     * without revision, e.g. edited by hand, always wins and gets the next revision.
+     *
+     * @param application Loaded application
+     * @param remote      True for a copy from S3, which the storage backend does not hold yet
+     */
+    private void merge(RevisedApplication application, boolean remote) {
+
+        String appId = application.getAppId();
+        AppLock appLock = lock(appId);
+
+        try {
+            EncodedApplication current = encodedApps.get(appId);
+            EncodedApplication encodedApp = encode(application, revisionOf(application, current));
+
+            if (current != null && application.getRevision() != null && !isNewer(encodedApp, current)) {
+                logger.debug("Keeping revision {} of [{}] over stored revision {}", current.getRevision(), appId, encodedApp.getRevision());
+                return;
+            }
+
+            cache(encodedApp);
+
+            //Written by the store within a second, under the appId lock so a concurrent upsert is not overwritten
+            if (remote && recordStore != null)
+                recordStore.put(appId, encodedApp.getStoredJson(), null);
+
+        } finally {
+            unlock(appId, appLock);
+        }
+    }
+
+    private static boolean isNewer(EncodedApplication copy, EncodedApplication current) {
+        return copy.getRevision() > current.getRevision()
+                || (copy.getRevision() == current.getRevision() && copy.getHash().compareTo(current.getHash()) > 0);
+    }
+
+    /**
+     * Check an If-Match style version against the current definition
+     */
+    private static boolean isVersion(EncodedApplication current, String version) {
+        return current != null && (version.equals("*") || version.equals(current.getHash()) || version.equals(Long.toString(current.getRevision())));
+    }
+
+    /**
+     * Revision of a loaded copy, or the next revision if it has none
+     */
+    private static long revisionOf(Application application, EncodedApplication current) {
+
+        if (application instanceof RevisedApplication && ((RevisedApplication) application).getRevision() != null)
+            return ((RevisedApplication) application).getRevision();
+
+        return current == null ? 1 : current.getRevision() + 1;
+    }
+
+    /**
+     * Upsert many application definitions as one batch.
+     * <p>
+     * All records are queued to the write-ahead log before waiting for any of them, so they are synced in shared
+     * batches (group commit).  The persisted records are then cached under a single lock acquisition, and replicated
+     * to S3.
+     *
+     * @param applications Validated applications with an appId, without duplicate appIds
+     * @param authorize    Checked against the current definition of each application (null if new) under its appId
+     *                     lock, null to allow any upsert
+     * @return Failure message by appId, applications not in the map were stored
+     */
+    @Override
+    public List<BulkResult> upsertApps(List<Application> applications, Predicate<Application> authorize) {
+
+        //Locked in appId order, so concurrent batches cannot deadlock
+        Map<String, AppLock> locks = new LinkedHashMap<>();
+
+        applications.stream().map(Application::getAppId).sorted().distinct().forEach(appId -> locks.put(appId, lock(appId)));
+
+        try {
+            return upsertLocked(applications, authorize);
+        } finally {
+            locks.forEach(this::unlock);
+        }
+    }
+
+    /**
+     * Body of {@link #upsertApps(List, Predicate)}, with the appId locks held
+     */
+    private List<BulkResult> upsertLocked(List<Application> applications, Predicate<Application> authorize) {
+
+        Map<String, String> failures = new LinkedHashMap<>();
+        Set<String> created = new HashSet<>();
+        List<EncodedApplication> encoded = new ArrayList<>(applications.size());
+
+        for (Application application : applications) {
+
+            EncodedApplication current = encodedApps.get(application.getAppId());
+
+            if (current == null)
+                created.add(application.getAppId());
+
+            if (authorize != null && !authorize.test(current == null ? null : current.getApplication()))
+                failures.put(application.getAppId(), "Not allowed to upsert application [" + application.getAppId() + "]");
+            else
+                encoded.add(encode(application, current == null ? 1 : current.getRevision() + 1));
+        }
+
+        List<EncodedApplication> persisted = new ArrayList<>(encoded.size());
+
+        if (recordStore != null) {
+
+            //One commit for the whole batch
+            for (EncodedApplication encodedApp : encoded)
+                recordStore.put(encodedApp.getAppId(), encodedApp.getStoredJson(), null);
+
+            try {
+                recordStore.commit(encoded.stream().map(EncodedApplication::getAppId).collect(Collectors.toList()));
+                persisted.addAll(encoded);
+            } catch (CommitException e) {
+                //The other applications of the batch were written
+                encoded.stream().filter(encodedApp -> !e.getKeys().contains(encodedApp.getAppId())).forEach(persisted::add);
+                e.getKeys().forEach(appId -> failures.put(appId, "Could not write to the storage backend"));
+            } catch (IOException e) {
+                logger.error("Could not commit {} Applications to the storage backend", encoded.size(), e);
+                encoded.forEach(encodedApp -> failures.put(encodedApp.getAppId(), "Could not write to the storage backend"));
+            }
+
+        } else if (mutationLog != null) {
+
+            List<CompletableFuture<Void>> appends = new ArrayList<>(encoded.size());
+
+            for (EncodedApplication encodedApp : encoded)
+                appends.add(mutationLog.append(encodedApp.getAppId(), encodedApp.getStoredJson()));
+
+            for (int i = 0; i < encoded.size(); i++) {
+                try {
+                    appends.get(i).join();
+                    persisted.add(encoded.get(i));
+                } catch (CompletionException e) {
+                    logger.error("Could not log Application [{}]", encoded.get(i).getAppId(), e.getCause());
+                    failures.put(encoded.get(i).getAppId(), "Could not write to the write-ahead log");
+                }
+            }
+
+        } else {
+
+            for (EncodedApplication encodedApp : encoded) {
+                try {
+                    writeFile(encodedApp);
+                    persisted.add(encodedApp);
+                } catch (DaoException e) {
+                    failures.put(encodedApp.getAppId(), e.getMessage());
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            persisted.forEach(this::cache);
+        }
+
+        for (EncodedApplication encodedApp : persisted) {
+
+            replicate(encodedApp);
+            stamp(encodedApp);
+        }
+
+        logger.info("Bulk upserted {} applications, {} failed", persisted.size(), failures.size());
+
+        List<BulkResult> results = new ArrayList<>(applications.size());
+
+        for (int i = 0; i < applications.size(); i++) {
+
+            String appId = applications.get(i).getAppId();
+            String failure = failures.get(appId);
+
+            if (failure != null)
+                results.add(new BulkResult(i, appId, BulkResult.ERROR, failure));
+            else
+                results.add(new BulkResult(i, appId, created.contains(appId) ? BulkResult.CREATED : BulkResult.UPDATED, "OK"));
+        }
+
+        return results;
+    }
+
+
+    @Override
+    public List<Application> getAppsByIntent(String intent) {
+        return resolve(index.getAppIdsByIntent(intent));
+    }
+
+    @Override
+    public List<Application> getAppsByContext(String context) {
+        return resolve(index.getAppIdsByContext(context));
+    }
+
+    @Override
+    public List<Application> getAppsByPublisher(String publisher) {
+        return resolve(index.getAppIdsByPublisher(publisher));
+    }
+
+    @Override
+    public List<Application> getAppsByName(String name) {
+        return resolve(index.getAppIdsByName(name));
+    }
+
+    @Override
+    public List<EncodedApplication> resolveIntent(String intent, String context) {
+
+        //A blank context is no context, not a context type that nothing declares
+        Collection<String> appIds = context == null || context.trim().isEmpty() ? index.getAppIdsByIntent(intent) : index.getAppIdsByIntentAndContext(intent, context);
+        List<EncodedApplication> applications = new ArrayList<>(appIds.size());
+
+        for (String appId : appIds) {
+            EncodedApplication encodedApp = encodedApps.get(appId);
+            if (encodedApp != null)
+                applications.add(encodedApp);
+        }
+
+        return applications;
+    }
+
+
+    /**
+     * Search applications in appId order.
+     *
+     * @param search     Search criteria
+     * @param afterAppId Continue after this appId (exclusive), null to start from the beginning
+     * @param limit      Maximum number of applications to return, 0 for no limit
+     * @return Page of matching applications
+     */
+    @Override
+    public AppSearchPage searchApps(AppSearch search, String afterAppId, int limit) {
+
+        Iterator<EncodedApplication> matches = findApps(search, afterAppId);
+
+        List<Application> applications = new ArrayList<>();
+        String lastAppId = null;
+
+        while (matches.hasNext()) {
+
+            EncodedApplication encodedApp = matches.next();
+            applications.add(encodedApp.getApplication());
+
+            if (limit > 0 && applications.size() >= limit) {
+                lastAppId = encodedApp.getAppId();
+                break;
+            }
+        }
+
+        return new AppSearchPage(applications, lastAppId);
+    }
+
+
+    /**
+     * Rank applications by relevance to a free text query, see {@link TextIndex}.
+     * <p>
+     * Only applications matching at least one query term are ranked, and they must also match the other search
+     * criteria.  Pages are addressed by offset since the ranking is not in appId order.
+     *
+     * @param query  Free text query
+     * @param search Additional search criteria, null for none
+     * @param offset Number of best matches to skip
+     * @param limit  Maximum number of applications to return
+     * @return Matching encoded applications, best first
+     */
+    @Override
+    public List<EncodedApplication> rankApps(String query, AppSearch search, int offset, int limit) {
+
+        AppSearch criteria = search == null ? new AppSearch() : search;
+        String text = criteria.getText() == null ? null : criteria.getText().trim().toLowerCase(Locale.ROOT);
+
+        List<EncodedApplication> applications = new ArrayList<>();
+
+        for (TextIndex.Match match : textIndex.search(query, appId -> {
+            EncodedApplication encodedApp = encodedApps.get(appId);
+            return encodedApp != null && matches(encodedApp.getApplication(), criteria, text);
+        }, offset, limit)) {
+
+            EncodedApplication encodedApp = encodedApps.get(match.getAppId());
+
+            if (encodedApp != null)
+                applications.add(encodedApp);
+        }
+
+        return applications;
+    }
+
+
+    /**
+     * Autocomplete application names and titles, see {@link PrefixIndex}
+     *
+     * @param prefix Typed prefix
+     * @param limit  Maximum number of suggestions
+     * @return Suggestions, start of text matches first
+     */
+    @Override
+    public List<Suggestion> suggestApps(String prefix, int limit) {
+        return prefixIndex.suggest(prefix, limit);
+    }
+
+
+    /**
+     * Lazily search applications in appId order.
+     * <p>
+     * Candidates come from the smallest index entry among the indexed criteria (or the whole cache if no indexed
+     * criterion is given) and are checked against the remaining criteria as the iterator advances, so nothing is
+     * copied up front.
+     *
+     * @param search     Search criteria
+     * @param afterAppId Continue after this appId (exclusive), null to start from the beginning
+     * @return Iterator over matching encoded applications
+     */
+    @Override
+    public Iterator<EncodedApplication> findApps(AppSearch search, String afterAppId) {
+
+        AppSearch criteria = search == null ? new AppSearch() : search;
+
+        NavigableSet<String> candidates = null;
+
+        if (criteria.getName() != null)
+            candidates = smallest(candidates, index.getAppIdsByName(criteria.getName()));
+
+        if (criteria.getPublisher() != null)
+            candidates = smallest(candidates, index.getAppIdsByPublisher(criteria.getPublisher()));
+
+        if (criteria.getIntent() != null)
+            candidates = smallest(candidates, index.getAppIdsByIntent(criteria.getIntent()));
+
+        if (criteria.getContext() != null)
+            candidates = smallest(candidates, index.getAppIdsByContext(criteria.getContext()));
+
+        if (candidates == null)
+            candidates = apps.keySet();
+
+        if (afterAppId != null)
+            candidates = candidates.tailSet(afterAppId, false);
+
+        String text = criteria.getText() == null ? null : criteria.getText().trim().toLowerCase(Locale.ROOT);
+
+        Iterator<String> appIds = candidates.iterator();
+
+        return new Iterator<EncodedApplication>() {
+
+            private EncodedApplication next;
+
+            @Override
+            public boolean hasNext() {
+
+                while (next == null && appIds.hasNext()) {
+                    EncodedApplication encodedApp = encodedApps.get(appIds.next());
+
+                    if (encodedApp != null && matches(encodedApp.getApplication(), criteria, text))
+                        next = encodedApp;
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public EncodedApplication next() {
 
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                EncodedApplication current = next;
+                next = null;
+                return current;
+            }
+        };
     }
 
 
@@ -130,8 +750,6 @@ public class AppsDAOImpl implements org.fdc3.appd.poc.dao.AppsDAO {
     @Override
     public void prime() {
 
-        Gson gson = new Gson();
-
 
         File dir = new File(directory);
 
@@ -143,96 +761,455 @@ public class AppsDAOImpl implements org.fdc3.appd.poc.dao.AppsDAO {
         }
 
 
-        File[] files = dir.listFiles();
+        int parallelism = config.getInt(ConfigId.PRIME_THREADS, 8);
 
-        if (files == null) {
-            logger.error("Failed to load locate directory [{}] for Applications json pre-load..exiting", directory);
-            System.exit(1);
+        if (recordStore != null) {
+
+            //The searches need every application cached, so the storage backend is read in full
+            try {
+                if (recordStore.isMigrated())
+                    loadStore();
+                else
+                    migrate(parallelism);
+            } catch (IOException e) {
+                logger.error("Failed to load Applications from the storage backend..exiting", e);
+                System.exit(1);
+            }
+
+        } else {
+
+            //Snapshot first, then only the json files changed since
+            boolean loaded = localStore.load(parallelism, recordHandler);
+
+            if (!loaded) {
+                logger.error("Failed to load locate directory [{}] for Applications json pre-load..exiting", directory);
+                System.exit(1);
+            }
+
+            //Then the upserts not compacted into the json files yet
+            if (mutationLog != null) {
+                try {
+                    mutationLog.open(recordHandler);
+                } catch (IOException e) {
+                    logger.error("Failed to open Applications write-ahead log..exiting", e);
+                    System.exit(1);
+                }
+            }
         }
 
+        //Load from S3, then follow the changes made by other nodes
+        if (s3Resync != null) {
 
-        for (File file : files) {
+            if (!s3Resync.load())
+                logger.error("Could not list S3 applications [{}/{}]", config.get(ConfigId.S3_BUCKET), config.get(ConfigId.S3_JSON_APPS_PREFIX));
 
-            if (!file.getName().contains(".json"))
-                continue;
+            s3Resync.start();
+        }
 
-            logger.info("Loading data from file [{}]", file.getName());
-            try {
-                Application application = gson.fromJson(new FileReader(file), Application.class);
-                apps.put(application.getAppId(), application);
+        //The storage backend is the source of truth, the json directory is neither snapshotted nor watched
+        if (recordStore != null)
+            return;
 
-            } catch (IOException e) {
-                logger.error("Could not load json {} ", file.getName(), e);
+        localStore.startSnapshots(catalogVersion::get, () -> encodedApps.values().stream()
+                .map(encodedApp -> (Map.Entry<String, byte[]>) new AbstractMap.SimpleImmutableEntry<>(encodedApp.getAppId(), encodedApp.getStoredJson()))
+                .iterator());
+
+        //Apply json files dropped into the directory from now on
+        localStore.startWatching(recordHandler);
+    }
+
+
+    /**
+     * Cache the applications of the storage backend
+     *
+     * @throws IOException A record could not be parsed
+     */
+    private void loadStore() throws IOException {
+
+        long start = System.currentTimeMillis();
+        int count = 0;
+
+        for (Iterator<Map.Entry<String, byte[]>> records = recordStore.iterator(); records.hasNext(); count++) {
+            try {
+                recordHandler.load(new InputStreamReader(new ByteArrayInputStream(records.next().getValue()), StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                throw new IOException("Could not load Applications from the storage backend", e);
             }
         }
 
-        //Load from S3
-        if (config.getBoolean(ConfigId.S3_ENABLED, false)) {
+        logger.info("Loaded {} Applications from the storage backend in {} ms", count, System.currentTimeMillis() - start);
+    }
 
-            logger.debug("Attempting to load cache from S3 [{}/{}]", config.get(ConfigId.S3_BUCKET), config.get(ConfigId.S3_JSON_APPS_PREFIX));
-            List<S3ObjectSummary> allObjects = awsS3Client.getAllObjects(config.get(ConfigId.S3_BUCKET, ""), config.get(ConfigId.S3_JSON_APPS_PREFIX, "json"));
+    /**
+     * Populate the storage backend from the json directory, snapshot and write-ahead log of the json backend.  Runs
+     * once, the json directory is left in place.
+     *
+     * @param parallelism Number of files parsed in parallel
+     * @throws IOException Write-ahead log could not be replayed, or the store not committed
+     */
+    private void migrate(int parallelism) throws IOException {
 
-            if (allObjects != null) {
-                for (S3ObjectSummary objectSummary : allObjects) {
+        logger.info("Migrating Applications from [{}] to the storage backend", directory);
 
-                    if (!objectSummary.getKey().contains(".json"))
-                        continue;
+        if (!localStore.load(parallelism, recordHandler)) {
+            logger.error("Failed to load locate directory [{}] for Applications migration..exiting", directory);
+            System.exit(1);
+        }
+
+        //Upserts not compacted yet are replayed, and compacted into the json files by the close
+        if (config.getBoolean(ConfigId.WAL_ENABLED, true)) {
+            MutationLog log = new MutationLog("applications", Paths.get(directory, "wal"), localStore);
+            log.open(recordHandler);
+            log.close();
+        }
+
+        for (EncodedApplication encodedApp : encodedApps.values())
+            recordStore.put(encodedApp.getAppId(), encodedApp.getStoredJson(), null);
+
+        recordStore.setMigrated(directory);
+
+        logger.info("Migrated {} Applications to the storage backend", recordStore.size());
+    }
+
+
+    /**
+     * Encode an application definition to json once, for the response cache and persistence.  The revision is
+     * written as the first member, so every stored copy carries it, and skipped in responses.
+     *
+     * @param application Application to encode
+     * @param revision    Revision of the definition
+     * @return Encoded application
+     */
+    private EncodedApplication encode(Application application, long revision) {
+
+        String body = gson.toJson(application);
+        String prefix = "{\"" + RevisedApplication.REVISION + "\":" + revision + (body.length() > 2 ? "," : "");
+        byte[] bytes = (prefix + body.substring(1)).getBytes(StandardCharsets.UTF_8);
+
+        //The prefix is ascii, its length in bytes is its length in chars
+        return new EncodedApplication(application, bytes, prefix.length(), hash(bytes), revision);
+    }
+
+    /**
+     * Hex encoded SHA-256 of the given json
+     */
+    private static String hash(byte[] json) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProgramFault("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Leading 64 bits of an application hash, the contribution of the application to the catalog digest
+     */
+    private static long digestOf(EncodedApplication encodedApp) {
+        return encodedApp == null ? 0 : Long.parseUnsignedLong(encodedApp.getHash().substring(0, 16), 16);
+    }
+
+    /**
+     * Acquire the writer lock of an appId
+     *
+     * @param appId Application identification
+     * @return Held lock, to release with {@link #unlock(String, AppLock)}
+     */
+    private AppLock lock(String appId) {
+
+        AppLock appLock = appLocks.compute(appId, (key, current) -> {
+            AppLock held = current == null ? new AppLock() : current;
+            held.holders++;
+            return held;
+        });
+
+        appLock.lock.lock();
+
+        return appLock;
+    }
+
+    /**
+     * Release the writer lock of an appId, unmapping it once no writer holds or awaits it
+     */
+    private void unlock(String appId, AppLock appLock) {
+
+        appLock.lock.unlock();
+
+        appLocks.computeIfPresent(appId, (key, current) -> --current.holders == 0 ? null : current);
+    }
+
+    /**
+     * @return Number of appIds whose writer lock is held or awaited
+     */
+    int getLockedAppIds() {
+        return appLocks.size();
+    }
+
+    /**
+     * Put an application into the cache, replacing its encoded json and swapping its secondary index entries in the
+     * same step
+     *
+     * @param encodedApp Encoded application to cache
+     */
+    private void cache(EncodedApplication encodedApp) {
+
+        Application application = encodedApp.getApplication();
+
+        synchronized (writeLock) {
+            EncodedApplication previousEncoded = encodedApps.put(application.getAppId(), encodedApp);
+            Application previous = apps.put(application.getAppId(), application);
+            index.update(previous, application);
+            textIndex.update(previous, application);
+            prefixIndex.update(previous, application);
+            catalogDigest.addAndGet(digestOf(encodedApp) - digestOf(previousEncoded));
+            changeJournal.publish(ChangeEvent.UPSERT, application.getAppId(), catalogVersion.incrementAndGet(), previous, application);
+        }
+    }
+
+    /**
+     * Subscribe to catalog changes.  Every change of the cache is journaled, whether from an upsert, a json file or S3.
+     */
+    @Override
+    public void subscribe(Long lastEventId, ChangeListener listener) {
+        changeJournal.subscribe(lastEventId, listener);
+    }
+
+    @Override
+    public void unsubscribe(ChangeListener listener) {
+        changeJournal.unsubscribe(listener);
+    }
+
+    @Override
+    public List<ChangeEvent> getChangesSince(long version) {
+        return changeJournal.since(version);
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
+    /**
+     * The catalog digest is the sum of the leading 64 bits of every application hash, maintained incrementally on
+     * upsert, so it is independent of the order applications were loaded in.
+     *
+     * @return Hex encoded catalog digest
+     */
+    @Override
+    public String getCatalogDigest() {
+        return String.format("%016x", catalogDigest.get());
+    }
+
+
+    /**
+     * Pick the smaller of two candidate sets
+     */
+    private NavigableSet<String> smallest(NavigableSet<String> candidates, NavigableSet<String> appIds) {
+        return candidates == null || appIds.size() < candidates.size() ? appIds : candidates;
+    }
+
+    /**
+     * Check an application against all search criteria.  Index lookups are only used to find candidates, so every
+     * criterion is verified here against the cached definition.
+     *
+     * @param application Candidate application
+     * @param search      Search criteria
+     * @param text        Lower case free text criterion, may be null
+     * @return True if the application matches
+     */
+    private boolean matches(Application application, AppSearch search, String text) {
+
+        if (search.getName() != null && !equalsNormalized(search.getName(), application.getName()))
+            return false;
 
-                    Application application = gson.fromJson(new InputStreamReader(awsS3Client.getObject(objectSummary)), Application.class);
+        if (search.getPublisher() != null && !equalsNormalized(search.getPublisher(), application.getPublisher()))
+            return false;
 
-                    if (application.getAppId() != null) {
-                        apps.put(application.getAppId(), application);
-                    } else {
-                        logger.error("Could not prime the following object [{}]", objectSummary.getKey());
-                    }
+        if (search.getIntent() != null || search.getContext() != null) {
 
+            boolean intentFound = search.getIntent() == null;
+            boolean contextFound = search.getContext() == null;
 
+            if (application.getIntents() != null) {
+                for (Intent intent : application.getIntents()) {
+
+                    if (intent == null)
+                        continue;
+
+                    if (!intentFound && equalsNormalized(search.getIntent(), intent.getName()))
+                        intentFound = true;
+
+                    if (!contextFound && intent.getContexts() != null)
+                        contextFound = intent.getContexts().stream().anyMatch(context -> equalsNormalized(search.getContext(), context));
                 }
             }
 
+            if (!intentFound || !contextFound)
+                return false;
         }
+
+        if (text != null && !text.isEmpty()) {
+            return containsText(application.getName(), text) || containsText(application.getTitle(), text)
+                    || containsText(application.getTooltip(), text) || containsText(application.getDescription(), text);
+        }
+
+        return true;
+    }
+
+    private boolean equalsNormalized(String expected, String value) {
+        String normalized = AppIndex.normalize(value);
+        return normalized != null && normalized.equals(AppIndex.normalize(expected));
     }
 
+    private boolean containsText(String value, String text) {
+        return value != null && value.toLowerCase(Locale.ROOT).contains(text);
+    }
 
     /**
-     * Persist Application updates to cache
+     * Remove an application from the cache and the secondary indexes
      *
-     * @param application Application to persist
+     * @param appId Application to remove
+     */
+    private void uncache(String appId) {
+
+        synchronized (writeLock) {
+            EncodedApplication previousEncoded = encodedApps.remove(appId);
+            Application previous = apps.remove(appId);
+
+            if (previous == null)
+                return;
+
+            index.update(previous, null);
+            textIndex.update(previous, null);
+            prefixIndex.update(previous, null);
+            catalogDigest.addAndGet(-digestOf(previousEncoded));
+            changeJournal.publish(ChangeEvent.DELETE, appId, catalogVersion.incrementAndGet(), previous, null);
+        }
+    }
+
+    /**
+     * Resolve indexed appIds against the cache
+     *
+     * @param appIds AppIds from an index lookup
+     * @return Cached applications, in appId order
+     */
+    private List<Application> resolve(Collection<String> appIds) {
+
+        List<Application> applications = new ArrayList<>(appIds.size());
+
+        for (String appId : appIds) {
+            Application application = apps.get(appId);
+            if (application != null)
+                applications.add(application);
+        }
+
+        return applications;
+    }
+
+
+    /**
+     * Queue depth and lag of the S3 write-behind queue
+     *
+     * @return Replication metrics, null if S3 is disabled or written synchronously
+     */
+    @Override
+    public ReplicationStats getReplicationStats() {
+        return s3WriteBehind == null ? null : s3WriteBehind.getStats();
+    }
+
+
+    /**
+     * Persist Application updates to the storage backend or the write-ahead log (or the json file if the log is
+     * disabled), and S3
+     *
+     * @param encodedApp Encoded application to persist
      * @throws DaoException General data exception while persisting data
      */
-    private void persist(Application application) throws DaoException {
+    private void persist(EncodedApplication encodedApp) throws DaoException {
 
+        if (recordStore != null) {
 
-        String fileName = application.getAppId() + ".json";
+            try {
+                recordStore.put(encodedApp.getAppId(), encodedApp.getStoredJson(), null);
+                recordStore.commit(Collections.singleton(encodedApp.getAppId()));
+            } catch (IOException e) {
+                logger.error("Could not store Application [{}] for {}", encodedApp.getAppId(), encodedApp.getApplication().getName(), e);
+                throw new DaoException("Could not write [" + encodedApp.getAppId() + "] to the storage backend", e);
+            }
 
+        } else if (mutationLog != null) {
 
-        Gson gson = new Gson();
+            try {
+                mutationLog.write(encodedApp.getAppId(), encodedApp.getStoredJson());
+            } catch (IOException e) {
+                logger.error("Could not log Application [{}] for {}", encodedApp.getAppId(), encodedApp.getApplication().getName(), e);
+                throw new DaoException("Could not write [" + encodedApp.getAppId() + "] to the write-ahead log", e);
+            }
 
-        try {
-            FileWriter jsonFile = new FileWriter(Paths.get(directory, fileName).toString());
+        } else {
+            writeFile(encodedApp);
+        }
+
+        replicate(encodedApp);
+    }
+
+    /**
+     * Replace the json file of an application, when the write-ahead log is disabled.  Stamped once cached.
+     *
+     * @param encodedApp Encoded application to write
+     * @throws DaoException File could not be written
+     */
+    private void writeFile(EncodedApplication encodedApp) throws DaoException {
 
+        String fileName = encodedApp.getAppId() + ".json";
 
-            gson.toJson(application, jsonFile);
-            jsonFile.flush();
-            jsonFile.close();
+        try {
+            localStore.replaceFile(fileName, encodedApp.getAppId(), encodedApp.getStoredJson());
         } catch (IOException e) {
-            logger.error("Could not write Application file [{}] to disk for {}", fileName, application.getName(), e);
+            logger.error("Could not write Application file [{}] to disk for {}", fileName, encodedApp.getApplication().getName(), e);
             throw new DaoException("Could not write file [" + fileName + "] to disk", e);
         }
+    }
 
+    /**
+     * Let the json file of a persisted application be stamped, directly or by the write-ahead log compaction, now that
+     * the application is cached
+     *
+     * @param encodedApp Cached application
+     */
+    private void stamp(EncodedApplication encodedApp) {
 
-        if (config.getBoolean(ConfigId.S3_ENABLED, false)) {
+        if (mutationLog != null)
+            mutationLog.cached(encodedApp.getAppId(), encodedApp.getStoredJson());
+        else if (recordStore == null)
+            localStore.stamp(encodedApp.getAppId() + ".json", encodedApp.getAppId());
+    }
 
-            awsS3Client.putObject(
-                    config.get(ConfigId.S3_BUCKET, ""),
-                    Paths.get(config.get(ConfigId.S3_JSON_APPS_PREFIX, ""), fileName).toString(),
-                    new ByteArrayInputStream(gson.toJson(application).getBytes(StandardCharsets.UTF_8)),
-                    null);
+    /**
+     * Replicate an application to S3, if enabled
+     *
+     * @param encodedApp Encoded application to replicate
+     */
+    private void replicate(EncodedApplication encodedApp) {
 
+        if (!config.getBoolean(ConfigId.S3_ENABLED, false))
+            return;
 
-        }
+        String key = Paths.get(config.get(ConfigId.S3_JSON_APPS_PREFIX, ""), encodedApp.getAppId() + ".json").toString();
 
+        s3Resync.written(key, encodedApp.getAppId(), encodedApp.getStoredJson());
 
+        if (s3WriteBehind != null) {
+            s3WriteBehind.submit(key, encodedApp.getStoredJson());
+        } else {
+            awsS3Client.putObject(config.get(ConfigId.S3_BUCKET, ""), key, new ByteArrayInputStream(encodedApp.getStoredJson()), null);
+        }
     }
 
 
@@ -0,0 +1,325 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of the {@link RecordStore}s which collect puts and removes until the next commit.
+ * <p>
+ * Commits are serialized, each writes every change collected so far as one batch.  If the batch fails, its changes are
+ * written one by one, so a bad record does not fail the others.  Changes which still fail are dropped, never retried:
+ * the failure is reported to the next committer of their key, see {@link #commit(Collection)}.  Changes not committed
+ * explicitly are written within a second.
+ */
+public abstract class BufferedRecordStore implements RecordStore {
+
+    private static final int FLUSH_SIZE = 1000;
+
+
+    /**
+     * Change of a record not written yet
+     */
+    protected static class Change {
+        private final byte[] json;
+        private final String indexValue;
+
+        private Change(byte[] json, String indexValue) {
+            this.json = json;
+            this.indexValue = indexValue;
+        }
+
+        /**
+         * @return Record json, null for a removal
+         */
+        protected byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * @return Index value, null if not indexed
+         */
+        protected String getIndexValue() {
+            return indexValue;
+        }
+    }
+
+
+    private Logger logger = LoggerFactory.getLogger(BufferedRecordStore.class);
+
+    protected final String name;
+    private final Object commitLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    //Changes collected for the next commit, changes being written by it, keys of dropped changes, guarded by this
+    private Map<String, Change> pending = new HashMap<>();
+    private Map<String, Change> writing = Collections.emptyMap();
+    private final Set<String> failed = new HashSet<>();
+    private boolean closed;
+
+
+    /**
+     * @param name Name of the records
+     */
+    protected BufferedRecordStore(String name) {
+        this.name = name;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-store-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start the background writes, once the backend is open
+     */
+    protected void start() {
+
+        flusher.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, name + "-store-shutdown"));
+    }
+
+
+    /**
+     * @param key Record key
+     * @return Written record json, null if not found
+     */
+    protected abstract byte[] read(String key);
+
+    /**
+     * @param indexValue Index value
+     * @return Keys of the written records with this index value
+     */
+    protected abstract List<String> lookup(String indexValue);
+
+    /**
+     * Write changes atomically
+     *
+     * @param changes Changes by key
+     * @throws IOException Nothing was written
+     */
+    protected abstract void write(Map<String, Change> changes) throws IOException;
+
+    /**
+     * Close the backend, after the last write
+     */
+    protected abstract void closeStore();
+
+
+    @Override
+    public byte[] get(String key) {
+
+        if (key == null)
+            return null;
+
+        synchronized (this) {
+            Change change = changeOf(key);
+
+            if (change != null)
+                return change.json;
+        }
+
+        return read(key);
+    }
+
+    @Override
+    public String findKey(String indexValue) {
+
+        if (indexValue == null)
+            return null;
+
+        synchronized (this) {
+            for (Map<String, Change> changes : Arrays.asList(pending, writing)) {
+                for (Map.Entry<String, Change> change : changes.entrySet()) {
+                    if (change.getValue().json != null && indexValue.equals(change.getValue().indexValue) && changeOf(change.getKey()) == change.getValue())
+                        return change.getKey();
+                }
+            }
+        }
+
+        for (String key : lookup(indexValue)) {
+
+            //Skip records a change not written yet moves out of the index
+            synchronized (this) {
+                if (changeOf(key) == null)
+                    return key;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void put(String key, byte[] json, String indexValue) {
+        change(key, new Change(json, indexValue));
+    }
+
+    @Override
+    public void remove(String key) {
+        change(key, new Change(null, null));
+    }
+
+    private void change(String key, Change change) {
+
+        boolean full;
+
+        synchronized (this) {
+            pending.put(key, change);
+            full = pending.size() >= FLUSH_SIZE;
+        }
+
+        //Bounds the changes held for a commit, e.g. while migrating
+        if (full)
+            flush();
+    }
+
+    /**
+     * Latest change of a record not written yet, guarded by this
+     */
+    private Change changeOf(String key) {
+
+        Change change = pending.get(key);
+
+        return change != null ? change : writing.get(key);
+    }
+
+
+    /**
+     * A commit returns once the changes collected before it, whoever collected them, are written or dropped
+     */
+    @Override
+    public void commit(Collection<String> keys) throws IOException {
+
+        Set<String> reported = new TreeSet<>();
+
+        synchronized (commitLock) {
+
+            Map<String, Change> changes;
+
+            synchronized (this) {
+                changes = pending;
+                writing = changes;
+                pending = new HashMap<>();
+            }
+
+            Set<String> failures = changes.isEmpty() ? Collections.emptySet() : writeIsolated(changes);
+
+            synchronized (this) {
+                writing = Collections.emptyMap();
+
+                for (String key : changes.keySet()) {
+                    if (failures.contains(key))
+                        failed.add(key);
+                    else
+                        failed.remove(key);
+                }
+
+                for (String key : keys) {
+                    if (failed.remove(key))
+                        reported.add(key);
+                }
+            }
+        }
+
+        if (!reported.isEmpty())
+            throw new CommitException(name, reported);
+    }
+
+    /**
+     * Write changes as one batch, or one by one if the batch fails
+     *
+     * @return Keys of the changes which could not be written
+     */
+    private Set<String> writeIsolated(Map<String, Change> changes) {
+
+        try {
+            write(changes);
+            return Collections.emptySet();
+        } catch (IOException | RuntimeException e) {
+
+            if (changes.size() == 1) {
+                logger.error("Could not write {} {}, dropped", name, changes.keySet(), e);
+                return changes.keySet();
+            }
+
+            logger.warn("Could not write {} {} changes as a batch, writing them one by one", name, changes.size(), e);
+        }
+
+        Set<String> failures = new HashSet<>();
+
+        for (Map.Entry<String, Change> change : changes.entrySet()) {
+            try {
+                write(Collections.singletonMap(change.getKey(), change.getValue()));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Could not write {} [{}], dropped", name, change.getKey(), e);
+                failures.add(change.getKey());
+            }
+        }
+
+        return failures;
+    }
+
+    /**
+     * Write the collected changes, failures are reported to the committers of their keys
+     */
+    protected void flush() {
+        try {
+            commit(Collections.emptyList());
+        } catch (IOException e) {
+            logger.error("Could not write {} changes", name, e);
+        }
+    }
+
+    /**
+     * Write the collected changes and close the backend
+     */
+    @Override
+    public void close() {
+
+        synchronized (this) {
+            if (closed)
+                return;
+
+            closed = true;
+        }
+
+        flusher.shutdown();
+        flush();
+        closeStore();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.fdc3.appd.poc.dao.AppsDAO.ChangeListener;
+import org.fdc3.appd.poc.model.ChangeEvent;
+import org.fdc3.appd.server.model.Application;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory journal of the latest catalog changes, fanned out to change feed subscribers.
+ * <p>
+ * Events are kept in a fixed size ring buffer, the oldest event is overwritten by the newest.  The id of an event is
+ * the catalog version it produced, and every version is published, so the events after a version are a contiguous
+ * range of the ring.  The DAO starts its version from the startup time in microseconds, so a version from a previous
+ * run is always older than the journal and a client resuming from it is told to resync instead of missing changes.
+ * <p>
+ * Listeners are called on a single dispatcher thread, never on the thread making the change.  The backlog of a
+ * resuming subscriber is queued on the same thread before any later event, so every listener receives each event once
+ * and in order.  A listener throwing an exception is unsubscribed.
+ */
+public class ChangeJournal {
+
+    private Logger logger = LoggerFactory.getLogger(ChangeJournal.class);
+    private Configuration config = Configuration.get();
+
+    private final String name;
+    private final ChangeEvent[] ring = new ChangeEvent[Math.max(1, config.getInt(ConfigId.CHANGE_JOURNAL_SIZE, 10000))];
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService dispatcher;
+
+    //Id of the next event, guarded by this
+    private long next;
+    private final long first;
+
+
+    /**
+     * @param name    Name of the records, for logging and thread names
+     * @param version Catalog version before the first change
+     */
+    public ChangeJournal(String name, long version) {
+
+        this.name = name;
+        this.next = version + 1;
+        this.first = next;
+
+        dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-changes");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long heartbeat = config.getInt(ConfigId.CHANGE_HEARTBEAT, 15);
+
+        if (heartbeat > 0)
+            dispatcher.scheduleWithFixedDelay(() -> listeners.forEach(listener -> deliver(listener, null)), heartbeat, heartbeat, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Append an event and fan it out to the listeners
+     *
+     * @param type        Change type, see {@link ChangeEvent}
+     * @param appId       Changed record, null for a reset of all records
+     * @param version     Catalog version after the change, the next version after the last published one
+     * @param previous    Application before the change, null if none
+     * @param application Application after the change, null if none
+     * @return Published event
+     */
+    public synchronized ChangeEvent publish(String type, String appId, long version, Application previous, Application application) {
+
+        if (version != next)
+            throw new IllegalStateException("Catalog version " + version + " published out of order, expected " + next);
+
+        //The journal keeps the event without the applications, so replaced definitions are not retained
+        ring[(int) (next % ring.length)] = new ChangeEvent(version, type, appId, version);
+
+        ChangeEvent event = new ChangeEvent(version, type, appId, version, previous, application);
+        next++;
+
+        if (!listeners.isEmpty()) {
+            //Listeners subscribed later get this event from their backlog
+            Iterator<ChangeListener> targets = listeners.iterator();
+            dispatcher.execute(() -> targets.forEachRemaining(listener -> deliver(listener, event)));
+        }
+
+        return event;
+    }
+
+
+    /**
+     * Events published after the given id, i.e. the changes made since a catalog version
+     *
+     * @param since Last event id seen, or catalog version
+     * @return Events in id order, empty if none, null if events after the id are no longer retained
+     */
+    public synchronized List<ChangeEvent> since(long since) {
+
+        long oldest = Math.max(first, next - ring.length);
+
+        if (since < oldest - 1 || since >= next)
+            return null;
+
+        List<ChangeEvent> events = new ArrayList<>((int) (next - since - 1));
+
+        for (long id = since + 1; id < next; id++)
+            events.add(ring[(int) (id % ring.length)]);
+
+        return events;
+    }
+
+
+    /**
+     * Id of the last published event, or of the event before the first one
+     *
+     * @return Last event id
+     */
+    public synchronized long getLastId() {
+        return next - 1;
+    }
+
+
+    /**
+     * Subscribe to the events published after the given id
+     *
+     * @param lastEventId Last event id seen, null to only receive new events
+     * @param listener    Listener, told to resync first if events after the id are no longer retained
+     */
+    public synchronized void subscribe(Long lastEventId, ChangeListener listener) {
+
+        List<ChangeEvent> backlog = lastEventId == null ? new ArrayList<>() : since(lastEventId);
+        long lastId = next - 1;
+
+        listeners.add(listener);
+
+        dispatcher.execute(() -> {
+
+            try {
+                if (backlog == null) {
+                    listener.resync(lastId);
+                } else {
+                    for (ChangeEvent event : backlog)
+                        listener.changed(event);
+                }
+            } catch (Exception e) {
+                drop(listener, e);
+            }
+        });
+
+        logger.debug("{} change listeners on {}", listeners.size(), name);
+    }
+
+
+    /**
+     * @param listener Listener to remove
+     */
+    public void unsubscribe(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+
+    /**
+     * Deliver an event, or a heartbeat if null, dropping the listener if it fails
+     */
+    private void deliver(ChangeListener listener, ChangeEvent event) {
+
+        try {
+            if (event == null)
+                listener.idle();
+            else
+                listener.changed(event);
+        } catch (Exception e) {
+            drop(listener, e);
+        }
+    }
+
+    private void drop(ChangeListener listener, Exception e) {
+
+        if (listeners.remove(listener))
+            logger.debug("Dropped {} change listener", name, e);
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Changes of a {@link RecordStore} which could not be written, and were dropped
+ */
+public class CommitException extends IOException {
+
+    private final Set<String> keys;
+
+    /**
+     * @param name Name of the records
+     * @param keys Keys of the dropped changes
+     */
+    public CommitException(String name, Collection<String> keys) {
+        super("Could not write " + name + " " + new TreeSet<>(keys));
+        this.keys = Collections.unmodifiableSet(new TreeSet<>(keys));
+    }
+
+    /**
+     * @return Keys of the dropped changes
+     */
+    public Set<String> getKeys() {
+        return keys;
+    }
+}
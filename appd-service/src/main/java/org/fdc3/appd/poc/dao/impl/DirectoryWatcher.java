@@ -0,0 +1,144 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches a directory and reports the names of the files created, modified or deleted in it.
+ * <p>
+ * Events are debounced: names are collected until the directory has been quiet for the debounce delay, or at most for
+ * the maximum delay during a continuous burst, then reported as one batch.  An empty batch means events were lost
+ * (overflow) and the whole directory must be rescanned.
+ */
+public class DirectoryWatcher {
+
+    private Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private final String name;
+    private final Path directory;
+    private final long debounce;
+    private final long maxDelay;
+    private final Consumer<Set<String>> listener;
+
+    private WatchService watchService;
+    private Thread thread;
+
+
+    /**
+     * @param name      Name of the watched records, for logging and thread names
+     * @param directory Watched directory
+     * @param debounce  Quiet time in milliseconds before a batch is reported
+     * @param maxDelay  Maximum time in milliseconds a changed file waits to be reported
+     * @param listener  Receives batches of changed file names, or an empty set to rescan everything
+     */
+    public DirectoryWatcher(String name, Path directory, long debounce, long maxDelay, Consumer<Set<String>> listener) {
+        this.name = name;
+        this.directory = directory;
+        this.debounce = debounce;
+        this.maxDelay = Math.max(debounce, maxDelay);
+        this.listener = listener;
+    }
+
+
+    /**
+     * Start watching in a daemon thread
+     *
+     * @throws IOException The directory could not be watched
+     */
+    public synchronized void start() throws IOException {
+
+        if (thread != null)
+            return;
+
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        thread = new Thread(this::watchLoop, name + "-watcher");
+        thread.setDaemon(true);
+        thread.start();
+
+        logger.info("Watching [{}] for {} changes", directory, name);
+    }
+
+
+    private void watchLoop() {
+
+        Set<String> changed = new HashSet<>();
+        boolean overflow = false;
+        long first = 0;
+
+        try {
+            while (true) {
+
+                WatchKey key = changed.isEmpty() && !overflow ? watchService.take() : watchService.poll(debounce, TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+
+                    for (WatchEvent<?> event : key.pollEvents()) {
+
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add(event.context().toString());
+                        }
+                    }
+
+                    if (!key.reset()) {
+                        logger.error("Directory [{}] is no longer accessible, stopped watching {}", directory, name);
+                        return;
+                    }
+
+                    if (first == 0)
+                        first = System.currentTimeMillis();
+
+                    //Still bursting, wait for a quiet period unless the oldest change waited long enough
+                    if (System.currentTimeMillis() - first < maxDelay)
+                        continue;
+                }
+
+                if (changed.isEmpty() && !overflow)
+                    continue;
+
+                try {
+                    listener.accept(overflow ? new HashSet<>() : changed);
+                } catch (Exception e) {
+                    logger.error("Could not apply {} changes from [{}]", name, directory, e);
+                }
+
+                changed = new HashSet<>();
+                overflow = false;
+                first = 0;
+            }
+
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.info("Stopped watching [{}]", directory);
+        }
+    }
+
+}
@@ -0,0 +1,519 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link RecordStore} on a relational database, through a pooled JDBC connection shared by the DAOs.  An embedded
+ * database works as well, e.g. an in-memory H2 database (jdbc:h2:mem:appd;DB_CLOSE_DELAY=-1) for tests.
+ * <p>
+ * The records of a DAO are held in the table appd_name, by id, with the lookup index as an indexed column.  Every
+ * attribute gets a table appd_name_attribute of (id, attribute) rows indexed by value, for queries by company,
+ * publisher or intent.  Puts and removes are collected until the next commit, which writes them in one transaction of
+ * batched statements.  Index and attribute values are truncated to their VARCHAR(255) columns, so a long value cannot
+ * fail a write; a key over 255 characters does fail its own write.
+ */
+public class JdbcRecordStore extends BufferedRecordStore {
+
+    private static final String PREFIX = "appd_";
+    private static final String META = PREFIX + "meta";
+    private static final String MIGRATED = ".migrated";
+    private static final int PAGE_SIZE = 500;
+    private static final int VALUE_LENGTH = 255;
+
+    private static HikariDataSource dataSource;
+    private static int openStores;
+
+
+    private Logger logger = LoggerFactory.getLogger(JdbcRecordStore.class);
+    private Configuration config = Configuration.get();
+
+    private final String table;
+    private final String indexName;
+    private final Map<String, String> attributes;
+    private final DataSource pool;
+
+
+    /**
+     * Open the tables of a DAO, creating them if needed
+     *
+     * @param name       Name of the records
+     * @param indexName  Column of the lookup index, null if the records are not indexed
+     * @param attributes Json paths of the attributes to index by attribute name, arrays along a path are flattened,
+     *                   e.g. intent to intents.name
+     * @throws IOException Database not available, or tables could not be created
+     */
+    public JdbcRecordStore(String name, String indexName, Map<String, String> attributes) throws IOException {
+        super(name);
+        this.table = PREFIX + name;
+        this.indexName = indexName;
+        this.attributes = attributes;
+        this.pool = acquire(name);
+
+        try {
+            createTables();
+        } catch (SQLException e) {
+            release();
+            throw new IOException("Could not create " + name + " tables", e);
+        }
+
+        start();
+    }
+
+
+    /**
+     * Connection pool shared by the stores, created by the first one
+     */
+    private static synchronized DataSource acquire(String name) throws IOException {
+
+        if (dataSource == null) {
+
+            Configuration config = Configuration.get();
+            String url = config.get(ConfigId.STORAGE_JDBC_URL, "jdbc:h2:./" + config.get(ConfigId.STORAGE_DIR, "store") + "/appd");
+
+            HikariConfig hikari = new HikariConfig();
+            hikari.setPoolName("appd-jdbc");
+            hikari.setJdbcUrl(url);
+            hikari.setUsername(config.get(ConfigId.STORAGE_JDBC_USER, ""));
+            hikari.setPassword(config.get(ConfigId.STORAGE_JDBC_PASSWORD, ""));
+            hikari.setMaximumPoolSize(config.getInt(ConfigId.STORAGE_JDBC_POOL_SIZE, 10));
+
+            //H2 and PostgreSQL cache prepared statements per connection by default, MySQL must be told to
+            if (url.startsWith("jdbc:mysql:")) {
+                hikari.addDataSourceProperty("cachePrepStmts", "true");
+                hikari.addDataSourceProperty("prepStmtCacheSize", "250");
+                hikari.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+                hikari.addDataSourceProperty("useServerPrepStmts", "true");
+            }
+
+            try {
+                dataSource = new HikariDataSource(hikari);
+            } catch (RuntimeException e) {
+                throw new IOException("Could not connect " + name + " to [" + url + "]", e);
+            }
+        }
+
+        openStores++;
+        return dataSource;
+    }
+
+    /**
+     * Close the shared pool with the last store
+     */
+    private static synchronized void release() {
+
+        if (--openStores == 0 && dataSource != null) {
+            dataSource.close();
+            dataSource = null;
+        }
+    }
+
+
+    private void createTables() throws SQLException {
+
+        String jsonType = config.get(ConfigId.STORAGE_JDBC_JSON_TYPE, "CLOB");
+
+        try (Connection connection = pool.getConnection()) {
+
+            createTable(connection, META, "CREATE TABLE " + META + " (meta_key VARCHAR(255) PRIMARY KEY, meta_value VARCHAR(1024))");
+
+            if (indexName == null) {
+                createTable(connection, table, "CREATE TABLE " + table + " (id VARCHAR(255) PRIMARY KEY, json " + jsonType + ")");
+            } else {
+                createTable(connection, table, "CREATE TABLE " + table + " (id VARCHAR(255) PRIMARY KEY, " + indexName + " VARCHAR(255), json " + jsonType + ")",
+                        "CREATE INDEX " + table + "_" + indexName + "_idx ON " + table + " (" + indexName + ")");
+            }
+
+            for (String attribute : attributes.keySet()) {
+                String attributeTable = table + "_" + attribute;
+
+                createTable(connection, attributeTable, "CREATE TABLE " + attributeTable + " (id VARCHAR(255) NOT NULL, " + attribute + " VARCHAR(255) NOT NULL)",
+                        "CREATE INDEX " + attributeTable + "_idx ON " + attributeTable + " (" + attribute + ")",
+                        "CREATE INDEX " + attributeTable + "_id_idx ON " + attributeTable + " (id)");
+            }
+        }
+    }
+
+    /**
+     * Create a table and its indexes unless it exists, checked with a query rather than the vendor specific metadata
+     */
+    private void createTable(Connection connection, String tableName, String... ddl) throws SQLException {
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeQuery("SELECT 1 FROM " + tableName + " WHERE 1 = 0").close();
+            return;
+        } catch (SQLException e) {
+            logger.info("Creating table {}", tableName);
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : ddl)
+                statement.execute(sql);
+        }
+    }
+
+
+    @Override
+    protected byte[] read(String key) {
+
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT json FROM " + table + " WHERE id = ?")) {
+
+            statement.setString(1, key);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1).getBytes(StandardCharsets.UTF_8) : null;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read " + name + " [" + key + "]", e);
+        }
+    }
+
+    /**
+     * Index values are compared truncated as stored, callers check the record of a long value
+     */
+    @Override
+    protected List<String> lookup(String indexValue) {
+
+        if (indexName == null)
+            return Collections.emptyList();
+
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT id FROM " + table + " WHERE " + indexName + " = ?")) {
+
+            statement.setString(1, truncate(indexValue));
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+
+                List<String> keys = new ArrayList<>();
+
+                while (resultSet.next())
+                    keys.add(resultSet.getString(1));
+
+                return keys;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not look up " + name + " " + indexName, e);
+        }
+    }
+
+    /**
+     * Value cut to its VARCHAR column, without splitting a surrogate pair
+     */
+    private static String truncate(String value) {
+
+        if (value == null || value.length() <= VALUE_LENGTH)
+            return value;
+
+        int end = Character.isHighSurrogate(value.charAt(VALUE_LENGTH - 1)) ? VALUE_LENGTH - 1 : VALUE_LENGTH;
+
+        return value.substring(0, end);
+    }
+
+
+    /**
+     * Replace the rows of the changed records in one transaction: deletes, then inserts, each as one batch per table
+     */
+    @Override
+    protected void write(Map<String, Change> changes) throws IOException {
+
+        try (Connection connection = pool.getConnection()) {
+
+            connection.setAutoCommit(false);
+
+            try {
+                for (String attribute : attributes.keySet())
+                    deleteBatch(connection, table + "_" + attribute, changes.keySet());
+
+                deleteBatch(connection, table, changes.keySet());
+
+                String insert = indexName == null ? "INSERT INTO " + table + " (id, json) VALUES (?, ?)"
+                        : "INSERT INTO " + table + " (id, " + indexName + ", json) VALUES (?, ?, ?)";
+
+                Map<String, List<String[]>> rows = new HashMap<>();
+
+                try (PreparedStatement statement = connection.prepareStatement(insert)) {
+
+                    for (Map.Entry<String, Change> change : changes.entrySet()) {
+
+                        if (change.getValue().getJson() == null)
+                            continue;
+
+                        int column = 1;
+                        statement.setString(column++, change.getKey());
+
+                        if (indexName != null)
+                            statement.setString(column++, truncate(change.getValue().getIndexValue()));
+
+                        statement.setString(column, new String(change.getValue().getJson(), StandardCharsets.UTF_8));
+                        statement.addBatch();
+
+                        collect(change.getKey(), change.getValue().getJson(), rows);
+                    }
+
+                    statement.executeBatch();
+                }
+
+                for (String attribute : attributes.keySet()) {
+                    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + table + "_" + attribute + " (id, " + attribute + ") VALUES (?, ?)")) {
+
+                        for (String[] row : rows.getOrDefault(attribute, Collections.emptyList())) {
+                            statement.setString(1, row[0]);
+                            statement.setString(2, row[1]);
+                            statement.addBatch();
+                        }
+
+                        statement.executeBatch();
+                    }
+                }
+
+                connection.commit();
+
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write " + changes.size() + " " + name + " changes", e);
+        }
+    }
+
+    private static void deleteBatch(Connection connection, String tableName, Iterable<String> keys) throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + tableName + " WHERE id = ?")) {
+
+            for (String key : keys) {
+                statement.setString(1, key);
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Collect the attribute values of a record as (id, value) rows by attribute
+     */
+    private void collect(String key, byte[] json, Map<String, List<String[]>> rows) {
+
+        JsonElement record;
+
+        try {
+            record = new JsonParser().parse(new String(json, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            logger.warn("Not indexing {} [{}], invalid json", name, key, e);
+            return;
+        }
+
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+
+            List<String> found = new ArrayList<>();
+            resolve(record, attribute.getValue().split("\\."), 0, found);
+
+            for (String value : found)
+                rows.computeIfAbsent(attribute.getKey(), k -> new ArrayList<>()).add(new String[]{key, truncate(value)});
+        }
+    }
+
+    /**
+     * Values at a json path, flattening the arrays along it
+     */
+    private static void resolve(JsonElement element, String[] path, int depth, List<String> values) {
+
+        if (element == null || element.isJsonNull())
+            return;
+
+        if (element.isJsonArray()) {
+            for (JsonElement item : element.getAsJsonArray())
+                resolve(item, path, depth, values);
+
+        } else if (depth == path.length) {
+            if (element.isJsonPrimitive())
+                values.add(element.getAsString());
+
+        } else if (element.isJsonObject()) {
+            resolve(element.getAsJsonObject().get(path[depth]), path, depth + 1, values);
+        }
+    }
+
+
+    /**
+     * Records are read in pages by id, so no connection is held between pages.  Pending changes are written first.
+     */
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+
+        flush();
+
+        return new Iterator<Map.Entry<String, byte[]>>() {
+
+            private final Deque<Map.Entry<String, byte[]>> page = new ArrayDeque<>();
+            private String lastKey;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+
+                if (page.isEmpty() && !done) {
+                    readPage(lastKey, page);
+                    done = page.size() < PAGE_SIZE;
+
+                    if (!page.isEmpty())
+                        lastKey = page.peekLast().getKey();
+                }
+
+                return !page.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                return page.poll();
+            }
+        };
+    }
+
+    private void readPage(String afterKey, Deque<Map.Entry<String, byte[]>> page) {
+
+        String query = "SELECT id, json FROM " + table + (afterKey == null ? "" : " WHERE id > ?") + " ORDER BY id";
+
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(query)) {
+
+            statement.setMaxRows(PAGE_SIZE);
+
+            if (afterKey != null)
+                statement.setString(1, afterKey);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next())
+                    page.add(new AbstractMap.SimpleImmutableEntry<>(resultSet.getString(1), resultSet.getString(2).getBytes(StandardCharsets.UTF_8)));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read " + name + " after [" + afterKey + "]", e);
+        }
+    }
+
+    @Override
+    public long size() {
+
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not count " + name, e);
+        }
+    }
+
+    @Override
+    public boolean isMigrated() {
+
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT meta_value FROM " + META + " WHERE meta_key = ?")) {
+
+            statement.setString(1, name + MIGRATED);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read " + name + " migration marker", e);
+        }
+    }
+
+    @Override
+    public void setMigrated(String source) throws IOException {
+
+        flush();
+
+        try (Connection connection = pool.getConnection()) {
+
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + META + " WHERE meta_key = ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + META + " (meta_key, meta_value) VALUES (?, ?)")) {
+
+                delete.setString(1, name + MIGRATED);
+                delete.executeUpdate();
+
+                insert.setString(1, name + MIGRATED);
+                insert.setString(2, source);
+                insert.executeUpdate();
+
+                connection.commit();
+
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write " + name + " migration marker", e);
+        }
+    }
+
+    /**
+     * Release the shared pool
+     */
+    @Override
+    protected void closeStore() {
+
+        release();
+
+        logger.info("Closed {} store", name);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams json records into a DAO cache with a {@link JsonReader}, one record at a time.
+ * <p>
+ * A source holds either a single record object, or a bundle: an array of record objects.  Bundle elements are parsed
+ * and handed over one by one, so a large bundle is never materialized as a whole.  The JsonReader reads the source in
+ * chunks of its own, so sources need no extra buffering.  The caller owns the source and closes it.
+ *
+ * @param <T> Record type
+ */
+public class JsonStreamLoader<T> {
+
+    /**
+     * Caches a parsed record
+     */
+    public interface RecordConsumer<T> {
+
+        /**
+         * @param record Parsed record
+         * @return Key of the cached record, null if the record was skipped
+         * @throws Exception Record could not be cached
+         */
+        String accept(T record) throws Exception;
+    }
+
+
+    private final Gson gson;
+    private final Class<T> type;
+
+
+    /**
+     * @param gson Gson instance
+     * @param type Record type
+     */
+    public JsonStreamLoader(Gson gson, Class<T> type) {
+        this.gson = gson;
+        this.type = type;
+    }
+
+
+    /**
+     * Parse a record or a bundle of records
+     *
+     * @param json     Json source
+     * @param consumer Caches each record
+     * @return Keys of the cached records
+     * @throws Exception Json is malformed or a record could not be cached
+     */
+    public List<String> load(Reader json, RecordConsumer<T> consumer) throws Exception {
+
+        JsonReader reader = new JsonReader(json);
+        List<String> keys = new ArrayList<>();
+
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+
+            reader.beginArray();
+
+            while (reader.hasNext())
+                accept(reader, consumer, keys);
+
+            reader.endArray();
+
+        } else {
+            accept(reader, consumer, keys);
+        }
+
+        //Fails on trailing content
+        reader.peek();
+
+        return keys;
+    }
+
+
+    /**
+     * Parse a record or a bundle of records, without caching them.  Unlike {@link #load(Reader, RecordConsumer)}, the
+     * records of a bundle are all held in memory.
+     *
+     * @param json Json source
+     * @return Parsed records, in source order
+     * @throws Exception Json is malformed
+     */
+    public List<T> parse(Reader json) throws Exception {
+
+        List<T> records = new ArrayList<>();
+
+        load(json, record -> {
+            records.add(record);
+            return null;
+        });
+
+        return records;
+    }
+
+
+    private void accept(JsonReader reader, RecordConsumer<T> consumer, List<String> keys) throws Exception {
+
+        T record = gson.fromJson(reader, type);
+        String key = consumer.accept(record);
+
+        if (key != null)
+            keys.add(key);
+    }
+
+}
@@ -0,0 +1,566 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.fdc3.appd.poc.dao.impl.SnapshotFile.FileStamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Local json directory of a DAO, with a binary snapshot for fast warm restarts.
+ * <p>
+ * The json files stay the source of truth.  At startup the snapshot is loaded first, then the directory is reconciled
+ * against the snapshot manifest: only new or changed files are parsed, and records of deleted files are removed.
+ * The snapshot is rewritten periodically when the cache changed, and on shutdown.  Once loaded, the directory can be
+ * watched so files dropped in by other tools are applied without a restart.
+ * <p>
+ * A record is written to its own file, key.json, which takes precedence over the same record in a bundle file whatever
+ * the load order: bundle entries with an own file are skipped, and restored from their bundles if the own file goes.
+ */
+public class LocalJsonStore {
+
+    /**
+     * Parses json records into the DAO cache
+     */
+    public interface RecordHandler {
+
+        /**
+         * Parse json and cache the records it holds
+         *
+         * @param json Json source
+         * @return Keys of the cached records
+         * @throws Exception Json could not be parsed or cached
+         */
+        default Collection<String> load(Reader json) throws Exception {
+            return load(json, key -> true);
+        }
+
+        /**
+         * Parse json and cache the accepted records it holds
+         *
+         * @param json   Json source
+         * @param accept Keys of the records to cache, the others are skipped
+         * @return Keys of the cached records
+         * @throws Exception Json could not be parsed or cached
+         */
+        Collection<String> load(Reader json, Predicate<String> accept) throws Exception;
+
+        /**
+         * Parse json without caching it, so sources can be parsed concurrently and cached in a set order.  By default
+         * the json is only read, and parsed when cached.
+         *
+         * @param json Json source, fully read before returning
+         * @return Caches the parsed records and returns their keys
+         * @throws Exception Json could not be read or parsed
+         */
+        default Callable<Collection<String>> parse(Reader json) throws Exception {
+
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+
+            while ((read = json.read(buffer)) != -1)
+                text.append(buffer, 0, read);
+
+            return () -> load(new StringReader(text.toString()));
+        }
+
+        /**
+         * Remove a record from the cache
+         *
+         * @param key Record key
+         */
+        void remove(String key);
+    }
+
+
+    private static final String SNAPSHOT_FILE = "appd.snapshot";
+
+    private Logger logger = LoggerFactory.getLogger(LocalJsonStore.class);
+    private Configuration config = Configuration.get();
+
+    private final String name;
+    private final Path directory;
+    private final Path snapshotPath;
+    private final boolean snapshotEnabled = config.getBoolean(ConfigId.SNAPSHOT_ENABLED, true);
+
+    private final ConcurrentMap<String, FileStamp> stamps = new ConcurrentHashMap<>();
+    //Json file of the records loaded from a file other than their own, e.g. a bundle
+    private final ConcurrentMap<String, String> bundles = new ConcurrentHashMap<>();
+    //Stamps of the files the DAO wrote whose record is not cached yet, only skipped by the watcher
+    private final ConcurrentMap<String, FileStamp> written = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private LongSupplier version;
+    private Supplier<Iterator<Map.Entry<String, byte[]>>> records;
+    private long snapshotVersion = -1;
+    private DirectoryWatcher watcher;
+
+
+    /**
+     * @param name      Name of the records, for logging and thread names
+     * @param directory Local json directory
+     */
+    public LocalJsonStore(String name, String directory) {
+        this.name = name;
+        this.directory = Paths.get(directory);
+        this.snapshotPath = this.directory.resolve(SNAPSHOT_FILE);
+    }
+
+
+    /**
+     * Load the snapshot, then reconcile it with the local json files
+     *
+     * @param parallelism Number of records or files parsed in parallel
+     * @param handler     Record handler
+     * @return False if the directory could not be listed
+     */
+    public boolean load(int parallelism, RecordHandler handler) {
+
+        File[] files = directory.toFile().listFiles();
+
+        if (files == null)
+            return false;
+
+        SnapshotFile snapshot = null;
+
+        if (snapshotEnabled) {
+            try {
+                snapshot = SnapshotFile.read(snapshotPath);
+            } catch (IOException | RuntimeException e) {
+                //A corrupt snapshot is only a slower start
+                logger.warn("Ignoring {} snapshot [{}], all json files will be parsed", name, snapshotPath, e);
+            }
+        }
+
+        Map<String, FileStamp> manifest = snapshot == null ? Collections.emptyMap() : snapshot.getManifest();
+
+        if (snapshot != null) {
+            logger.info("Loading {} {} from snapshot [{}]", snapshot.getRecords().size(), name, snapshotPath);
+
+            new ParallelLoader<Map.Entry<String, byte[]>>(name + " snapshot", parallelism).load(snapshot.getRecords().entrySet(), Map.Entry::getKey,
+                    record -> handler.load(new InputStreamReader(new ByteArrayInputStream(record.getValue()), StandardCharsets.UTF_8)));
+        }
+
+        //Reconcile, the json files win over the snapshot
+        Set<String> present = new HashSet<>();
+        List<File> changed = new ArrayList<>();
+
+        for (File file : files) {
+
+            if (!file.getName().contains(".json"))
+                continue;
+
+            present.add(file.getName());
+
+            FileStamp known = manifest.get(file.getName());
+
+            if (known != null && known.sameFile(stampOf(file, known.getKeys()))) {
+                putStamp(file.getName(), known);
+            } else {
+                changed.add(file);
+            }
+        }
+
+        boolean ownRemoved = false;
+
+        for (Map.Entry<String, FileStamp> entry : manifest.entrySet()) {
+            if (!present.contains(entry.getKey())) {
+                logger.info("Json file [{}] was removed, dropping {}", entry.getKey(), entry.getValue().getKeys());
+                drop(entry.getKey(), entry.getValue(), handler);
+                ownRemoved |= isOwnFile(entry.getKey(), entry.getValue());
+            }
+        }
+
+        //Bundle entries skipped for a removed own file are restored
+        if (ownRemoved) {
+            for (Map.Entry<String, FileStamp> entry : manifest.entrySet()) {
+
+                File file = directory.resolve(entry.getKey()).toFile();
+
+                if (present.contains(entry.getKey()) && !isOwnFile(entry.getKey(), entry.getValue()) && !changed.contains(file))
+                    changed.add(file);
+            }
+        }
+
+        if (snapshot != null)
+            logger.info("{} of {} {} json files changed since the snapshot", changed.size(), present.size(), name);
+
+        new ParallelLoader<File>(name, parallelism).load(changed, File::getName, file -> loadFile(file, manifest.get(file.getName()), handler));
+
+        return true;
+    }
+
+
+    /**
+     * Watch the directory and apply the json files created, modified or deleted after the load, see
+     * {@link DirectoryWatcher}.  Files the DAO wrote itself are recognized by their stamp and skipped.
+     *
+     * @param handler Record handler
+     */
+    public synchronized void startWatching(RecordHandler handler) {
+
+        if (watcher != null || !config.getBoolean(ConfigId.JSON_WATCH_ENABLED, true))
+            return;
+
+        long debounce = config.getInt(ConfigId.JSON_WATCH_DEBOUNCE, 100);
+
+        watcher = new DirectoryWatcher(name, directory, debounce, 500, fileNames -> reload(fileNames, handler));
+
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            logger.error("Could not watch {} directory [{}], changes require a restart", name, directory, e);
+        }
+    }
+
+
+    /**
+     * Apply changed json files to the cache
+     *
+     * @param fileNames Changed file names, empty to rescan the whole directory
+     * @param handler   Record handler
+     */
+    private void reload(Set<String> fileNames, RecordHandler handler) {
+
+        Set<String> names = new HashSet<>(fileNames);
+
+        if (names.isEmpty()) {
+            logger.warn("Lost {} file events, rescanning [{}]", name, directory);
+
+            File[] files = directory.toFile().listFiles();
+
+            if (files != null) {
+                for (File file : files)
+                    names.add(file.getName());
+            }
+
+            names.addAll(stamps.keySet());
+        }
+
+        int loaded = 0;
+        int removed = 0;
+        boolean ownRemoved = false;
+
+        for (String fileName : names) {
+
+            if (!fileName.contains(".json"))
+                continue;
+
+            File file = directory.resolve(fileName).toFile();
+            FileStamp known = stamps.get(fileName);
+
+            if (!file.exists()) {
+                if (known != null && removeStamp(fileName, known)) {
+                    logger.info("Json file [{}] was removed, dropping {}", fileName, known.getKeys());
+                    drop(fileName, known, handler);
+                    ownRemoved |= isOwnFile(fileName, known);
+                    removed++;
+                }
+                continue;
+            }
+
+            if (known != null && known.sameFile(stampOf(file, known.getKeys())))
+                continue;
+
+            FileStamp own = written.get(fileName);
+
+            if (own != null && own.sameFile(stampOf(file, own.getKeys())))
+                continue;
+
+            try {
+                loadFile(file, known, handler);
+                loaded++;
+            } catch (Exception e) {
+                //Possibly still being written, the next event retries
+                logger.error("Could not reload {} from [{}]", name, fileName, e);
+            }
+        }
+
+        //Bundle entries skipped for a removed own file are restored
+        if (ownRemoved) {
+            for (Map.Entry<String, FileStamp> entry : stamps.entrySet()) {
+
+                if (isOwnFile(entry.getKey(), entry.getValue()) || names.contains(entry.getKey()))
+                    continue;
+
+                try {
+                    loadFile(directory.resolve(entry.getKey()).toFile(), entry.getValue(), handler);
+                    loaded++;
+                } catch (Exception e) {
+                    logger.error("Could not reload {} from [{}]", name, entry.getKey(), e);
+                }
+            }
+        }
+
+        if (loaded > 0 || removed > 0)
+            logger.info("Reloaded {} {} json files, removed {}", loaded, name, removed);
+    }
+
+
+    /**
+     * Parse a json file into the cache, removing the records the previous version held and the new one does not
+     *
+     * @param file     Json file
+     * @param previous Stamp of the previous version, if any
+     * @param handler  Record handler
+     * @throws Exception File could not be read or parsed
+     */
+    private void loadFile(File file, FileStamp previous, RecordHandler handler) throws Exception {
+
+        logger.debug("Loading data from file [{}]", file.getName());
+
+        //Stamp before reading, a concurrent change shows up as a different stamp on the next check
+        FileStamp stamp = stampOf(file, Collections.emptyList());
+        Collection<String> keys;
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            keys = handler.load(reader, key -> !isOwnedElsewhere(file.getName(), key));
+        }
+
+        if (previous != null) {
+            for (String key : previous.getKeys()) {
+                if (!keys.contains(key) && !isOwnedElsewhere(file.getName(), key))
+                    handler.remove(key);
+            }
+        }
+
+        putStamp(file.getName(), new FileStamp(keys, stamp.getModified(), stamp.getSize()));
+    }
+
+
+    /**
+     * Json file a record was loaded from, when it is not its own file key.json, e.g. a bundle.  The DAO reads such
+     * records back from that file: they are never moved to their own file, so the file stays the one to edit.
+     *
+     * @param key Record key
+     * @return File name, null if the record was not loaded from another file
+     */
+    public String getBundle(String key) {
+        return bundles.get(key);
+    }
+
+    /**
+     * Record the stamp of a json file the DAO just wrote.  Must be called after the record is cached, so a snapshot
+     * never pairs a new stamp with an older record.
+     *
+     * @param fileName Json file name
+     * @param key      Record key held by the file
+     */
+    public void stamp(String fileName, String key) {
+
+        File file = directory.resolve(fileName).toFile();
+
+        if (file.exists())
+            putStamp(fileName, stampOf(file, Collections.singletonList(key)));
+
+        written.remove(fileName);
+    }
+
+
+    /**
+     * Atomically replace a json file with the given content and record its stamp.  The record must already be
+     * cached, see {@link #stamp(String, String)}.
+     *
+     * @param fileName Json file name
+     * @param key      Record key held by the file
+     * @param json     File content
+     * @throws IOException File could not be written, the previous file is left untouched
+     */
+    public void writeFile(String fileName, String key, byte[] json) throws IOException {
+
+        replaceFile(fileName, key, json);
+        stamp(fileName, key);
+    }
+
+    /**
+     * Atomically replace a json file with the given content, for a record cached afterwards.  The file is stamped
+     * before it is moved in place so the watcher never reloads it; the caller records its stamp once the record is
+     * cached, see {@link #stamp(String, String)}.
+     *
+     * @param fileName Json file name
+     * @param key      Record key held by the file
+     * @param json     File content
+     * @throws IOException File could not be written, the previous file is left untouched
+     */
+    public void replaceFile(String fileName, String key, byte[] json) throws IOException {
+
+        Path tmp = directory.resolve("." + UUID.randomUUID() + ".part");
+
+        try {
+            Files.write(tmp, json);
+
+            //The move keeps the modification time and size
+            written.put(fileName, stampOf(tmp.toFile(), Collections.singletonList(key)));
+            Files.move(tmp, directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            written.remove(fileName);
+            throw e;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+
+    /**
+     * Write snapshots every interval while the cache changes, and once more on shutdown
+     *
+     * @param version Cache version, a snapshot is only written if it changed since the last one
+     * @param records Supplies the cached records as key to json bytes
+     */
+    public synchronized void startSnapshots(LongSupplier version, Supplier<Iterator<Map.Entry<String, byte[]>>> records) {
+
+        if (!snapshotEnabled || scheduler != null)
+            return;
+
+        this.version = version;
+        this.records = records;
+
+        long interval = config.getInt(ConfigId.SNAPSHOT_INTERVAL, 300);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (interval > 0)
+            scheduler.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::snapshot, name + "-snapshot-shutdown"));
+    }
+
+
+    /**
+     * Write a snapshot if the cache changed since the last one
+     */
+    public void snapshot() {
+        snapshot(false);
+    }
+
+    /**
+     * Write a snapshot
+     *
+     * @param force Write even if the cache did not change, e.g. because json files were rewritten
+     */
+    public synchronized void snapshot(boolean force) {
+
+        if (version == null)
+            return;
+
+        long current = version.getAsLong();
+
+        if (current == snapshotVersion && !force)
+            return;
+
+        try {
+            //Manifest first: every stamp in it was taken after its record was cached
+            Map<String, FileStamp> manifest = new HashMap<>(stamps);
+
+            long start = System.currentTimeMillis();
+            int count = SnapshotFile.write(snapshotPath, manifest, records.get());
+
+            snapshotVersion = current;
+            logger.info("Wrote {} {} to snapshot [{}] in {} ms", count, name, snapshotPath, System.currentTimeMillis() - start);
+
+        } catch (Exception e) {
+            logger.error("Could not write {} snapshot [{}]", name, snapshotPath, e);
+        }
+    }
+
+
+    /**
+     * Remove the records of a removed json file, except those held by their own file
+     */
+    private void drop(String fileName, FileStamp stamp, RecordHandler handler) {
+
+        for (String key : stamp.getKeys()) {
+            if (!isOwnedElsewhere(fileName, key))
+                handler.remove(key);
+        }
+    }
+
+    /**
+     * @return True if a record of a json file, e.g. a bundle, has its own file which takes precedence
+     */
+    private boolean isOwnedElsewhere(String fileName, String key) {
+
+        String ownFile = key + ".json";
+
+        return !fileName.equals(ownFile) && directory.resolve(ownFile).toFile().exists();
+    }
+
+    private void putStamp(String fileName, FileStamp stamp) {
+
+        FileStamp previous = stamps.put(fileName, stamp);
+
+        if (previous != null)
+            previous.getKeys().forEach(key -> bundles.remove(key, fileName));
+
+        if (!isOwnFile(fileName, stamp))
+            stamp.getKeys().forEach(key -> bundles.put(key, fileName));
+    }
+
+    private boolean removeStamp(String fileName, FileStamp stamp) {
+
+        if (!stamps.remove(fileName, stamp))
+            return false;
+
+        stamp.getKeys().forEach(key -> bundles.remove(key, fileName));
+        return true;
+    }
+
+    private static boolean isOwnFile(String fileName, FileStamp stamp) {
+        return stamp.getKeys().size() == 1 && fileName.equals(stamp.getKeys().get(0) + ".json");
+    }
+
+    private static FileStamp stampOf(File file, Collection<String> keys) {
+        return new FileStamp(keys, file.lastModified(), file.length());
+    }
+
+}
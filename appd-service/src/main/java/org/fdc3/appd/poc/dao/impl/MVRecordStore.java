@@ -0,0 +1,215 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RecordStore} on an embedded H2 MVStore file: a log-structured, copy-on-write B-tree kept in key order.
+ * <p>
+ * Only the pages being read stay on-heap, in the store page cache bounded by storage.cache.size (MB).  A commit
+ * applies the collected changes and writes the changed pages as one chunk, so it is atomic across the records and
+ * index maps.  Auto-commit is disabled: a failed commit is rolled back, never persisted by the store later.
+ */
+public class MVRecordStore extends BufferedRecordStore {
+
+    private static final String MIGRATED = "migrated";
+
+    private Logger logger = LoggerFactory.getLogger(MVRecordStore.class);
+    private Configuration config = Configuration.get();
+
+    private final Path file;
+    private final MVStore store;
+    private final MVMap<String, byte[]> records;
+    //Index value to key, and key to index value to replace it
+    private final MVMap<String, String> index;
+    private final MVMap<String, String> indexed;
+    private final MVMap<String, String> meta;
+    //Serializes the map writes with their commit or rollback, apart from the pending changes guarded by this
+    private final Object storeLock = new Object();
+
+
+    /**
+     * Open or create the store file of a DAO
+     *
+     * @param name      Name of the records, the file is name.mv.db
+     * @param directory Store directory
+     * @throws IOException Store directory could not be created
+     */
+    public MVRecordStore(String name, String directory) throws IOException {
+        super(name);
+
+        Files.createDirectories(Paths.get(directory));
+        file = Paths.get(directory, name + ".mv.db");
+
+        store = new MVStore.Builder()
+                .fileName(file.toString())
+                .cacheSize(config.getInt(ConfigId.STORAGE_CACHE_SIZE, 16))
+                .compress()
+                .autoCommitDisabled()
+                .open();
+
+        records = store.openMap(name);
+        index = store.openMap(name + ".index");
+        indexed = store.openMap(name + ".indexed");
+        meta = store.openMap(name + ".meta");
+
+        logger.info("Opened {} store [{}] with {} records", name, file, records.sizeAsLong());
+
+        start();
+    }
+
+
+    @Override
+    protected byte[] read(String key) {
+        return records.get(key);
+    }
+
+    /**
+     * Index entries are checked against the reverse map, an entry left behind by an interrupted put is ignored
+     */
+    @Override
+    protected List<String> lookup(String indexValue) {
+
+        String key = index.get(indexValue);
+
+        return key != null && indexValue.equals(indexed.get(key)) ? Collections.singletonList(key) : Collections.emptyList();
+    }
+
+    /**
+     * Apply the changes to the maps and commit them as one chunk, or roll them back
+     */
+    @Override
+    protected void write(Map<String, Change> changes) throws IOException {
+
+        synchronized (storeLock) {
+            try {
+                for (Map.Entry<String, Change> change : changes.entrySet()) {
+                    if (change.getValue().getJson() == null)
+                        delete(change.getKey());
+                    else
+                        update(change.getKey(), change.getValue().getJson(), change.getValue().getIndexValue());
+                }
+
+                store.commit();
+                store.sync();
+
+            } catch (RuntimeException e) {
+                store.rollback();
+                throw new IOException("Could not commit " + name + " store [" + file + "]", e);
+            }
+        }
+    }
+
+    private void update(String key, byte[] json, String indexValue) {
+
+        String previous = indexValue == null ? indexed.remove(key) : indexed.put(key, indexValue);
+
+        if (previous != null && !previous.equals(indexValue))
+            index.remove(previous, key);
+
+        if (indexValue != null)
+            index.put(indexValue, key);
+
+        records.put(key, json);
+    }
+
+    private void delete(String key) {
+
+        String previous = indexed.remove(key);
+
+        if (previous != null)
+            index.remove(previous, key);
+
+        records.remove(key);
+    }
+
+    /**
+     * Pending changes are written first
+     */
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+
+        flush();
+
+        return records.entrySet().iterator();
+    }
+
+    @Override
+    public long size() {
+        return records.sizeAsLong();
+    }
+
+    @Override
+    public boolean isMigrated() {
+        return meta.containsKey(MIGRATED);
+    }
+
+    @Override
+    public void setMigrated(String source) throws IOException {
+
+        flush();
+
+        synchronized (storeLock) {
+            try {
+                meta.put(MIGRATED, source);
+                store.commit();
+                store.sync();
+            } catch (RuntimeException e) {
+                store.rollback();
+                throw new IOException("Could not write " + name + " migration marker [" + file + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Close the store file
+     */
+    @Override
+    protected void closeStore() {
+
+        synchronized (storeLock) {
+            if (store.isClosed())
+                return;
+
+            try {
+                store.close();
+                logger.info("Closed {} store [{}]", name, file);
+            } catch (IllegalStateException e) {
+                logger.error("Could not close {} store [{}]", name, file, e);
+            }
+        }
+    }
+}
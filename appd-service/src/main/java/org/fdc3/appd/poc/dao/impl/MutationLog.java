@@ -0,0 +1,555 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log for DAO mutations, replacing a json file rewrite per upsert.
+ * <p>
+ * Appends are queued and written by a single writer thread in batches, with one fsync per batch (group commit), so
+ * concurrent or bulk upserts share the cost of a sync.  The log is split into segments.  Once the active segment
+ * grows past the compaction size, and on shutdown, the log is compacted: the records written since the last
+ * compaction are materialized into their json files, a snapshot is written and the old segments are deleted.
+ * <p>
+ * Record layout: payload length, CRC32 of the payload, payload (key, json length, json).  A torn record at the end
+ * of the log is discarded on replay.  Replay stops at the first torn or corrupt record of a segment, so a batch that
+ * failed to write is cut off the segment, or the log moves on to a new segment, before anything else is appended.
+ * <p>
+ * Compaction only folds the records the DAO reported as cached (see {@link #cached(String, byte[])}) into their json
+ * files: the snapshot pairs the stamp of each json file with the cached record, so a file must never be newer than
+ * its cached record.  The other records are appended again to the new segment and compacted next time.
+ */
+public class MutationLog {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_BATCH = 1024;
+
+
+    private static class Append {
+        private final String key;
+        private final byte[] json;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Append(String key, byte[] json) {
+            this.key = key;
+            this.json = json;
+        }
+    }
+
+
+    private Logger logger = LoggerFactory.getLogger(MutationLog.class);
+    private Configuration config = Configuration.get();
+
+    private final String name;
+    private final Path directory;
+    private final LocalJsonStore localStore;
+    private final long compactSize = config.getInt(ConfigId.WAL_COMPACT_SIZE, 16 * 1024 * 1024);
+
+    private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentMap<String, byte[]> uncompacted = new ConcurrentHashMap<>();
+    //Uncompacted records the DAO cached, by identity of their json
+    private final ConcurrentMap<String, byte[]> cached = new ConcurrentHashMap<>();
+    private final ReentrantLock segmentLock = new ReentrantLock();
+    private final ExecutorService compactor;
+
+    private FileChannel channel;
+    private Path segment;
+    private long segmentSequence;
+    private volatile boolean running;
+    private volatile boolean compactionRequested;
+    private Thread writer;
+
+
+    /**
+     * @param name       Name of the records, for logging and thread names
+     * @param directory  Log directory
+     * @param localStore Json directory the log is compacted into
+     */
+    public MutationLog(String name, Path directory, LocalJsonStore localStore) {
+        this.name = name;
+        this.directory = directory;
+        this.localStore = localStore;
+
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-wal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Replay the existing segments into the cache, then open a new segment and start the writer.  Must be called
+     * after the json directory and snapshot were loaded, the log holds newer records.
+     *
+     * @param handler Record handler the log is replayed into
+     * @throws IOException Log directory or segment could not be opened
+     */
+    public synchronized void open(LocalJsonStore.RecordHandler handler) throws IOException {
+
+        if (running)
+            return;
+
+        Files.createDirectories(directory);
+
+        int replayed = 0;
+
+        for (Path path : segments()) {
+            segmentSequence = Math.max(segmentSequence, sequenceOf(path));
+            replayed += replay(path, handler);
+        }
+
+        if (replayed > 0)
+            logger.info("Replayed {} {} records from write-ahead log [{}]", replayed, name, directory);
+
+        roll();
+
+        running = true;
+        writer = new Thread(this::writeLoop, name + "-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, name + "-wal-shutdown"));
+
+        //Records replayed from a previous run are folded into the json files right away
+        if (replayed > 0)
+            requestCompaction();
+    }
+
+
+    /**
+     * Queue a record for the next group commit
+     *
+     * @param key  Record key, the json file name is key.json
+     * @param json Record json
+     * @return Completes once the record is synced to disk
+     */
+    public CompletableFuture<Void> append(String key, byte[] json) {
+
+        Append append = new Append(key, json);
+
+        if (!running) {
+            append.done.completeExceptionally(new IOException("Write-ahead log for " + name + " is closed"));
+            return append.done;
+        }
+
+        queue.add(append);
+        return append.done;
+    }
+
+    /**
+     * Append a record and wait until it is synced to disk
+     *
+     * @param key  Record key
+     * @param json Record json
+     * @throws IOException Record could not be written
+     */
+    public void write(String key, byte[] json) throws IOException {
+
+        try {
+            append(key, json).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing " + key);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write " + key + " to the write-ahead log", e.getCause());
+        }
+    }
+
+    /**
+     * Report a record written to the log as cached by the DAO, so compaction may write its json file
+     *
+     * @param key  Record key
+     * @param json Record json, as appended
+     */
+    public void cached(String key, byte[] json) {
+
+        //A newer record of the key is not cached yet
+        if (uncompacted.get(key) == json)
+            cached.put(key, json);
+    }
+
+    /**
+     * Latest json of a record written since the last compaction, i.e. not yet in its json file
+     *
+     * @param key Record key
+     * @return Json or null if the json file is up to date
+     */
+    public byte[] getUncompacted(String key) {
+        return uncompacted.get(key);
+    }
+
+
+    /**
+     * Stop accepting appends, write what is queued and compact
+     */
+    public void close() {
+
+        synchronized (this) {
+            if (!running)
+                return;
+
+            running = false;
+        }
+
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        compact();
+
+        segmentLock.lock();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Could not close write-ahead log segment [{}]", segment, e);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+
+    private void writeLoop() {
+
+        List<Append> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+
+            try {
+                Append first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null)
+                    continue;
+
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                writeBatch(batch);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Append> batch) {
+
+        long segmentSize;
+
+        segmentLock.lock();
+        try {
+            writeRecords(batch);
+
+            for (Append append : batch)
+                uncompacted.put(append.key, append.json);
+
+            segmentSize = channel.size();
+
+        } catch (IOException e) {
+            logger.error("Could not write {} records to write-ahead log [{}]", batch.size(), segment, e);
+            batch.forEach(append -> append.done.completeExceptionally(e));
+            return;
+        } finally {
+            segmentLock.unlock();
+        }
+
+        batch.forEach(append -> append.done.complete(null));
+
+        if (segmentSize > compactSize)
+            requestCompaction();
+    }
+
+
+    /**
+     * Write and sync records to the active segment.  Caller holds the segment lock.
+     *
+     * @throws IOException Records could not be written, the segment is left without any of them
+     */
+    private void writeRecords(List<Append> records) throws IOException {
+
+        //A segment that could not be replaced last time
+        if (!channel.isOpen())
+            roll();
+
+        long start = channel.position();
+
+        try {
+            for (Append append : records) {
+                ByteBuffer record = encode(append.key, append.json);
+                while (record.hasRemaining())
+                    channel.write(record);
+            }
+
+            channel.force(false);
+
+        } catch (IOException e) {
+            discardFrom(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Cut a failed batch off the active segment, or start a new segment if it cannot be cut, so that records
+     * appended afterwards are not hidden from replay behind torn bytes
+     */
+    private void discardFrom(long position) {
+
+        try {
+            channel.truncate(position);
+            channel.position(position);
+            channel.force(false);
+            return;
+        } catch (IOException e) {
+            logger.warn("Could not truncate write-ahead log segment [{}], starting a new one", segment, e);
+        }
+
+        try {
+            roll();
+        } catch (IOException e) {
+            logger.error("Could not start a new write-ahead log segment in [{}]", directory, e);
+        }
+    }
+
+
+    private void requestCompaction() {
+
+        if (compactionRequested)
+            return;
+
+        compactionRequested = true;
+        compactor.execute(this::compact);
+    }
+
+    /**
+     * Fold the records written so far into their json files and a snapshot, then drop the old segments
+     */
+    private synchronized void compact() {
+
+        compactionRequested = false;
+
+        List<Path> obsolete;
+        Map<String, byte[]> records = new HashMap<>();
+        List<Append> carried = new ArrayList<>();
+
+        segmentLock.lock();
+        try {
+            if (uncompacted.isEmpty() && channel.isOpen() && channel.size() == 0)
+                return;
+
+            obsolete = segments();
+            roll();
+
+            //Records not cached yet move to the new segment, the old ones are deleted
+            for (Map.Entry<String, byte[]> record : uncompacted.entrySet()) {
+                if (cached.get(record.getKey()) == record.getValue())
+                    records.put(record.getKey(), record.getValue());
+                else
+                    carried.add(new Append(record.getKey(), record.getValue()));
+            }
+
+            if (!carried.isEmpty())
+                writeRecords(carried);
+
+        } catch (IOException e) {
+            logger.error("Could not roll write-ahead log [{}]", directory, e);
+            return;
+        } finally {
+            segmentLock.unlock();
+        }
+
+        long start = System.currentTimeMillis();
+        int failed = 0;
+
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            try {
+                localStore.writeFile(record.getKey() + ".json", record.getKey(), record.getValue());
+            } catch (IOException e) {
+                failed++;
+                logger.error("Could not write json file for [{}]", record.getKey(), e);
+            }
+        }
+
+        if (failed > 0) {
+            //Keep the segments, they are replayed and compacted again on the next start
+            logger.error("Compaction of {} write-ahead log kept {} segments, {} json files failed", name, obsolete.size(), failed);
+            return;
+        }
+
+        localStore.snapshot(true);
+
+        for (Path path : obsolete) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.error("Could not delete write-ahead log segment [{}]", path, e);
+            }
+        }
+
+        //Records appended again in the meantime stay uncompacted
+        records.forEach(uncompacted::remove);
+        records.forEach(cached::remove);
+
+        logger.info("Compacted {} {} records from write-ahead log in {} ms, {} not cached yet kept", records.size(), name, System.currentTimeMillis() - start, carried.size());
+    }
+
+
+    /**
+     * Close the active segment, if any, and start a new one.  Caller holds the segment lock or is opening the log.
+     */
+    private void roll() throws IOException {
+
+        if (channel != null)
+            channel.close();
+
+        segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, ++segmentSequence, SEGMENT_SUFFIX));
+        channel = openSegment(segment);
+    }
+
+    /**
+     * Create a new segment file
+     */
+    FileChannel openSegment(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private List<Path> segments() throws IOException {
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX) && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long sequenceOf(Path segment) {
+
+        String fileName = segment.getFileName().toString();
+
+        try {
+            return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    private static ByteBuffer encode(String key, byte[] json) throws IOException {
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(json.length + key.length() + 16);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(key);
+        out.writeInt(json.length);
+        out.write(json);
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        ByteBuffer record = ByteBuffer.allocate(12 + bytes.length);
+        record.putInt(bytes.length).putLong(crc.getValue()).put(bytes);
+        record.flip();
+
+        return record;
+    }
+
+    /**
+     * Replay one segment, stopping at the first torn or corrupt record
+     *
+     * @return Number of records replayed
+     */
+    private int replay(Path path, LocalJsonStore.RecordHandler handler) throws IOException {
+
+        int count = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+
+            while (true) {
+
+                byte[] payload;
+                long checksum;
+
+                try {
+                    int length = in.readInt();
+                    checksum = in.readLong();
+
+                    if (length < 0 || length > compactSize + (64L << 20))
+                        throw new EOFException("Invalid record length " + length);
+
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, payload.length);
+
+                if (crc.getValue() != checksum) {
+                    logger.warn("Corrupt record in write-ahead log segment [{}] after {} records, ignoring the rest", path, count);
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                String key = record.readUTF();
+                byte[] json = new byte[record.readInt()];
+                record.readFully(json);
+
+                try {
+                    handler.load(new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8));
+                    uncompacted.put(key, json);
+                    cached.put(key, json);
+                    count++;
+                } catch (Exception e) {
+                    logger.error("Could not replay record [{}] from [{}]", key, path, e);
+                }
+            }
+        }
+
+        return count;
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Loads a batch of sources (files, S3 objects..) concurrently while priming a DAO.
+ * <p>
+ * A failing source is logged and counted, it never aborts the rest of the batch.  Progress is logged about every
+ * tenth of the batch.
+ *
+ * @param <S> Source type
+ */
+public class ParallelLoader<S> {
+
+    /**
+     * Loads a single source, typically download + parse + cache
+     */
+    public interface Task<S> {
+        void load(S source) throws Exception;
+    }
+
+    /**
+     * Parses a single source, typically download + parse, and returns the step caching it
+     */
+    public interface Parser<S> {
+        Callable<?> parse(S source) throws Exception;
+    }
+
+    private Logger logger = LoggerFactory.getLogger(ParallelLoader.class);
+
+    private final String name;
+    private final int parallelism;
+
+
+    /**
+     * @param name        Name of what is being loaded, for logging and thread names
+     * @param parallelism Maximum number of sources loaded at the same time
+     */
+    public ParallelLoader(String name, int parallelism) {
+        this.name = name;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+
+    /**
+     * Load all sources and wait for completion
+     *
+     * @param sources  Sources to load
+     * @param describe Source description used in log messages
+     * @param task     Load task run for each source
+     * @return Number of sources that failed to load
+     */
+    public int load(Collection<S> sources, Function<S, String> describe, Task<S> task) {
+
+        if (sources.isEmpty())
+            return 0;
+
+        long start = System.currentTimeMillis();
+        int total = sources.size();
+        int step = Math.max(1, total / 10);
+
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService executor = executor(total);
+
+        for (S source : sources) {
+            executor.execute(() -> {
+                try {
+                    task.load(source);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Could not load {} from [{}]", name, describe.apply(source), e);
+                }
+
+                int count = done.incrementAndGet();
+                if (count % step == 0 && count < total)
+                    logger.info("Loading {}: {}/{} done, {} failed", name, count, total, failed.get());
+            });
+        }
+
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                logger.info("Loading {}: still waiting, {}/{} done", name, done.get(), total);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while loading {}, {}/{} done", name, done.get(), total);
+        }
+
+        logger.info("Loaded {}: {}/{} in {} ms, {} failed", name, done.get() - failed.get(), total, System.currentTimeMillis() - start, failed.get());
+
+        return failed.get();
+    }
+
+    /**
+     * Parse all sources concurrently, and cache them one at a time in source order on the calling thread.  A slow
+     * source only delays the caching of the sources after it, the others keep being parsed meanwhile, so parsed
+     * sources may all be held in memory at worst.
+     *
+     * @param sources  Sources to load, in caching order
+     * @param describe Source description used in log messages
+     * @param parser   Parse task run for each source
+     * @return Number of sources that failed to load
+     */
+    public int loadInOrder(List<S> sources, Function<S, String> describe, Parser<S> parser) {
+
+        if (sources.isEmpty())
+            return 0;
+
+        long start = System.currentTimeMillis();
+        int total = sources.size();
+        int step = Math.max(1, total / 10);
+        int done = 0;
+        int failed = 0;
+
+        ExecutorService executor = executor(total);
+        List<Future<Callable<?>>> parsed = new ArrayList<>(total);
+
+        for (S source : sources)
+            parsed.add(executor.submit(() -> parser.parse(source)));
+
+        executor.shutdown();
+
+        for (; done < total; done++) {
+
+            S source = sources.get(done);
+
+            try {
+                parsed.get(done).get().call();
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while loading {}, {}/{} done", name, done, total);
+                return failed + total - done;
+            } catch (ExecutionException e) {
+                failed++;
+                logger.error("Could not load {} from [{}]", name, describe.apply(source), e.getCause());
+            } catch (Exception e) {
+                failed++;
+                logger.error("Could not load {} from [{}]", name, describe.apply(source), e);
+            }
+
+            if ((done + 1) % step == 0 && done + 1 < total)
+                logger.info("Loading {}: {}/{} done, {} failed", name, done + 1, total, failed);
+        }
+
+        logger.info("Loaded {}: {}/{} in {} ms, {} failed", name, total - failed, total, System.currentTimeMillis() - start, failed);
+
+        return failed;
+    }
+
+
+    private ExecutorService executor(int total) {
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(Math.min(parallelism, total), runnable -> {
+            Thread thread = new Thread(runnable, name + "-loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.model.Suggestion;
+import org.fdc3.appd.server.model.Application;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Prefix index over application names and titles, for autocomplete.
+ * <p>
+ * Normalized names and titles (see {@link AppIndex#normalize(String)}) are kept once each, in a sorted map, so the
+ * suggestions for a prefix are a range scan: a lookup costs a skip list search plus the number of suggestions returned,
+ * whatever the catalog size.  Later words are indexed by (text, word offset) positions sorted by the text from that
+ * offset, which share the text instead of copying each suffix, so a text costs one small entry per word.  Applications
+ * sharing a normalized text share one entry, so common texts do not slow scans down.  Matches at the start of a name
+ * or title rank before matches at the start of a later word ("blot" finds "Trading Blotter"), then suggestions are in
+ * alphabetical order.
+ * <p>
+ * Like {@link AppIndex}, callers are expected to serialize {@link #update(Application, Application)}.
+ */
+public class PrefixIndex {
+
+    public static final String NAME = "name";
+    public static final String TITLE = "title";
+
+    private static final Suggestion[] NONE = new Suggestion[0];
+
+    private static final Comparator<Suggestion> BY_APP = Comparator.comparing(Suggestion::getAppId).thenComparing(Suggestion::getField);
+
+    //Normalized text -> applications having it as name or title
+    private final ConcurrentNavigableMap<String, Text> texts = new ConcurrentSkipListMap<>();
+    //Start of each later word of the texts, sorted by the text from there
+    private final ConcurrentSkipListSet<Word> words = new ConcurrentSkipListSet<>();
+
+
+    /**
+     * A normalized text and its suggestions
+     */
+    private static final class Text {
+
+        private final String normalized;
+        //Sorted by appId then field, replaced as a whole by the serialized updates
+        private volatile Suggestion[] suggestions = NONE;
+
+        private Text(String normalized) {
+            this.normalized = normalized;
+        }
+    }
+
+    /**
+     * A word of a text, at the given offset
+     */
+    private static final class Word implements Comparable<Word> {
+
+        private final Text text;
+        private final int offset;
+
+        private Word(Text text, int offset) {
+            this.text = text;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Word other) {
+
+            String a = text.normalized;
+            String b = other.text.normalized;
+            int length = Math.min(a.length() - offset, b.length() - other.offset);
+
+            for (int i = 0; i < length; i++) {
+                int c = a.charAt(offset + i) - b.charAt(other.offset + i);
+                if (c != 0)
+                    return c;
+            }
+
+            int c = (a.length() - offset) - (b.length() - other.offset);
+
+            //Words start after a space, the range scan bounds at offset 0 sort before the words of the same suffix
+            if (c == 0 && offset > 0 && other.offset > 0)
+                c = a.compareTo(b);
+
+            return c != 0 ? c : Integer.compare(offset, other.offset);
+        }
+    }
+
+
+    /**
+     * Replace the entries of an application.
+     *
+     * @param previous Previously indexed definition, null if new
+     * @param current  New definition, null if removed
+     */
+    public void update(Application previous, Application current) {
+
+        Map<String, Suggestion> oldEntries = new HashMap<>();
+        Map<String, Suggestion> newEntries = new HashMap<>();
+
+        entriesOf(previous, oldEntries);
+        entriesOf(current, newEntries);
+
+        oldEntries.forEach((key, suggestion) -> {
+            if (!newEntries.containsKey(key))
+                remove(key.substring(key.indexOf(' ') + 1), suggestion);
+        });
+
+        newEntries.forEach((key, suggestion) -> put(key.substring(key.indexOf(' ') + 1), suggestion));
+    }
+
+    /**
+     * Drop all entries
+     */
+    public void clear() {
+        words.clear();
+        texts.clear();
+    }
+
+
+    /**
+     * Suggestions for a prefix, without duplicate texts
+     *
+     * @param prefix Typed prefix
+     * @param limit  Maximum number of suggestions
+     * @return Suggestions, start of text matches first, then alphabetical
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+
+        String normalized = AppIndex.normalize(prefix);
+
+        if (normalized == null || limit <= 0)
+            return Collections.emptyList();
+
+        List<Suggestion> suggestions = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+
+        String end = normalized + Character.MAX_VALUE;
+
+        for (Text text : texts.subMap(normalized, true, end, false).values()) {
+            if (collect(text, limit, suggestions, seen))
+                return suggestions;
+        }
+
+        for (Word word : words.subSet(new Word(new Text(normalized), 0), true, new Word(new Text(end), 0), false)) {
+            if (collect(word.text, limit, suggestions, seen))
+                return suggestions;
+        }
+
+        return suggestions;
+    }
+
+
+    /**
+     * Add the first suggestion of a text, unless the same text was suggested already
+     *
+     * @return True once the limit is reached
+     */
+    private static boolean collect(Text text, int limit, List<Suggestion> suggestions, Set<String> seen) {
+
+        Suggestion[] current = text.suggestions;
+
+        if (current.length > 0 && seen.add(current[0].getText()))
+            suggestions.add(current[0]);
+
+        return suggestions.size() >= limit;
+    }
+
+    private void put(String normalized, Suggestion suggestion) {
+
+        Text text = texts.get(normalized);
+
+        if (text == null) {
+            text = new Text(normalized);
+            text.suggestions = new Suggestion[]{suggestion};
+
+            //Words first, a text found by a range scan is fully indexed
+            for (int i = normalized.indexOf(' '); i >= 0; i = normalized.indexOf(' ', i + 1))
+                words.add(new Word(text, i + 1));
+
+            texts.put(normalized, text);
+            return;
+        }
+
+        Suggestion[] current = text.suggestions;
+        int i = Arrays.binarySearch(current, suggestion, BY_APP);
+        Suggestion[] updated;
+
+        if (i >= 0) {
+            updated = current.clone();
+            updated[i] = suggestion;
+        } else {
+            int at = -i - 1;
+            updated = new Suggestion[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, at);
+            updated[at] = suggestion;
+            System.arraycopy(current, at, updated, at + 1, current.length - at);
+        }
+
+        text.suggestions = updated;
+    }
+
+    private void remove(String normalized, Suggestion suggestion) {
+
+        Text text = texts.get(normalized);
+
+        if (text == null)
+            return;
+
+        Suggestion[] current = text.suggestions;
+        int i = Arrays.binarySearch(current, suggestion, BY_APP);
+
+        if (i < 0)
+            return;
+
+        if (current.length > 1) {
+            Suggestion[] updated = new Suggestion[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            text.suggestions = updated;
+            return;
+        }
+
+        text.suggestions = NONE;
+        texts.remove(normalized, text);
+
+        for (int w = normalized.indexOf(' '); w >= 0; w = normalized.indexOf(' ', w + 1))
+            words.remove(new Word(text, w + 1));
+    }
+
+    /**
+     * Entries of an application, by field and normalized text
+     */
+    private static void entriesOf(Application application, Map<String, Suggestion> entries) {
+
+        if (application == null || application.getAppId() == null)
+            return;
+
+        addEntry(application.getAppId(), NAME, application.getName(), entries);
+        addEntry(application.getAppId(), TITLE, application.getTitle(), entries);
+    }
+
+    private static void addEntry(String appId, String field, String text, Map<String, Suggestion> entries) {
+
+        String normalized = AppIndex.normalize(text);
+
+        if (normalized != null)
+            entries.put(field + ' ' + normalized, new Suggestion(text.trim(), field, appId));
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Storage backend of a DAO: json records by key, in key order, with an optional unique secondary index.
+ * <p>
+ * Records are read from the backend on demand, so a DAO does not have to hold the whole dataset on-heap.  Puts and
+ * removes become durable on {@link #commit(Collection)}, a DAO commits once per update or batch.  Read failures of the
+ * backend are thrown as {@link IllegalStateException}.
+ */
+public interface RecordStore extends Closeable {
+
+    String JSON = "json";
+    String MVSTORE = "mvstore";
+    String JDBC = "jdbc";
+
+    /**
+     * Open the record store of a DAO for the backend selected by storage.backend
+     *
+     * @param name       Name of the records
+     * @param indexName  Name of the lookup index, null if the records are not indexed
+     * @param attributes Json paths of the attributes a database backend indexes for queries, by attribute name
+     * @return Record store, null for the json directory backend
+     * @throws IOException Unknown backend, or the store could not be opened
+     */
+    static RecordStore open(String name, String indexName, Map<String, String> attributes) throws IOException {
+
+        Configuration config = Configuration.get();
+        String backend = config.get(ConfigId.STORAGE_BACKEND, JSON).trim().toLowerCase(Locale.ROOT);
+
+        switch (backend) {
+            case JSON:
+                return null;
+            case MVSTORE:
+                return new MVRecordStore(name, config.get(ConfigId.STORAGE_DIR, "store"));
+            case JDBC:
+                return new JdbcRecordStore(name, indexName, attributes);
+            default:
+                throw new IOException("Unknown storage backend [" + backend + "] for " + name);
+        }
+    }
+
+    /**
+     * @param key Record key
+     * @return Record json, null if not found
+     */
+    byte[] get(String key);
+
+    /**
+     * Look up a record key by its secondary index value
+     *
+     * @param indexValue Index value, as given to {@link #put(String, byte[], String)}
+     * @return Record key, null if not indexed
+     */
+    String findKey(String indexValue);
+
+    /**
+     * Put a record, replacing its previous index value
+     *
+     * @param key        Record key
+     * @param json       Record json
+     * @param indexValue Secondary index value, null if the record is not indexed
+     */
+    void put(String key, byte[] json, String indexValue);
+
+    /**
+     * Remove a record and its index value
+     *
+     * @param key Record key
+     */
+    void remove(String key);
+
+    /**
+     * Make the puts and removes so far durable.  A change which cannot be written is dropped rather than retried, the
+     * store then keeps the record as last written.
+     *
+     * @param keys Keys of the caller's changes, whose failures are reported to it
+     * @throws CommitException Changes of these keys were dropped
+     * @throws IOException     Changes could not be written
+     */
+    void commit(Collection<String> keys) throws IOException;
+
+    /**
+     * Iterate over the records in key order, without loading them all
+     *
+     * @return Iterator of key to record json, weakly consistent with concurrent updates
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator();
+
+    /**
+     * @return Number of records
+     */
+    long size();
+
+    /**
+     * @return True once the store was populated from the json directory, see {@link #setMigrated(String)}
+     */
+    boolean isMigrated();
+
+    /**
+     * Record that the store was populated from its json directory, so the migration runs once
+     *
+     * @param source Json directory the records were migrated from
+     * @throws IOException Marker could not be written
+     */
+    void setMigrated(String source) throws IOException;
+}
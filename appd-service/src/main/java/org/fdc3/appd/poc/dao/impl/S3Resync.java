@@ -0,0 +1,305 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.fdc3.appd.poc.exceptions.ProgramFault;
+import org.fdc3.appd.poc.util.AwsS3Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Loads the json records of an S3 prefix into a DAO cache, then keeps the cache in sync with the prefix so writes made
+ * by other nodes are eventually seen.
+ * <p>
+ * The ETag of every object applied to the cache is tracked.  A resync lists the prefix and only downloads the objects
+ * whose ETag changed, or which are new, and removes the records of objects deleted from the prefix.  The local writes
+ * of this node are tracked with the ETag S3 computes for them (content MD5), so they are not downloaded back.  An
+ * object is skipped while its local write is queued for upload, or when it was written locally after the listing,
+ * so an older remote version never replaces a newer local one.
+ * <p>
+ * Objects are downloaded and parsed in parallel, and only applied in LastModified order, so of two copies of a record
+ * without revision the last modified one wins, as it would loading them one by one.
+ */
+public class S3Resync {
+
+    private static class Tracked {
+        private final String etag;
+        private final Collection<String> keys;
+        private final long written;
+        private final boolean remote;
+
+        private Tracked(String etag, Collection<String> keys, long written, boolean remote) {
+            this.etag = etag;
+            this.keys = keys;
+            this.written = written;
+            this.remote = remote;
+        }
+    }
+
+
+    private Logger logger = LoggerFactory.getLogger(S3Resync.class);
+    private Configuration config = Configuration.get();
+
+    private final String name;
+    private final AwsS3Client awsS3Client;
+    private final String bucket;
+    private final String prefix;
+    private final LocalJsonStore.RecordHandler handler;
+    private final Predicate<String> pending;
+    private final int parallelism = config.getInt(ConfigId.PRIME_THREADS, 8);
+
+    //S3 object key -> last version applied or written locally
+    private final ConcurrentMap<String, Tracked> tracked = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param name        Name of the records, for logging and thread names
+     * @param awsS3Client S3 client
+     * @param bucket      Bucket name
+     * @param prefix      Prefix of the json objects
+     * @param handler     Record handler objects are parsed into
+     * @param pending     Tells whether a local write of an object key is still queued for upload
+     */
+    public S3Resync(String name, AwsS3Client awsS3Client, String bucket, String prefix, LocalJsonStore.RecordHandler handler, Predicate<String> pending) {
+        this.name = name;
+        this.awsS3Client = awsS3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.handler = handler;
+        this.pending = pending;
+    }
+
+
+    /**
+     * Load all json objects of the prefix
+     *
+     * @return False if the prefix could not be listed
+     */
+    public boolean load() {
+
+        logger.debug("Attempting to load cache from S3 [{}/{}]", bucket, prefix);
+        List<S3ObjectSummary> objects = list();
+
+        if (objects == null)
+            return false;
+
+        fetch("S3 " + name, objects);
+        return true;
+    }
+
+
+    /**
+     * Track a local write, so it is not downloaded back
+     *
+     * @param objectKey S3 object key
+     * @param key       Record key
+     * @param data      Object content
+     */
+    public void written(String objectKey, String key, byte[] data) {
+
+        Tracked previous = tracked.get(objectKey);
+
+        tracked.put(objectKey, new Tracked(md5(data), Collections.singletonList(key), System.currentTimeMillis(), previous != null && previous.remote));
+    }
+
+
+    /**
+     * Resync every {@link ConfigId#S3_RESYNC_INTERVAL} seconds, a zero interval disables resyncs
+     */
+    public void start() {
+
+        long interval = config.getInt(ConfigId.S3_RESYNC_INTERVAL, 60);
+
+        if (interval <= 0)
+            return;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-s3-resync");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                resync();
+            } catch (Exception e) {
+                logger.error("Could not resync {} from S3", name, e);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Apply the objects changed or deleted since the last resync
+     */
+    public synchronized void resync() {
+
+        long started = System.currentTimeMillis();
+        List<S3ObjectSummary> objects = list();
+
+        if (objects == null) {
+            logger.warn("Could not list S3 [{}/{}], {} resync skipped", bucket, prefix, name);
+            return;
+        }
+
+        Set<String> listed = new HashSet<>();
+        List<S3ObjectSummary> changed = new ArrayList<>();
+
+        for (S3ObjectSummary summary : objects) {
+
+            listed.add(summary.getKey());
+
+            if (pending.test(summary.getKey()))
+                continue;
+
+            Tracked known = tracked.get(summary.getKey());
+
+            if (known == null || (known.written < started && !known.etag.equals(etagOf(summary)))) {
+                changed.add(summary);
+            } else if (!known.remote && known.etag.equals(etagOf(summary))) {
+                //Our own write, now stored in S3
+                tracked.replace(summary.getKey(), known, new Tracked(known.etag, known.keys, known.written, true));
+            }
+        }
+
+        int failed = fetch("S3 " + name + " changes", changed);
+
+        //Only objects once seen in S3 can be deleted remotely, a local write may not be uploaded yet
+        int removed = 0;
+
+        for (Map.Entry<String, Tracked> entry : tracked.entrySet()) {
+
+            Tracked known = entry.getValue();
+
+            if (listed.contains(entry.getKey()) || !known.remote || known.written >= started || pending.test(entry.getKey()))
+                continue;
+
+            if (tracked.remove(entry.getKey(), known)) {
+                known.keys.forEach(handler::remove);
+                removed++;
+            }
+        }
+
+        if (!changed.isEmpty() || removed > 0)
+            logger.info("Resynced {} from S3: {} changed, {} failed, {} removed", name, changed.size(), failed, removed);
+    }
+
+
+    private List<S3ObjectSummary> list() {
+
+        List<S3ObjectSummary> objects = awsS3Client.getAllObjects(bucket, prefix);
+
+        if (objects != null)
+            objects.removeIf(summary -> !summary.getKey().contains(".json"));
+
+        return objects;
+    }
+
+
+    /**
+     * Download and parse objects in parallel, and apply them oldest first
+     *
+     * @return Number of objects that failed
+     */
+    private int fetch(String task, List<S3ObjectSummary> objects) {
+
+        List<S3ObjectSummary> ordered = new ArrayList<>(objects);
+        ordered.sort(Comparator.comparing(S3ObjectSummary::getLastModified, Comparator.nullsFirst(Comparator.<Date>naturalOrder()))
+                .thenComparing(S3ObjectSummary::getKey));
+
+        return new ParallelLoader<S3ObjectSummary>(task, parallelism).loadInOrder(ordered, S3ObjectSummary::getKey, summary -> {
+
+            Callable<Collection<String>> parsed = handler.parse(new InputStreamReader(new ByteArrayInputStream(download(summary)), StandardCharsets.UTF_8));
+
+            return () -> {
+                tracked.put(summary.getKey(), new Tracked(etagOf(summary), parsed.call(), 0, true));
+                return null;
+            };
+        });
+    }
+
+    /**
+     * Read an object to the end, a partially read object aborts its connection instead of returning it to the pool
+     */
+    private byte[] download(S3ObjectSummary summary) throws IOException {
+
+        try (InputStream inputStream = awsS3Client.getObject(summary)) {
+
+            if (inputStream == null)
+                throw new IOException("Could not retrieve object [" + summary.getKey() + "]");
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream((int) Math.min(Math.max(summary.getSize(), 0), 1 << 20) + 1);
+            byte[] buffer = new byte[4096];
+            int read;
+
+            while ((read = inputStream.read(buffer)) != -1)
+                data.write(buffer, 0, read);
+
+            return data.toByteArray();
+        }
+    }
+
+
+    private static String etagOf(S3ObjectSummary summary) {
+
+        String etag = summary.getETag();
+
+        return etag == null ? "" : etag.replace("\"", "");
+    }
+
+    /**
+     * Hex encoded MD5, the ETag of an object uploaded in a single part
+     */
+    private static String md5(byte[] data) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProgramFault("MD5 is not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.fdc3.appd.poc.model.ReplicationStats;
+import org.fdc3.appd.poc.util.AwsS3Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind replication of DAO records to S3, so S3 latency is not added to the API response time.
+ * <p>
+ * Puts are queued by S3 key.  A newer put to a key which is still queued replaces the older one (coalescing), so a
+ * key updated many times while S3 is slow is uploaded once.  A dispatcher thread takes batches of queued keys and
+ * uploads them in parallel.  A key is never uploaded twice at the same time, so the last version wins in S3.
+ * <p>
+ * Memory is bounded by the queued bytes, including the batch in flight.  Callers block while the queue is full
+ * (backpressure).  Failed uploads are retried with a backoff unless a newer version was queued meanwhile.  On
+ * shutdown the queue is flushed within the flush timeout, and puts submitted after close are uploaded synchronously.
+ */
+public class S3WriteBehind {
+
+    private static final long MAX_RETRY_DELAY = 30_000;
+
+
+    private static class Pending {
+        private final String key;
+        private final byte[] data;
+        private final long queued;
+
+        private Pending(String key, byte[] data, long queued) {
+            this.key = key;
+            this.data = data;
+            this.queued = queued;
+        }
+    }
+
+
+    private Logger logger = LoggerFactory.getLogger(S3WriteBehind.class);
+    private Configuration config = Configuration.get();
+
+    private final String name;
+    private final AwsS3Client awsS3Client;
+    private final String bucket;
+    private final long maxBytes = config.getInt(ConfigId.S3_WRITE_QUEUE_BYTES, 64 * 1024 * 1024);
+    private final int threads = config.getInt(ConfigId.S3_WRITE_THREADS, 8);
+    private final long flushTimeout = TimeUnit.SECONDS.toMillis(config.getInt(ConfigId.S3_FLUSH_TIMEOUT, 30));
+
+    //Queued puts in submit order, guarded by lock
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long queuedBytes;
+    private List<Pending> inFlight = new ArrayList<>();
+    private boolean closed;
+
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final ExecutorService uploaders;
+    private final Thread dispatcher;
+
+
+    /**
+     * @param name        Name of the records, for logging and thread names
+     * @param awsS3Client S3 client
+     * @param bucket      Destination bucket
+     */
+    public S3WriteBehind(String name, AwsS3Client awsS3Client, String bucket) {
+        this.name = name;
+        this.awsS3Client = awsS3Client;
+        this.bucket = bucket;
+
+        uploaders = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-s3-uploader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        dispatcher = new Thread(this::dispatchLoop, name + "-s3-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, name + "-s3-shutdown"));
+    }
+
+
+    /**
+     * Queue an object put, blocking while the queue is full.  Replaces the queued put of the same key, if any.
+     *
+     * @param key  S3 object key
+     * @param data Object content, must not be modified once submitted
+     */
+    public void submit(String key, byte[] data) {
+
+        lock.lock();
+        try {
+            boolean waited = false;
+
+            while (!closed) {
+
+                Pending previous = pending.get(key);
+                long needed = data.length - (previous == null ? 0 : previous.data.length);
+
+                //A put larger than the whole queue is still accepted once the queue is empty
+                if (needed <= 0 || queuedBytes + needed <= maxBytes || queuedBytes == 0) {
+
+                    if (previous != null) {
+                        pending.put(key, new Pending(key, data, previous.queued));
+                        coalesced.incrementAndGet();
+                    } else {
+                        pending.put(key, new Pending(key, data, System.currentTimeMillis()));
+                    }
+
+                    queuedBytes += needed;
+                    changed.signalAll();
+                    return;
+                }
+
+                if (!waited) {
+                    throttled.incrementAndGet();
+                    waited = true;
+                }
+
+                changed.await();
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+
+        //Closed or interrupted, do not lose the put
+        put(key, data);
+    }
+
+
+    /**
+     * @param key S3 object key
+     * @return True if a put of the key is queued or being uploaded
+     */
+    public boolean isPending(String key) {
+
+        lock.lock();
+        try {
+            if (pending.containsKey(key))
+                return true;
+
+            for (Pending put : inFlight) {
+                if (put.key.equals(key))
+                    return true;
+            }
+
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Stop accepting puts and flush the queue, waiting at most the flush timeout
+     */
+    public void close() {
+
+        lock.lock();
+        try {
+            if (closed)
+                return;
+
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            dispatcher.join(flushTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        ReplicationStats stats = getStats();
+
+        if (stats.getQueuedKeys() + stats.getInFlightKeys() > 0) {
+            logger.error("Could not flush {} {} puts to S3 within {} ms", stats.getQueuedKeys() + stats.getInFlightKeys(), name, flushTimeout);
+        } else {
+            logger.info("Flushed {} puts to S3", name);
+        }
+
+        uploaders.shutdown();
+    }
+
+
+    /**
+     * @return Current queue metrics
+     */
+    public ReplicationStats getStats() {
+
+        ReplicationStats stats = new ReplicationStats();
+        stats.setName(name);
+        stats.setMaxQueuedBytes(maxBytes);
+        stats.setUploaded(uploaded.get());
+        stats.setCoalesced(coalesced.get());
+        stats.setFailures(failures.get());
+        stats.setThrottled(throttled.get());
+
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+
+            for (Pending put : pending.values())
+                oldest = Math.min(oldest, put.queued);
+
+            for (Pending put : inFlight)
+                oldest = Math.min(oldest, put.queued);
+
+            stats.setQueuedKeys(pending.size());
+            stats.setInFlightKeys(inFlight.size());
+            stats.setQueuedBytes(queuedBytes);
+            stats.setLagMillis(oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest));
+        } finally {
+            lock.unlock();
+        }
+
+        return stats;
+    }
+
+
+    private void dispatchLoop() {
+
+        long retryDelay = 0;
+
+        while (true) {
+
+            List<Pending> batch = new ArrayList<>();
+
+            lock.lock();
+            try {
+                while (pending.isEmpty()) {
+
+                    if (closed)
+                        return;
+
+                    changed.await();
+                }
+
+                //Take the oldest puts, the batch stays counted in the queued bytes until uploaded
+                for (Pending put : pending.values()) {
+                    batch.add(put);
+
+                    if (batch.size() == threads * 4)
+                        break;
+                }
+
+                for (Pending put : batch)
+                    pending.remove(put.key);
+
+                inFlight = batch;
+
+            } catch (InterruptedException e) {
+                logger.error("Interrupted, {} puts to S3 left in the queue", name);
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            List<Future<Boolean>> results = new ArrayList<>();
+
+            for (Pending put : batch)
+                results.add(uploaders.submit(() -> put(put.key, put.data)));
+
+            //Wait for the uploads without the lock, submit() and isPending() must not wait for S3
+            boolean[] succeeded = new boolean[batch.size()];
+
+            for (int i = 0; i < batch.size(); i++)
+                succeeded[i] = succeeded(results.get(i));
+
+            int failed = 0;
+
+            lock.lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+
+                    Pending put = batch.get(i);
+
+                    if (succeeded[i]) {
+                        uploaded.incrementAndGet();
+                        queuedBytes -= put.data.length;
+                        continue;
+                    }
+
+                    failed++;
+                    failures.incrementAndGet();
+
+                    //Requeue unless superseded, keeping the time of the oldest change
+                    Pending newer = pending.get(put.key);
+
+                    if (newer != null) {
+                        queuedBytes -= put.data.length;
+                        pending.put(put.key, new Pending(put.key, newer.data, put.queued));
+                    } else {
+                        pending.put(put.key, put);
+                    }
+                }
+
+                inFlight = new ArrayList<>();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            if (failed == 0) {
+                retryDelay = 0;
+                continue;
+            }
+
+            retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay == 0 ? 500 : retryDelay * 2);
+            logger.warn("{} of {} {} puts to S3 failed, retrying in {} ms", failed, batch.size(), name, retryDelay);
+
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                logger.error("Interrupted, {} puts to S3 left in the queue", name);
+                return;
+            }
+        }
+    }
+
+
+    private boolean succeeded(Future<Boolean> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("Unexpected failure putting {} to S3", name, e.getCause());
+            return false;
+        }
+    }
+
+
+    private boolean put(String key, byte[] data) {
+        return awsS3Client.putObject(bucket, key, new ByteArrayInputStream(data), null);
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a DAO cache.
+ * <p>
+ * The snapshot holds every cached record as json bytes, plus a manifest of the local json files (name, size and
+ * modification time) it was reconciled with, so that only the files changed since can be parsed again at startup.
+ * <p>
+ * Layout: magic, format version, creation time, manifest, marked records, CRC32 of everything before the checksum.
+ * Snapshots are written to a temporary file and atomically moved in place.
+ */
+public class SnapshotFile {
+
+    private static final long MAGIC = 0x41505044534e4150L; // APPDSNAP
+    private static final int FORMAT_VERSION = 1;
+
+
+    /**
+     * Size and modification time of a local json file, and the record keys loaded from it
+     */
+    public static class FileStamp {
+
+        private final List<String> keys;
+        private final long modified;
+        private final long size;
+
+        public FileStamp(Collection<String> keys, long modified, long size) {
+            this.keys = new ArrayList<>(keys);
+            this.modified = modified;
+            this.size = size;
+        }
+
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return True if the other stamp describes the same file content (same size and modification time)
+         */
+        public boolean sameFile(FileStamp other) {
+            return other != null && other.modified == modified && other.size == size;
+        }
+    }
+
+
+    private final long created;
+    private final Map<String, FileStamp> manifest;
+    private final Map<String, byte[]> records;
+
+
+    private SnapshotFile(long created, Map<String, FileStamp> manifest, Map<String, byte[]> records) {
+        this.created = created;
+        this.manifest = manifest;
+        this.records = records;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return File name to file stamp
+     */
+    public Map<String, FileStamp> getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return Record key to json bytes
+     */
+    public Map<String, byte[]> getRecords() {
+        return records;
+    }
+
+
+    /**
+     * Read and verify a snapshot
+     *
+     * @param path Snapshot file
+     * @return Snapshot, or null if there is no snapshot file
+     * @throws IOException Snapshot could not be read, is corrupt or of an unknown format
+     */
+    public static SnapshotFile read(Path path) throws IOException {
+
+        if (!Files.exists(path))
+            return null;
+
+        CRC32 crc = new CRC32();
+        long fileSize = Files.size(path);
+
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16), crc))) {
+
+            if (in.readLong() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unknown snapshot format in " + path);
+
+            long created = in.readLong();
+
+            //Sizes are not covered by the checksum yet, so they only bound the reads, never presize anything
+            int manifestSize = readSize(in, fileSize, path);
+            Map<String, FileStamp> manifest = new HashMap<>();
+
+            for (int i = 0; i < manifestSize; i++) {
+
+                String fileName = in.readUTF();
+                long modified = in.readLong();
+                long size = in.readLong();
+
+                int keyCount = readSize(in, fileSize, path);
+                List<String> keys = new ArrayList<>();
+                for (int k = 0; k < keyCount; k++)
+                    keys.add(in.readUTF());
+
+                manifest.put(fileName, new FileStamp(keys, modified, size));
+            }
+
+            Map<String, byte[]> records = new LinkedHashMap<>();
+
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                byte[] json = new byte[readSize(in, fileSize, path)];
+                in.readFully(json);
+                records.put(key, json);
+            }
+
+            long expected = crc.getValue();
+
+            if (in.readLong() != expected)
+                throw new IOException("Snapshot checksum mismatch in " + path);
+
+            return new SnapshotFile(created, manifest, records);
+        }
+    }
+
+
+    /**
+     * Read a count or length, which cannot exceed the size of the file it is read from
+     */
+    private static int readSize(DataInputStream in, long fileSize, Path path) throws IOException {
+
+        int size = in.readInt();
+
+        if (size < 0 || size > fileSize)
+            throw new IOException("Corrupt snapshot size " + size + " in " + path);
+
+        return size;
+    }
+
+
+    /**
+     * Write a snapshot, replacing any existing one atomically
+     *
+     * @param path     Snapshot file
+     * @param manifest File name to file stamp
+     * @param records  Record key to json bytes
+     * @return Number of records written
+     * @throws IOException Snapshot could not be written, the previous snapshot is left untouched
+     */
+    public static int write(Path path, Map<String, FileStamp> manifest, Iterator<Map.Entry<String, byte[]>> records) throws IOException {
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        int count = 0;
+
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             BufferedOutputStream buffered = new BufferedOutputStream(file, 1 << 16)) {
+
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            out.writeInt(manifest.size());
+            for (Map.Entry<String, FileStamp> entry : manifest.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().getModified());
+                out.writeLong(entry.getValue().getSize());
+                out.writeInt(entry.getValue().getKeys().size());
+                for (String key : entry.getValue().getKeys())
+                    out.writeUTF(key);
+            }
+
+            //Records are streamed, each one preceded by a marker since the count is unknown up front
+            while (records.hasNext()) {
+                Map.Entry<String, byte[]> record = records.next();
+                out.writeBoolean(true);
+                out.writeUTF(record.getKey());
+                out.writeInt(record.getValue().length);
+                out.write(record.getValue());
+                count++;
+            }
+
+            out.writeBoolean(false);
+            out.flush();
+
+            //The checksum itself is not part of the checksum
+            new DataOutputStream(buffered).writeLong(crc.getValue());
+            buffered.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return count;
+    }
+
+}
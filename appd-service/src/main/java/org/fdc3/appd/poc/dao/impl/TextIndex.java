@@ -0,0 +1,427 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.server.model.Application;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Inverted full-text index over application names, titles, tooltips and descriptions, ranked with BM25.
+ * <p>
+ * Text is split on anything but letters and digits, lower cased, stripped of stop words and reduced with a light
+ * suffix stemmer, so "Charting", "charts" and "chart" match each other.  Term frequencies are weighted per field: a
+ * term in the name counts {@link #NAME_WEIGHT} times, in the title {@link #TITLE_WEIGHT} times.
+ * <p>
+ * Each posting carries the document length, so scoring a query only touches the postings of its terms.  Like
+ * {@link AppIndex}, callers are expected to serialize {@link #update(Application, Application)}.
+ */
+public class TextIndex {
+
+    public static final int NAME_WEIGHT = 3;
+    public static final int TITLE_WEIGHT = 2;
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "into", "is", "it", "of", "on", "or",
+            "that", "the", "this", "to", "with"));
+
+
+    private static class Posting {
+        private final String appId;
+        private final int document;
+        private final int frequency;
+        private final int length;
+
+        private Posting(String appId, int document, int frequency, int length) {
+            this.appId = appId;
+            this.document = document;
+            this.frequency = frequency;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Postings of a term, with an array copy for fast scans which is rebuilt on the first search after a change
+     */
+    private static class PostingList {
+
+        //Array copy with the version it was copied at, published as one reference
+        private static class Snapshot {
+            private final int version;
+            private final Posting[] postings;
+
+            private Snapshot(int version, Posting[] postings) {
+                this.version = version;
+                this.postings = postings;
+            }
+        }
+
+        private final ConcurrentMap<String, Posting> byAppId = new ConcurrentHashMap<>();
+        private volatile int version;
+        private volatile Snapshot snapshot;
+
+        private void put(Posting posting) {
+            byAppId.put(posting.appId, posting);
+            version++;
+        }
+
+        private void remove(String appId) {
+            byAppId.remove(appId);
+            version++;
+        }
+
+        private Posting[] array() {
+
+            int current = version;
+            Snapshot copy = snapshot;
+
+            //The version is read before copying, so a change made while copying leaves the copy older, never stale
+            if (copy == null || copy.version != current) {
+                copy = new Snapshot(current, byAppId.values().toArray(new Posting[0]));
+                snapshot = copy;
+            }
+
+            return copy.postings;
+        }
+    }
+
+    /**
+     * Per thread score accumulator indexed by document number, reused across searches.  Only touched slots are reset.
+     */
+    private static class Accumulator {
+        private double[] scores = new double[0];
+        private String[] appIds = new String[0];
+        private int[] touched = new int[0];
+        private int touchedCount;
+
+        private void ensureCapacity(int capacity) {
+            if (scores.length < capacity) {
+                int size = Math.max(capacity, scores.length * 2);
+                scores = new double[size];
+                appIds = new String[size];
+                touched = new int[size];
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                scores[touched[i]] = 0;
+                appIds[touched[i]] = null;
+            }
+            touchedCount = 0;
+        }
+    }
+
+    private static class Document {
+        private final Set<String> terms;
+        private final int length;
+
+        private Document(Set<String> terms, int length) {
+            this.terms = terms;
+            this.length = length;
+        }
+    }
+
+    /**
+     * An appId and its score for a query
+     */
+    public static class Match {
+        private final String appId;
+        private final double score;
+
+        private Match(String appId, double score) {
+            this.appId = appId;
+            this.score = score;
+        }
+
+        public String getAppId() {
+            return appId;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+
+    //Term -> appId -> posting
+    private final ConcurrentMap<String, PostingList> postings = new ConcurrentHashMap<>();
+    //AppId -> indexed terms, to remove the postings of a replaced definition
+    private final ConcurrentMap<String, Document> documents = new ConcurrentHashMap<>();
+    //AppId -> dense document number, used to accumulate scores in arrays.  Numbers are never reused.
+    private final ConcurrentMap<String, Integer> documentNumbers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextDocumentNumber = new AtomicInteger();
+    private final AtomicLong totalLength = new AtomicLong();
+    private final ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(Accumulator::new);
+
+
+    /**
+     * Split text into index terms
+     *
+     * @param text Raw text, may be null
+     * @return Stemmed terms in text order, stop words removed
+     */
+    public static List<String> tokenize(String text) {
+
+        List<String> terms = new ArrayList<>();
+
+        if (text == null)
+            return terms;
+
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+
+                if (!STOP_WORDS.contains(token))
+                    terms.add(stem(token));
+
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    /**
+     * Light English suffix stemmer: plural, -ing, -ed, -er, -ly and a final e are removed, keeping at least three
+     * characters.  Not linguistically exact, only consistent for indexing and querying.
+     *
+     * @param token Lower case token
+     * @return Stem
+     */
+    static String stem(String token) {
+
+        String stem = token;
+
+        if (stem.length() > 4 && stem.endsWith("ies")) {
+            stem = stem.substring(0, stem.length() - 3) + "y";
+        } else if (stem.endsWith("sses")) {
+            stem = stem.substring(0, stem.length() - 2);
+        } else if (stem.length() > 3 && stem.endsWith("s") && !stem.endsWith("ss") && !stem.endsWith("us") && !stem.endsWith("is")) {
+            stem = stem.substring(0, stem.length() - 1);
+        }
+
+        for (String suffix : new String[]{"ing", "ed", "er", "ly"}) {
+            if (stem.length() - suffix.length() >= 3 && stem.endsWith(suffix)) {
+                stem = stem.substring(0, stem.length() - suffix.length());
+                break;
+            }
+        }
+
+        if (stem.length() > 3 && stem.endsWith("e"))
+            stem = stem.substring(0, stem.length() - 1);
+
+        return stem;
+    }
+
+
+    /**
+     * Replace the postings of an application.
+     *
+     * @param previous Previously indexed definition, null if new
+     * @param current  New definition, null if removed
+     */
+    public void update(Application previous, Application current) {
+
+        String appId = current != null ? current.getAppId() : previous != null ? previous.getAppId() : null;
+
+        if (appId == null)
+            return;
+
+        Document old = documents.remove(appId);
+
+        if (old != null) {
+            for (String term : old.terms) {
+                postings.computeIfPresent(term, (t, list) -> {
+                    list.remove(appId);
+                    return list.byAppId.isEmpty() ? null : list;
+                });
+            }
+
+            totalLength.addAndGet(-old.length);
+        }
+
+        if (current == null)
+            return;
+
+        Map<String, Integer> terms = termsOf(current);
+        int length = lengthOf(terms);
+        int document = documentNumbers.computeIfAbsent(appId, id -> nextDocumentNumber.getAndIncrement());
+
+        for (Map.Entry<String, Integer> entry : terms.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), t -> new PostingList())
+                    .put(new Posting(appId, document, entry.getValue(), length));
+        }
+
+        documents.put(appId, new Document(terms.keySet(), length));
+        totalLength.addAndGet(length);
+    }
+
+    /**
+     * Drop all postings
+     */
+    public void clear() {
+        postings.clear();
+        documents.clear();
+        documentNumbers.clear();
+        nextDocumentNumber.set(0);
+        totalLength.set(0);
+    }
+
+
+    /**
+     * Rank the applications matching any query term
+     *
+     * @param query  Free text query
+     * @param filter Additional criteria an appId must pass to be ranked
+     * @param offset Number of best matches to skip
+     * @param limit  Maximum number of matches to return
+     * @return Matches by descending score, then appId
+     */
+    public List<Match> search(String query, Predicate<String> filter, int offset, int limit) {
+
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        int count = documents.size();
+
+        if (terms.isEmpty() || count == 0 || limit <= 0)
+            return Collections.emptyList();
+
+        //Accumulate by document number, postings added after this point are ignored
+        int capacity = nextDocumentNumber.get();
+        Accumulator accumulator = accumulators.get();
+        accumulator.ensureCapacity(capacity);
+
+        try {
+            return rank(terms, count, capacity, accumulator, filter, offset, limit);
+        } finally {
+            accumulator.reset();
+        }
+    }
+
+
+    private List<Match> rank(Set<String> terms, int count, int capacity, Accumulator accumulator, Predicate<String> filter, int offset, int limit) {
+
+        double averageLength = Math.max(1.0, (double) totalLength.get() / count);
+        double[] scores = accumulator.scores;
+        String[] appIds = accumulator.appIds;
+        int[] touched = accumulator.touched;
+
+        for (String term : terms) {
+
+            PostingList list = postings.get(term);
+
+            if (list == null)
+                continue;
+
+            Posting[] termPostings = list.array();
+            int df = termPostings.length;
+            double idf = Math.log(1 + (count - df + 0.5) / (df + 0.5));
+
+            for (Posting posting : termPostings) {
+
+                if (posting.document >= capacity)
+                    continue;
+
+                if (appIds[posting.document] == null) {
+                    appIds[posting.document] = posting.appId;
+                    touched[accumulator.touchedCount++] = posting.document;
+                }
+
+                double tf = posting.frequency * (K1 + 1) / (posting.frequency + K1 * (1 - B + B * posting.length / averageLength));
+                scores[posting.document] += idf * tf;
+            }
+        }
+
+        //Keep the best offset + limit matches, the worst at the head
+        Comparator<Match> ranking = Comparator.comparingDouble(Match::getScore).reversed().thenComparing(Match::getAppId);
+        int size = (int) Math.min((long) offset + limit, Integer.MAX_VALUE - 1);
+        PriorityQueue<Match> best = new PriorityQueue<>(Math.min(size, accumulator.touchedCount) + 1, ranking.reversed());
+
+        for (int i = 0; i < accumulator.touchedCount; i++) {
+
+            int document = touched[i];
+
+            if (best.size() == size && scores[document] < best.peek().getScore())
+                continue;
+
+            Match match = new Match(appIds[document], scores[document]);
+
+            if (best.size() == size && ranking.compare(match, best.peek()) >= 0)
+                continue;
+
+            if (!filter.test(match.getAppId()))
+                continue;
+
+            best.add(match);
+
+            if (best.size() > size)
+                best.poll();
+        }
+
+        List<Match> matches = new ArrayList<>(best);
+        matches.sort(ranking);
+
+        return offset >= matches.size() ? Collections.emptyList() : new ArrayList<>(matches.subList(offset, matches.size()));
+    }
+
+
+    private static Map<String, Integer> termsOf(Application application) {
+
+        Map<String, Integer> terms = new HashMap<>();
+
+        addTerms(terms, application.getName(), NAME_WEIGHT);
+        addTerms(terms, application.getTitle(), TITLE_WEIGHT);
+        addTerms(terms, application.getTooltip(), 1);
+        addTerms(terms, application.getDescription(), 1);
+
+        return terms;
+    }
+
+    private static void addTerms(Map<String, Integer> terms, String text, int weight) {
+        for (String term : tokenize(text))
+            terms.merge(term, weight, Integer::sum);
+    }
+
+    private static int lengthOf(Map<String, Integer> terms) {
+
+        int length = 0;
+
+        for (int frequency : terms.values())
+            length += frequency;
+
+        return length;
+    }
+
+}
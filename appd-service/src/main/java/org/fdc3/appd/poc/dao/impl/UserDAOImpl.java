@@ -19,12 +19,15 @@
 package org.fdc3.appd.poc.dao.impl;
 
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.gson.Gson;
 import org.fdc3.appd.poc.config.ConfigId;
 import org.fdc3.appd.poc.config.Configuration;
 import org.fdc3.appd.poc.dao.UserDAO;
 import org.fdc3.appd.poc.exceptions.UserExistingException;
 import org.fdc3.appd.poc.exceptions.UserNotFoundException;
+import org.fdc3.appd.poc.model.ReplicationStats;
 import org.fdc3.appd.poc.model.User;
 import org.fdc3.appd.poc.model.UserSecurity;
 import org.fdc3.appd.poc.util.AwsS3Client;
@@ -33,18 +36,38 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Manage all user object access and persist through S3.
  * <p>
- * This DAO will prime all known users from S3 upon access and maintain cache from that point forward.
+ * This DAO will prime all known users from S3 upon access, and load them lazily from that point forward.
  * <p>
- * Currently, this does not support lazy loading.
+ * Users are held in a cache bounded by user.cache.size and user.cache.expiry.  A miss loads the user from the storage
+ * backend (storage.backend), or from the write-ahead log, its json file or S3, and concurrent misses of a user share
+ * one load.  With the json backend, only the email index of the users stays on-heap: every user is kept in its own
+ * json file, so users found in bundles, the snapshot or S3 are written to theirs.
  *
  * @author Frank Tarsillo on 8/28/18.
  */
@@ -53,17 +76,102 @@ public class UserDAOImpl implements UserDAO {
 
     private Configuration config = Configuration.get();
     private Logger logger = LoggerFactory.getLogger(UserDAOImpl.class);
-    private ConcurrentMap<String, UserSecurity> users = new ConcurrentHashMap<>();
+    private final LoadingCache<String, UserSecurity> users;
     private String directory = config.get(ConfigId.JSON_USERS_DIR, "json/users");
     private AwsS3Client awsS3Client;
+    private final Gson gson = new Gson();
+    private final JsonStreamLoader<UserSecurity> userLoader = new JsonStreamLoader<>(gson, UserSecurity.class);
+    private final LocalJsonStore localStore = new LocalJsonStore("users", directory);
+    private final AtomicLong changes = new AtomicLong();
+    private MutationLog mutationLog;
+    private S3WriteBehind s3WriteBehind;
+    private S3Resync s3Resync;
+    private RecordStore recordStore;
+
+    //Json backend: email index of every known user (empty string for none), and its reverse
+    private final ConcurrentMap<String, String> userEmails = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> emailIds = new ConcurrentHashMap<>();
+
+    //Parses json records (files, snapshot, write-ahead log) into the email index, or the storage backend
+    private final LocalJsonStore.RecordHandler recordHandler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) throws Exception {
+            return userLoader.load(json, userSecurity -> isSkipped(userSecurity, accept) ? null : apply(userSecurity, false));
+        }
+
+        @Override
+        public void remove(String id) {
+            UserDAOImpl.this.remove(id);
+        }
+    };
+
+    //Parses json records of S3, the latest version of a user, into the email index, or the storage backend
+    private final LocalJsonStore.RecordHandler remoteHandler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) throws Exception {
+            return userLoader.load(json, userSecurity -> isSkipped(userSecurity, accept) ? null : apply(userSecurity, true));
+        }
+
+        @Override
+        public Callable<Collection<String>> parse(Reader json) throws Exception {
+
+            List<UserSecurity> parsed = userLoader.parse(json);
+
+            return () -> {
+                List<String> ids = new ArrayList<>(parsed.size());
+
+                for (UserSecurity userSecurity : parsed) {
+                    String id = apply(userSecurity, true);
+                    if (id != null)
+                        ids.add(id);
+                }
+
+                return ids;
+            };
+        }
+
+        @Override
+        public void remove(String id) {
+            UserDAOImpl.this.remove(id);
+        }
+    };
 
 
     public UserDAOImpl() {
 
+        //Bounded cache, W-TinyLFU eviction by size, and by idle time unless the expiry is 0
+        Caffeine<Object, Object> cache = Caffeine.newBuilder().maximumSize(config.getInt(ConfigId.USER_CACHE_SIZE, 100000));
+        long expiry = config.getInt(ConfigId.USER_CACHE_EXPIRY, 3600);
+
+        if (expiry > 0)
+            cache.expireAfterAccess(expiry, TimeUnit.SECONDS);
+
+        users = cache.build(this::loadUser);
+
+        //Users live in the selected storage backend rather than on-heap, when one is configured
+        try {
+            recordStore = RecordStore.open("users", "email", Collections.singletonMap("company", "company"));
+        } catch (IOException e) {
+            logger.error("Could not open users storage backend..exiting", e);
+            System.exit(1);
+        }
+
         //Init S3 client
-        if (config.getBoolean(ConfigId.S3_ENABLED, false))
+        if (config.getBoolean(ConfigId.S3_ENABLED, false)) {
             awsS3Client = new AwsS3Client();
 
+            //S3 puts are replicated in the background, off the request thread
+            if (config.getBoolean(ConfigId.S3_WRITE_BEHIND, true))
+                s3WriteBehind = new S3WriteBehind("users", awsS3Client, config.get(ConfigId.S3_BUCKET, ""));
+
+            s3Resync = new S3Resync("users", awsS3Client, config.get(ConfigId.S3_BUCKET, ""), config.get(ConfigId.S3_JSON_USERS_PREFIX, "json"),
+                    remoteHandler, key -> s3WriteBehind != null && s3WriteBehind.isPending(key));
+        }
+
+        //Updates go to a write-ahead log, compacted into the json files in the background
+        if (recordStore == null && config.getBoolean(ConfigId.WAL_ENABLED, true))
+            mutationLog = new MutationLog("users", Paths.get(directory, "wal"), localStore);
+
         prime();
     }
 
@@ -106,11 +214,23 @@ public class UserDAOImpl implements UserDAO {
         if (email == null)
             return null;
 
-        //Quick search of cache.  I'm sure this can be optimized, but this is only a POC
-        UserSecurity userSecurity = users.values().stream().filter(userSecurity1 -> userSecurity1.getEmail().equalsIgnoreCase(email)).findFirst().orElse(null);
+        //Storage backend, through its email index, checked against the user since the index holds emails truncated
+        if (recordStore != null) {
+            String id = recordStore.findKey(emailKey(email));
+            UserSecurity userSecurity = lookup(id);
 
-        if (userSecurity != null)
-            return userSecurity.getId();
+            if (userSecurity != null && email.equalsIgnoreCase(userSecurity.getEmail()))
+                return id;
+
+            throw new UserNotFoundException("User not found [" + email + "]");
+        }
+
+        //Email index, checked against the user since a bundle may index an email its json file no longer has
+        String id = emailIds.get(emailKey(email));
+        UserSecurity userSecurity = lookup(id);
+
+        if (userSecurity != null && email.equalsIgnoreCase(userSecurity.getEmail()))
+            return id;
 
         //Not found, so throw it.
         throw new UserNotFoundException("User not found [" + email + "]");
@@ -127,11 +247,8 @@ public class UserDAOImpl implements UserDAO {
      */
     @Override
     public User getUser(String id) throws UserNotFoundException {
-        if (id == null)
-            return null;
-
-        //From cache
-        return users.get(id);
+        //From cache or storage backend
+        return lookup(id);
     }
 
     /**
@@ -142,10 +259,74 @@ public class UserDAOImpl implements UserDAO {
     @Override
     public List<User> getAllUsers() {
 
-        //Convert from cache
-        return new ArrayList<>(users.values());
+        List<User> all = new ArrayList<>();
+        iterateUsers().forEachRemaining(all::add);
+
+        return all;
+    }
+
+    /**
+     * Iterate over all users without copying them.  Users missing from the cache are read without being cached, so
+     * an iteration does not evict the hot users.
+     *
+     * @return Iterator of {@link User}, weakly consistent with concurrent updates
+     */
+    @Override
+    public Iterator<User> iterateUsers() {
+
+        if (recordStore != null) {
+
+            Iterator<Map.Entry<String, byte[]>> stored = recordStore.iterator();
+
+            return new Iterator<User>() {
+                @Override
+                public boolean hasNext() {
+                    return stored.hasNext();
+                }
+
+                @Override
+                public User next() {
+                    Map.Entry<String, byte[]> record = stored.next();
+                    UserSecurity cached = users.getIfPresent(record.getKey());
+                    return cached != null ? cached : decode(record.getValue());
+                }
+            };
+        }
 
+        Iterator<String> ids = userEmails.keySet().iterator();
 
+        return new Iterator<User>() {
+
+            private User next;
+
+            @Override
+            public boolean hasNext() {
+
+                while (next == null && ids.hasNext()) {
+                    String id = ids.next();
+                    UserSecurity cached = users.getIfPresent(id);
+
+                    try {
+                        next = cached != null ? cached : loadUser(id);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public User next() {
+
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                User current = next;
+                next = null;
+                return current;
+            }
+        };
     }
 
 
@@ -160,9 +341,11 @@ public class UserDAOImpl implements UserDAO {
     public UserSecurity getUserAuthentication(String id) throws UserNotFoundException {
 
 
-        //From cache
-        if (users.get(id) != null)
-            return users.get(id);
+        //From cache or storage backend
+        UserSecurity userSecurity = lookup(id);
+
+        if (userSecurity != null)
+            return userSecurity;
 
         throw new UserNotFoundException("User was not found from id [" + id + "]");
     }
@@ -182,18 +365,20 @@ public class UserDAOImpl implements UserDAO {
             return false;
 
 
-        if (users.get(user.getId()) != null) {
+        UserSecurity current = lookup(user.getId());
+
+        if (current != null) {
 
             //copy the token
             if (user.getToken() != null)
-                users.get(user.getId()).setToken(user.getToken());
+                current.setToken(user.getToken());
 
             //copy the password
             if (user.getPassword() != null)
-                users.get(user.getId()).setPassword(user.getPassword());
+                current.setPassword(user.getPassword());
 
             //Update user cache
-            deepUpdateUser(users.get(user.getId()));
+            deepUpdateUser(current);
             return true;
         }
 
@@ -218,7 +403,7 @@ public class UserDAOImpl implements UserDAO {
 
         }
 
-        UserSecurity userSecurity = users.get(user.getId());
+        UserSecurity userSecurity = lookup(user.getId());
 
         if (userSecurity == null)
             return false;
@@ -250,92 +435,433 @@ public class UserDAOImpl implements UserDAO {
      */
     private void prime() {
 
-        try {
-
-            Gson gson = new Gson();
-
 
-            File dir = new File(directory);
+        File dir = new File(directory);
 
-            if (!dir.exists()) {
-                if (!dir.mkdirs()) {
-                    logger.error("Could not initialize json directory {}", directory);
-                }
+        if (!dir.exists()) {
+            if (!dir.mkdirs()) {
+                logger.error("Could not initialize json directory {}", directory);
             }
+        }
 
 
-            File[] files = dir.listFiles();
+        int parallelism = config.getInt(ConfigId.PRIME_THREADS, 8);
 
-            if (files == null) {
-                logger.error("Failed to load locate directory [{}] for json pre-load..exiting", directory);
+        if (recordStore != null) {
+
+            //Nothing to load, the json directory is only read once to populate the storage backend
+            try {
+                if (!recordStore.isMigrated())
+                    migrate(parallelism);
+            } catch (IOException e) {
+                logger.error("Failed to migrate users to the storage backend..exiting", e);
                 System.exit(1);
             }
 
+        } else {
 
-            for (File file : files) {
+            //Snapshot first, then only the json files changed since
+            boolean loaded = localStore.load(parallelism, recordHandler);
 
-                if (!file.getName().contains(".json"))
-                    continue;
+            if (!loaded) {
+                logger.error("Failed to load locate directory [{}] for json pre-load..exiting", directory);
+                System.exit(1);
+            }
 
-                logger.info("Loading user data from file [{}]", file.getName());
+            //Then the updates not compacted into the json files yet
+            if (mutationLog != null) {
                 try {
-                    UserSecurity userSecurity = gson.fromJson(new FileReader(file), UserSecurity.class);
-                    users.put(userSecurity.getId(), userSecurity);
-
+                    mutationLog.open(recordHandler);
                 } catch (IOException e) {
-                    logger.error("Could not load user from json file {} ", file.getName(), e);
+                    logger.error("Failed to open users write-ahead log..exiting", e);
+                    System.exit(1);
                 }
             }
+        }
 
 
-            if (config.getBoolean(ConfigId.S3_ENABLED, false)) {
-                logger.debug("Attempting to load cache from S3 [{}/{}]", config.get(ConfigId.S3_BUCKET), config.get(ConfigId.S3_JSON_USERS_PREFIX));
-                List<S3ObjectSummary> allObjects = awsS3Client.getAllObjects(config.get(ConfigId.S3_BUCKET, ""), config.get(ConfigId.S3_JSON_USERS_PREFIX, "json"));
+        //Load from S3, then follow the changes made by other nodes
+        if (s3Resync != null) {
 
-                if (allObjects != null) {
-                    for (S3ObjectSummary objectSummary : allObjects) {
+            if (!s3Resync.load())
+                logger.error("Could not list S3 users [{}/{}]", config.get(ConfigId.S3_BUCKET), config.get(ConfigId.S3_JSON_USERS_PREFIX));
 
-                        if (!objectSummary.getKey().contains(".json"))
-                            continue;
+            s3Resync.start();
+        }
 
-                        UserSecurity user = gson.fromJson(new InputStreamReader(awsS3Client.getObject(objectSummary)), UserSecurity.class);
-                        users.put(user.getId(), user);
+        if (recordStore != null)
+            return;
 
+        //Every user is read back from its json file, its bundle or the write-ahead log
+        localStore.startSnapshots(changes::get, this::snapshotRecords);
 
-                    }
-                }
-            }
-        } catch (Exception e) {
-            logger.error("S3 Exception loading all users from {}", ConfigId.S3_JSON_USERS_PREFIX, e);
+        //Apply json files dropped into the directory from now on
+        localStore.startWatching(recordHandler);
+
+    }
+
+
+    /**
+     * Populate the storage backend from the json directory, snapshot and write-ahead log of the json backend.  Runs
+     * once, the json directory is left in place.
+     *
+     * @param parallelism Number of files parsed in parallel
+     * @throws IOException Write-ahead log could not be replayed, or the store not committed
+     */
+    private void migrate(int parallelism) throws IOException {
+
+        logger.info("Migrating users from [{}] to the storage backend", directory);
+
+        if (!localStore.load(parallelism, recordHandler)) {
+            logger.error("Failed to load locate directory [{}] for users migration..exiting", directory);
+            System.exit(1);
         }
 
+        //Updates not compacted yet are replayed, and compacted into the json files by the close
+        if (config.getBoolean(ConfigId.WAL_ENABLED, true)) {
+            MutationLog log = new MutationLog("users", Paths.get(directory, "wal"), localStore);
+            log.open(recordHandler);
+            log.close();
+        }
+
+        recordStore.setMigrated(directory);
+
+        logger.info("Migrated {} users to the storage backend", recordStore.size());
     }
 
 
     /**
-     * Update user with security context updating both cache and persist (S3)
+     * User by id, from the cache, loaded on a miss.  A user which cannot be read is not found, and not cached, so the
+     * next lookup retries.
      *
-     * @param userSecurity User with security context
-     * @return True if user updated to persist
+     * @param id GUID of user
+     * @return User with security context, null if not found
      */
-    private boolean deepUpdateUser(UserSecurity userSecurity) {
+    private UserSecurity lookup(String id) {
 
+        if (id == null)
+            return null;
 
-        Gson gson = new Gson();
+        try {
+            return users.get(id);
+        } catch (CompletionException e) {
+            //The cache wraps the IOException of the loader
+            logger.error("Could not load user [{}]", id, e.getCause());
+            return null;
+        }
+    }
 
-        String directory = config.get(ConfigId.JSON_USERS_DIR, "json/users");
+    /**
+     * Cache loader: the storage backend, or the write-ahead log, the json file and S3 for a known user
+     *
+     * @param id GUID of user
+     * @return User with security context, null if not found
+     * @throws IOException User could not be read
+     */
+    private UserSecurity loadUser(String id) throws IOException {
 
+        byte[] json;
 
-        String fileName = userSecurity.getId() + ".json";
+        if (recordStore != null) {
+            json = recordStore.get(id);
 
+        } else {
+            //Removed users are not brought back by a stale copy
+            if (!userEmails.containsKey(id))
+                return null;
 
+            json = readLocal(id);
+
+            if (json == null && awsS3Client != null)
+                json = readS3(id);
+        }
+
+        return json == null ? null : decode(json);
+    }
+
+    /**
+     * @return True for a user of a bundle whose own json file takes precedence, see {@link LocalJsonStore}
+     */
+    private static boolean isSkipped(UserSecurity userSecurity, Predicate<String> accept) {
+        return userSecurity != null && userSecurity.getId() != null && !accept.test(userSecurity.getId());
+    }
+
+    /**
+     * Apply a parsed record to the storage backend or the email index, and drop the cached copy
+     *
+     * @param userSecurity Parsed user
+     * @param remote       True for a record of S3, which replaces the local copy
+     * @return User id, null if skipped
+     * @throws IOException Local copy could not be written
+     */
+    private String apply(UserSecurity userSecurity, boolean remote) throws IOException {
+
+        if (userSecurity == null || userSecurity.getId() == null) {
+            logger.warn("Skipping user without id");
+            return null;
+        }
+
+        String id = userSecurity.getId();
+        byte[] json = gson.toJson(userSecurity).getBytes(StandardCharsets.UTF_8);
+        boolean written = false;
+
+        if (recordStore != null) {
+            recordStore.put(id, json, emailKey(userSecurity.getEmail()));
+
+        } else if (remote) {
+            written = !Arrays.equals(json, readLocal(id));
+            if (written)
+                writeLocal(id, json);
+
+        }
+        //Otherwise loaded from its json file, a bundle or the snapshot, and read back from there, see readLocal
+
+        index(userSecurity);
+
+        if (written)
+            stamp(id, json);
+        users.invalidate(id);
+        changes.incrementAndGet();
+
+        return id;
+    }
+
+    private void remove(String id) {
+
+        if (recordStore != null)
+            recordStore.remove(id);
+
+        String email = userEmails.remove(id);
+
+        if (email != null) {
+            emailIds.remove(email, id);
+            changes.incrementAndGet();
+        }
+
+        users.invalidate(id);
+    }
+
+    /**
+     * Index the email of a user, with the json backend.  The storage backends have their own index.
+     */
+    private void index(UserSecurity userSecurity) {
+
+        if (recordStore != null)
+            return;
+
+        String email = emailKey(userSecurity.getEmail());
+        String key = email == null ? "" : email;
+        String previous = userEmails.put(userSecurity.getId(), key);
+
+        if (previous != null && !previous.equals(key))
+            emailIds.remove(previous, userSecurity.getId());
+
+        if (!key.isEmpty())
+            emailIds.put(key, userSecurity.getId());
+    }
+
+    /**
+     * @return True if the user has a json file or an uncompacted log record
+     */
+    private boolean isLocal(String id) {
+        return (mutationLog != null && mutationLog.getUncompacted(id) != null) || Files.exists(Paths.get(directory, id + ".json"));
+    }
+
+    /**
+     * Bundle a user is read back from, see {@link LocalJsonStore#getBundle(String)}
+     *
+     * @return File name, null if the user has a json file or an uncompacted log record
+     */
+    private String bundleOf(String id) {
+        String bundle = localStore.getBundle(id);
+        return bundle == null || isLocal(id) ? null : bundle;
+    }
+
+    /**
+     * Latest local json of a user: write-ahead log, json file, then the bundle it was loaded from.  Users of a bundle
+     * stay in it, so that editing the bundle keeps updating them.
+     *
+     * @param id GUID of user
+     * @return Json, null if there is no local copy
+     * @throws IOException Json file could not be read
+     */
+    private byte[] readLocal(String id) throws IOException {
+
+        byte[] json = mutationLog == null ? null : mutationLog.getUncompacted(id);
+
+        if (json != null)
+            return json;
+
+        try {
+            return Files.readAllBytes(Paths.get(directory, id + ".json"));
+        } catch (NoSuchFileException e) {
+            String bundle = bundleOf(id);
+            return bundle == null ? null : readBundle(bundle).get(id);
+        }
+    }
+
+    private byte[] readLocalUnchecked(String id) {
         try {
-            FileWriter jsonFile = new FileWriter(Paths.get(directory, fileName).toString());
+            return readLocal(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Json of the users a bundle holds, that are not shadowed by their own json file or a log record
+     *
+     * @param fileName Bundle file name
+     * @return Json by user id, empty if the bundle was removed
+     * @throws IOException Bundle could not be read or parsed
+     */
+    private Map<String, byte[]> readBundle(String fileName) throws IOException {
+
+        Map<String, byte[]> users = new HashMap<>();
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(Paths.get(directory, fileName).toFile()), StandardCharsets.UTF_8)) {
+            userLoader.load(reader, userSecurity -> {
+                if (userSecurity != null && fileName.equals(bundleOf(userSecurity.getId())))
+                    users.put(userSecurity.getId(), gson.toJson(userSecurity).getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+        } catch (FileNotFoundException e) {
+            return Collections.emptyMap();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not parse users bundle [" + fileName + "]", e);
+        }
+
+        return users;
+    }
+
+    /**
+     * Records of a snapshot: every indexed user, each bundle read once
+     */
+    private Iterator<Map.Entry<String, byte[]>> snapshotRecords() {
+
+        Map<String, List<String>> bundled = new HashMap<>();
+        List<String> own = new ArrayList<>();
+
+        for (String id : userEmails.keySet()) {
+            String bundle = bundleOf(id);
+            if (bundle == null)
+                own.add(id);
+            else
+                bundled.computeIfAbsent(bundle, k -> new ArrayList<>()).add(id);
+        }
+
+        Stream<Map.Entry<String, byte[]>> ownRecords = own.stream()
+                .map(id -> new AbstractMap.SimpleImmutableEntry<>(id, readLocalUnchecked(id)));
+
+        Stream<Map.Entry<String, byte[]>> bundleRecords = bundled.keySet().stream()
+                .flatMap(bundle -> {
+                    try {
+                        return readBundle(bundle).entrySet().stream();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+
+        return Stream.concat(ownRecords, bundleRecords)
+                .filter(record -> record.getValue() != null && userEmails.containsKey(record.getKey()))
+                .iterator();
+    }
+
+    /**
+     * Json of a user missing locally from S3, written locally so the next miss stays local
+     *
+     * @param id GUID of user
+     * @return Json, null if not in S3
+     * @throws IOException Object could not be read, or the local copy written
+     */
+    private byte[] readS3(String id) throws IOException {
+
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(config.get(ConfigId.S3_BUCKET, ""));
+        summary.setKey(Paths.get(config.get(ConfigId.S3_JSON_USERS_PREFIX, ""), id + ".json").toString());
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+
+        try (InputStream inputStream = awsS3Client.getObject(summary)) {
+
+            if (inputStream == null)
+                return null;
+
+            byte[] buffer = new byte[4096];
+            int read;
+
+            while ((read = inputStream.read(buffer)) != -1)
+                json.write(buffer, 0, read);
+        }
+
+        logger.info("Loaded user [{}] missing locally from S3", id);
+        //Only called for indexed users, see loadUser
+        byte[] bytes = json.toByteArray();
+        writeLocal(id, bytes);
+        stamp(id, bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Write the local copy of a user, without replicating it.  Stamped once indexed.
+     */
+    private void writeLocal(String id, byte[] json) throws IOException {
+
+        if (mutationLog != null)
+            mutationLog.write(id, json);
+        else
+            localStore.replaceFile(id + ".json", id, json);
+    }
+
+    /**
+     * Let the json file of a user written locally be stamped, directly or by the write-ahead log compaction, now that
+     * the user is indexed and so part of the snapshots
+     */
+    private void stamp(String id, byte[] json) {
+
+        if (mutationLog != null)
+            mutationLog.cached(id, json);
+        else if (recordStore == null)
+            localStore.stamp(id + ".json", id);
+    }
 
+    private UserSecurity decode(byte[] json) {
+        return gson.fromJson(new String(json, StandardCharsets.UTF_8), UserSecurity.class);
+    }
+
+    /**
+     * Email index value of a user, emails are matched case insensitively
+     */
+    private static String emailKey(String email) {
+        return email == null ? null : email.toLowerCase(Locale.ROOT);
+    }
+
+
+    /**
+     * Update user with security context updating both cache and persist (S3)
+     *
+     * @param userSecurity User with security context
+     * @return True if user updated to persist
+     */
+    private boolean deepUpdateUser(UserSecurity userSecurity) {
+
+        String fileName = userSecurity.getId() + ".json";
 
-            gson.toJson(userSecurity, jsonFile);
-            jsonFile.flush();
-            jsonFile.close();
+        byte[] json = gson.toJson(userSecurity).getBytes(StandardCharsets.UTF_8);
+
+
+        try {
+            if (recordStore != null) {
+                recordStore.put(userSecurity.getId(), json, emailKey(userSecurity.getEmail()));
+                recordStore.commit(Collections.singleton(userSecurity.getId()));
+            } else if (mutationLog != null) {
+                mutationLog.write(userSecurity.getId(), json);
+            } else {
+                localStore.replaceFile(fileName, userSecurity.getId(), json);
+            }
 
         } catch (IOException e) {
             logger.error("Could not write user file [{}] to disk for {}", fileName, userSecurity.getEmail(), e);
@@ -345,16 +871,34 @@ public class UserDAOImpl implements UserDAO {
 
         if (config.getBoolean(ConfigId.S3_ENABLED, false)) {
 
-            //  AwsS3Client awsS3Client = new AwsS3Client();
-            awsS3Client.putObject(
-                    config.get(ConfigId.S3_BUCKET, ""),
-                    Paths.get(config.get(ConfigId.S3_JSON_USERS_PREFIX, ""), userSecurity.getId() + ".json").toString(),
-                    new ByteArrayInputStream(gson.toJson(userSecurity).getBytes(StandardCharsets.UTF_8)),
-                    null);
+            String key = Paths.get(config.get(ConfigId.S3_JSON_USERS_PREFIX, ""), fileName).toString();
+
+            s3Resync.written(key, userSecurity.getId(), json);
+
+            if (s3WriteBehind != null) {
+                s3WriteBehind.submit(key, json);
+            } else {
+                awsS3Client.putObject(config.get(ConfigId.S3_BUCKET, ""), key, new ByteArrayInputStream(json), null);
+            }
         }
 
+        index(userSecurity);
         users.put(userSecurity.getId(), userSecurity);
+        changes.incrementAndGet();
+        stamp(userSecurity.getId(), json);
+
         return true;
     }
 
+
+    /**
+     * Queue depth and lag of the S3 write-behind queue
+     *
+     * @return Replication metrics, null if S3 is disabled or written synchronously
+     */
+    @Override
+    public ReplicationStats getReplicationStats() {
+        return s3WriteBehind == null ? null : s3WriteBehind.getStats();
+    }
+
 }
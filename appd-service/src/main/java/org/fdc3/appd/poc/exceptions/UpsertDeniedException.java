@@ -0,0 +1,34 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.exceptions;
+
+/**
+ * An upsert rejected by its authorization check, e.g. the caller does not own the existing application.
+ */
+public class UpsertDeniedException extends DaoException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UpsertDeniedException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.filter;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+/**
+ * Answers conditional GETs.  When a successful response carries an ETag matching the request If-None-Match header,
+ * the entity is dropped and 304 is returned instead.
+ * <p>
+ * Responses are streamed, so dropping the entity here means nothing is serialized for a matching request.
+ **/
+public class ConditionalGetFilter implements ContainerResponseFilter {
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+
+        if (responseContext.getStatus() != Response.Status.OK.getStatusCode())
+            return;
+
+        String ifNoneMatch = requestContext.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        String etag = responseContext.getHeaderString(HttpHeaders.ETAG);
+
+        if (ifNoneMatch == null || etag == null)
+            return;
+
+        if (matches(ifNoneMatch, opaqueTag(etag))) {
+            responseContext.setStatus(Response.Status.NOT_MODIFIED.getStatusCode());
+            responseContext.setEntity(null);
+        }
+    }
+
+    /**
+     * Weak comparison of the If-None-Match list against the response tag, as required for If-None-Match
+     */
+    private boolean matches(String ifNoneMatch, String tag) {
+
+        for (String candidate : ifNoneMatch.split(",")) {
+
+            candidate = candidate.trim();
+
+            if (candidate.equals("*") || opaqueTag(candidate).equals(tag))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+
+        String tag = etag.trim();
+
+        if (tag.startsWith("W/"))
+            tag = tag.substring(2);
+
+        if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\""))
+            tag = tag.substring(1, tag.length() - 1);
+
+        return tag;
+    }
+}
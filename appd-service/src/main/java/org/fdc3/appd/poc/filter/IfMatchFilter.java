@@ -0,0 +1,70 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.filter;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * Hands the If-Match header of a write over to services which do not receive request headers, like the generated V1
+ * API.  The entity tag is held for the thread processing the request, and cleared with the response.
+ **/
+public class IfMatchFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final ThreadLocal<String> IF_MATCH = new ThreadLocal<>();
+
+    /**
+     * @return Opaque tag of the If-Match header of the current request (the first one of a list), * for any, null
+     * if the request has none
+     */
+    public static String getIfMatch() {
+        return IF_MATCH.get();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+
+        String ifMatch = requestContext.getHeaderString(HttpHeaders.IF_MATCH);
+
+        if (ifMatch == null || ifMatch.trim().isEmpty()) {
+            IF_MATCH.remove();
+            return;
+        }
+
+        String tag = ifMatch.split(",")[0].trim();
+
+        if (tag.startsWith("W/"))
+            tag = tag.substring(2);
+
+        if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\""))
+            tag = tag.substring(1, tag.length() - 1);
+
+        IF_MATCH.set(tag);
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+        IF_MATCH.remove();
+    }
+}
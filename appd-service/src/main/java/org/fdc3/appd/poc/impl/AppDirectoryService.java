@@ -24,17 +24,24 @@ import com.google.gson.JsonObject;
 import org.fdc3.appd.poc.dao.AppsDAO;
 import org.fdc3.appd.poc.dao.AppsDAOFactory;
 import org.fdc3.appd.poc.exceptions.DaoException;
+import org.fdc3.appd.poc.exceptions.UpsertDeniedException;
+import org.fdc3.appd.poc.exceptions.VersionConflictException;
+import org.fdc3.appd.poc.filter.IfMatchFilter;
+import org.fdc3.appd.poc.model.EncodedApplication;
 import org.fdc3.appd.poc.model.UserSecurity;
+import org.fdc3.appd.poc.util.ApplicationsStreamingOutput;
 import org.fdc3.appd.server.api.NotFoundException;
 import org.fdc3.appd.server.api.V1ApiService;
 import org.fdc3.appd.server.model.Application;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
-import java.util.ArrayList;
-import java.util.List;
+import javax.ws.rs.core.StreamingOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The AppD directory delegate for core interface
@@ -45,33 +52,41 @@ public class AppDirectoryService extends V1ApiService {
 
     private AppsDAO appsDAO = AppsDAOFactory.getAppsDAO();
 
+    //Envelope around the pre-encoded application json, written as is to the response
+    private static final byte[] APPLICATION_PREFIX = "{\"application\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OK_SUFFIX = ",\"message\":\"OK\"}".getBytes(StandardCharsets.UTF_8);
+
     private Logger logger = LoggerFactory.getLogger(AppDirectoryService.class);
 
+    /**
+     * Retrieve an application by appId.  The application json is encoded when the application is upserted and is
+     * written to the response stream as bytes, nothing is serialized per request.  The content hash of the
+     * application is used as entity tag.
+     */
     @Override
     public Response v1AppsAppIdGet(String appId, SecurityContext securityContext) throws NotFoundException {
 
-
-        JsonObject jo = new JsonObject();
-        Response.Status status = Response.Status.OK;
-        Gson gson = new GsonBuilder().create();
+        EncodedApplication encodedApp;
 
         try {
 
-            Application application = appsDAO.getApp(appId);
-
-
-            jo.add("application", gson.toJsonTree(application));
-            jo.addProperty("message", "OK");
+            encodedApp = appsDAO.getEncodedApp(appId);
 
         } catch (DaoException e) {
-            e.printStackTrace();
-            jo.addProperty("message", "application record not found");
-            status = Response.Status.NOT_FOUND;
-
+            logger.debug("Application [{}] not found", appId);
 
+            JsonObject jo = new JsonObject();
+            jo.addProperty("message", "application record not found");
+            return Response.status(Response.Status.NOT_FOUND).entity(jo.toString()).build();
         }
 
-        return Response.ok().entity(jo.toString()).status(status).build();
+        StreamingOutput entity = output -> {
+            output.write(APPLICATION_PREFIX);
+            encodedApp.writeJson(output);
+            output.write(OK_SUFFIX);
+        };
+
+        return Response.ok(entity).tag(new EntityTag(encodedApp.getHash())).build();
     }
 
 
@@ -83,6 +98,7 @@ public class AppDirectoryService extends V1ApiService {
         UserSecurity userSecurity = (UserSecurity) securityContext.getUserPrincipal();
 
         Gson gson = new GsonBuilder().create();
+        EncodedApplication stored = null;
 
         try {
             //Check basic requirements
@@ -96,26 +112,28 @@ public class AppDirectoryService extends V1ApiService {
             }
 
 
-            Application tApp = null;
+            //upsert, the publisher/company of an existing application and the If-Match revision are checked atomically
+            //with the update
+            AtomicReference<String> owner = new AtomicReference<>();
 
             try {
-                tApp = appsDAO.getApp(application.getAppId());
-            } catch (DaoException e) {
-                logger.debug("Application does not exist...");
-            }
-
-            //Check if existing and publisher/company match for update
-            if (tApp != null) {
-
-                if (!tApp.getPublisher().equalsIgnoreCase(userSecurity.getCompany())) {
-                    jo.addProperty("message", "Unable to update application. " + userSecurity.getEmail() + " is not the administrator for company/publisher= " + tApp.getPublisher());
-                    return Response.status(Response.Status.UNAUTHORIZED).entity(jo.toString()).build();
-                }
+                stored = appsDAO.upsertApp(application, existing -> {
+                    if (existing == null)
+                        return true;
+
+                    owner.set(existing.getPublisher());
+                    return existing.getPublisher() != null && existing.getPublisher().equalsIgnoreCase(userSecurity.getCompany());
+                }, IfMatchFilter.getIfMatch());
+            } catch (UpsertDeniedException e) {
+                jo.addProperty("message", "Unable to update application. " + userSecurity.getEmail() + " is not the administrator for company/publisher= " + owner.get());
+                return Response.status(Response.Status.UNAUTHORIZED).entity(jo.toString()).build();
+            } catch (VersionConflictException e) {
+                jo.addProperty("message", e.getMessage() + ", the update was based on another revision (If-Match " + IfMatchFilter.getIfMatch() + ")");
+                return Response.status(Response.Status.PRECONDITION_FAILED).entity(jo.toString()).build();
             }
 
-            //upsert
-            appsDAO.setApp(application);
             jo.add("application", gson.toJsonTree(application));
+            jo.addProperty("revision", stored.getRevision());
             jo.addProperty("message", "OK");
 
 
@@ -127,27 +145,29 @@ public class AppDirectoryService extends V1ApiService {
 
         }
 
-        return Response.ok().entity(jo.toString()).status(status).build();
+        Response.ResponseBuilder response = Response.ok().entity(jo.toString()).status(status);
+
+        //Entity tag of the stored definition, for the next If-Match
+        if (stored != null)
+            response.tag(new EntityTag(stored.getHash()));
+
+        return response.build();
     }
 
+    /**
+     * Search all applications.  Results are streamed from the pre-encoded application json, so the response is never
+     * built in memory.  The catalog digest is used as entity tag.
+     */
     @Override
     public Response v1AppsSearchGet(SecurityContext securityContext) throws NotFoundException {
 
-        JsonObject jo = new JsonObject();
-        Response.Status status = Response.Status.OK;
-        Gson gson = new GsonBuilder().create();
-
         UserSecurity userSecurity = (UserSecurity) securityContext.getUserPrincipal();
 
         logger.debug("{}", userSecurity.toString());
 
-        List<Application> applications = new ArrayList<>(appsDAO.getApps().values());
-
-        jo.add("applications", gson.toJsonTree(applications));
-        jo.addProperty("message", "OK");
-
+        EntityTag tag = new EntityTag(appsDAO.getCatalogDigest());
 
-        return Response.ok().entity(jo.toString()).status(status).build();
+        return Response.ok(new ApplicationsStreamingOutput(appsDAO.findApps(null, null), 0)).tag(tag).build();
 
     }
 
@@ -0,0 +1,87 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.model;
+
+/**
+ * Search criteria for the application directory.  Unset (null) criteria match everything.
+ */
+public class AppSearch {
+	private String name = null;
+	private String publisher = null;
+	private String intent = null;
+	private String context = null;
+	private String text = null;
+
+	public AppSearch() {}
+
+	public AppSearch(String name, String publisher, String intent, String context, String text) {
+		this.name = name;
+		this.publisher = publisher;
+		this.intent = intent;
+		this.context = context;
+		this.text = text;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getPublisher() {
+		return publisher;
+	}
+
+	public void setPublisher(String publisher) {
+		this.publisher = publisher;
+	}
+
+	public String getIntent() {
+		return intent;
+	}
+
+	public void setIntent(String intent) {
+		this.intent = intent;
+	}
+
+	public String getContext() {
+		return context;
+	}
+
+	public void setContext(String context) {
+		this.context = context;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public void setText(String text) {
+		this.text = text;
+	}
+
+	@Override
+	public String toString() {
+		return "AppSearch [name=" + name + ", publisher=" + publisher + ", intent=" + intent + ", context=" + context + ", text=" + text + "]";
+	}
+
+}
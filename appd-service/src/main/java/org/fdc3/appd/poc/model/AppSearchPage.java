@@ -0,0 +1,58 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.model;
+
+import org.fdc3.appd.server.model.Application;
+
+import java.util.List;
+
+/**
+ * One page of application search results.
+ * <p>
+ * The last appId is set when the page is full, so the caller can continue the search after it.
+ */
+public class AppSearchPage {
+	private List<Application> applications = null;
+	private String lastAppId = null;
+
+	public AppSearchPage() {}
+
+	public AppSearchPage(List<Application> applications, String lastAppId) {
+		this.applications = applications;
+		this.lastAppId = lastAppId;
+	}
+
+	public List<Application> getApplications() {
+		return applications;
+	}
+
+	public void setApplications(List<Application> applications) {
+		this.applications = applications;
+	}
+
+	public String getLastAppId() {
+		return lastAppId;
+	}
+
+	public void setLastAppId(String lastAppId) {
+		this.lastAppId = lastAppId;
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.model;
+
+import org.fdc3.appd.server.model.Application;
+
+/**
+ * A change of the application catalog, as published to change feed subscribers.  Live events also carry the
+ * application before and after the change, which are not serialized nor kept in the change journal.
+ */
+public class ChangeEvent {
+	public static final String UPSERT = "upsert";
+	public static final String DELETE = "delete";
+	public static final String RESET = "reset";
+
+	private long id = 0;
+	private String type = null;
+	private String appId = null;
+	private long version = 0;
+	private transient Application previous = null;
+	private transient Application application = null;
+
+	public ChangeEvent() {}
+
+	public ChangeEvent(long id, String type, String appId, long version) {
+		this.id = id;
+		this.type = type;
+		this.appId = appId;
+		this.version = version;
+	}
+
+	public ChangeEvent(long id, String type, String appId, long version, Application previous, Application application) {
+		this(id, type, appId, version);
+		this.previous = previous;
+		this.application = application;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getAppId() {
+		return appId;
+	}
+
+	public void setAppId(String appId) {
+		this.appId = appId;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public Application getPrevious() {
+		return previous;
+	}
+
+	public Application getApplication() {
+		return application;
+	}
+
+}
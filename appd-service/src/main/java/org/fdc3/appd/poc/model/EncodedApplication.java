@@ -0,0 +1,97 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.model;
+
+import org.fdc3.appd.server.model.Application;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An application definition together with its revision, UTF-8 encoded json and content hash, built once when the
+ * application is upserted.  The stored json carries the revision as its first member, so it travels to every stored
+ * copy, while responses are written without it: the revision is not part of the application schema, the entity tag
+ * already identifies the definition.
+ * <p>
+ * Instances are immutable and replaced as a whole on every upsert.  The json bytes must not be modified.
+ */
+public class EncodedApplication {
+	private final Application application;
+	private final byte[] json;
+	private final int bodyOffset;
+	private final String hash;
+	private final long revision;
+
+	/**
+	 * @param application Application definition
+	 * @param json        Stored json, the revision member first
+	 * @param bodyOffset  Offset in the stored json of the members following the revision, or of the closing brace
+	 * @param hash        Hash of the stored json
+	 * @param revision    Revision number
+	 */
+	public EncodedApplication(Application application, byte[] json, int bodyOffset, String hash, long revision) {
+		this.application = application;
+		this.json = json;
+		this.bodyOffset = bodyOffset;
+		this.hash = hash;
+		this.revision = revision;
+	}
+
+	public Application getApplication() {
+		return application;
+	}
+
+	public String getAppId() {
+		return application.getAppId();
+	}
+
+	/**
+	 * @return Json of the stored copies, with the revision
+	 */
+	public byte[] getStoredJson() {
+		return json;
+	}
+
+	/**
+	 * Write the json of the application definition, without the revision
+	 *
+	 * @param output Response output
+	 * @throws IOException Json could not be written
+	 */
+	public void writeJson(OutputStream output) throws IOException {
+		output.write('{');
+		output.write(json, bodyOffset, json.length - bodyOffset);
+	}
+
+	/**
+	 * @return Hex encoded SHA-256 of the json, used as strong entity tag
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return Revision number, incremented on every upsert of the application
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.model;
+
+/**
+ * Point in time metrics of an asynchronous S3 replication queue.
+ * <p>
+ * Lag is the age of the oldest change not yet stored in S3, zero when the queue is empty.
+ */
+public class ReplicationStats {
+	private String name = null;
+	private int queuedKeys = 0;
+	private int inFlightKeys = 0;
+	private long queuedBytes = 0;
+	private long maxQueuedBytes = 0;
+	private long lagMillis = 0;
+	private long uploaded = 0;
+	private long coalesced = 0;
+	private long failures = 0;
+	private long throttled = 0;
+
+	public ReplicationStats() {}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getQueuedKeys() {
+		return queuedKeys;
+	}
+
+	public void setQueuedKeys(int queuedKeys) {
+		this.queuedKeys = queuedKeys;
+	}
+
+	public int getInFlightKeys() {
+		return inFlightKeys;
+	}
+
+	public void setInFlightKeys(int inFlightKeys) {
+		this.inFlightKeys = inFlightKeys;
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	public void setQueuedBytes(long queuedBytes) {
+		this.queuedBytes = queuedBytes;
+	}
+
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public long getLagMillis() {
+		return lagMillis;
+	}
+
+	public void setLagMillis(long lagMillis) {
+		this.lagMillis = lagMillis;
+	}
+
+	public long getUploaded() {
+		return uploaded;
+	}
+
+	public void setUploaded(long uploaded) {
+		this.uploaded = uploaded;
+	}
+
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	public void setCoalesced(long coalesced) {
+		this.coalesced = coalesced;
+	}
+
+	public long getFailures() {
+		return failures;
+	}
+
+	public void setFailures(long failures) {
+		this.failures = failures;
+	}
+
+	public long getThrottled() {
+		return throttled;
+	}
+
+	public void setThrottled(long throttled) {
+		this.throttled = throttled;
+	}
+
+}
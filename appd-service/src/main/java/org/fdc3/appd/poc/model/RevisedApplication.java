@@ -0,0 +1,42 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.model;
+
+import org.fdc3.appd.server.model.Application;
+
+/**
+ * An application definition read from a stored copy (json file, write-ahead log, snapshot or S3), with the revision
+ * the copy was written with.  The revision is null for copies written without one, e.g. by hand.
+ */
+public class RevisedApplication extends Application {
+	public static final String REVISION = "revision";
+
+	private Long revision = null;
+
+	public Long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(Long revision) {
+		this.revision = revision;
+	}
+
+}
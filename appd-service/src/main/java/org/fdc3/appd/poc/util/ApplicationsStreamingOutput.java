@@ -0,0 +1,129 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.util;
+
+import org.fdc3.appd.poc.model.EncodedApplication;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.function.BiFunction;
+
+/**
+ * Streams a list of applications as {"applications":[...],"cursor":"...","message":"OK"}.
+ * <p>
+ * Each application is written from its pre-encoded json as it is pulled from the iterator, so the heap used per
+ * response does not depend on the number of applications.  The cursor is only written when the limit was reached.
+ */
+public class ApplicationsStreamingOutput implements StreamingOutput {
+
+    private static final byte[] APPLICATIONS_PREFIX = "{\"applications\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CURSOR_PREFIX = "],\"cursor\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CURSOR_SUFFIX = "\",\"message\":\"OK\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OK_SUFFIX = "],\"message\":\"OK\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final Iterator<EncodedApplication> applications;
+    private final int limit;
+    private final BiFunction<EncodedApplication, Integer, String> cursor;
+
+    /**
+     * Stream applications in appId order, the cursor is the last appId written
+     *
+     * @param applications Applications to stream
+     * @param limit        Maximum number of applications to write, 0 for no limit
+     */
+    public ApplicationsStreamingOutput(Iterator<EncodedApplication> applications, int limit) {
+        this(applications, limit, (last, count) -> encodeCursor(last.getAppId()));
+    }
+
+    /**
+     * @param applications Applications to stream
+     * @param limit        Maximum number of applications to write, 0 for no limit
+     * @param cursor       Creates the cursor from the last application and the number of applications written
+     */
+    public ApplicationsStreamingOutput(Iterator<EncodedApplication> applications, int limit, BiFunction<EncodedApplication, Integer, String> cursor) {
+        this.applications = applications;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+
+        output.write(APPLICATIONS_PREFIX);
+
+        int count = 0;
+        String next = null;
+
+        while (applications.hasNext()) {
+
+            EncodedApplication encodedApp = applications.next();
+
+            if (count++ > 0)
+                output.write(',');
+
+            encodedApp.writeJson(output);
+
+            if (limit > 0 && count >= limit) {
+                next = cursor.apply(encodedApp, count);
+                break;
+            }
+        }
+
+        if (next != null) {
+            output.write(CURSOR_PREFIX);
+            output.write(next.getBytes(StandardCharsets.US_ASCII));
+            output.write(CURSOR_SUFFIX);
+        } else {
+            output.write(OK_SUFFIX);
+        }
+
+        output.flush();
+    }
+
+    /**
+     * Encode the appId a page ended with as an opaque cursor
+     *
+     * @param appId Last appId of the page
+     * @return Cursor
+     */
+    public static String encodeCursor(String appId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(appId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a cursor created by {@link #encodeCursor(String)}
+     *
+     * @param cursor Cursor, may be null
+     * @return AppId to continue after, null if no cursor was given
+     * @throws IllegalArgumentException Cursor is not valid
+     */
+    public static String decodeCursor(String cursor) {
+
+        if (cursor == null || cursor.isEmpty())
+            return null;
+
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
+}
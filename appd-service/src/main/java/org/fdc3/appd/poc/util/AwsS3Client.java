@@ -20,6 +20,7 @@ package org.fdc3.appd.poc.util;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
@@ -61,10 +62,14 @@ public class AwsS3Client {
             credentials = new BasicAWSCredentials(config.get(ConfigId.S3_KEY_ID), config.get(ConfigId.S3_ACCESS_KEY));
 
 
+        //Size the HTTP connection pool for parallel priming and uploads
+        ClientConfiguration clientConfiguration = new ClientConfiguration()
+                .withMaxConnections(config.getInt(ConfigId.S3_MAX_CONNECTIONS, 50));
+
         if (credentials != null) {
-            s3Client = AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(config.get(ConfigId.S3_REGION, "us-east-1"))).withCredentials(new AWSStaticCredentialsProvider(credentials)).build();
+            s3Client = AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(config.get(ConfigId.S3_REGION, "us-east-1"))).withClientConfiguration(clientConfiguration).withCredentials(new AWSStaticCredentialsProvider(credentials)).build();
         } else {
-            s3Client = AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(config.get(ConfigId.S3_REGION, "us-east-1"))).build();
+            s3Client = AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(config.get(ConfigId.S3_REGION, "us-east-1"))).withClientConfiguration(clientConfiguration).build();
         }
     }
 
@@ -158,7 +163,16 @@ public class AwsS3Client {
         return object == null ? null : object.getObjectContent();
     }
 
-    public void putObject(String destBucket, String key, InputStream inputStream, ObjectMetadata metaData) {
+    /**
+     * Put an object to a given bucket
+     *
+     * @param destBucket  S3 bucket name
+     * @param key         Object key
+     * @param inputStream Object content
+     * @param metaData    Optional object metadata
+     * @return True if the object was stored
+     */
+    public boolean putObject(String destBucket, String key, InputStream inputStream, ObjectMetadata metaData) {
 
         try {
 
@@ -173,6 +187,8 @@ public class AwsS3Client {
 
             s3Client.putObject(new PutObjectRequest(destBucket, key, byteArrayInputStream, metaData));
 
+            return true;
+
 
         } catch (AmazonServiceException ase) {
             logger.error("Caught an AmazonServiceException, " +
@@ -196,6 +212,7 @@ public class AwsS3Client {
             logger.error("Obtaining length", e);
         }
 
+        return false;
     }
 
     public void moveObject(S3ObjectSummary objectSummary, String destBucket, String destKey) {
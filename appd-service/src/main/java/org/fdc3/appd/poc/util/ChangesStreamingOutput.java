@@ -0,0 +1,106 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.util;
+
+import com.google.gson.JsonPrimitive;
+import org.fdc3.appd.poc.dao.AppsDAO;
+import org.fdc3.appd.poc.exceptions.DaoException;
+import org.fdc3.appd.poc.model.EncodedApplication;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Streams the applications changed since a catalog version as
+ * {"since":N,"version":V,"changes":[{"op":"upsert","appId","application":{...}},{"op":"delete","appId"}],"message":"OK"}.
+ * <p>
+ * Each changed application is listed once with its current state, written from its pre-encoded json as the response
+ * is streamed.  An application changed again after the version was read is sent in its newer state, and again on the
+ * next call, so applying the changes is idempotent.
+ */
+public class ChangesStreamingOutput implements StreamingOutput {
+
+    private static final byte[] UPSERT_PREFIX = "{\"op\":\"upsert\",\"appId\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] APPLICATION_PREFIX = ",\"application\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DELETE_PREFIX = "{\"op\":\"delete\",\"appId\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OK_SUFFIX = "],\"message\":\"OK\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final AppsDAO appsDAO;
+    private final long since;
+    private final long version;
+    private final Collection<String> appIds;
+
+    /**
+     * @param appsDAO Applications
+     * @param since   Catalog version the client is at
+     * @param version Catalog version of the last change
+     * @param appIds  AppIds changed since the client version, each once
+     */
+    public ChangesStreamingOutput(AppsDAO appsDAO, long since, long version, Collection<String> appIds) {
+        this.appsDAO = appsDAO;
+        this.since = since;
+        this.version = version;
+        this.appIds = appIds;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+
+        output.write(("{\"since\":" + since + ",\"version\":" + version + ",\"changes\":[").getBytes(StandardCharsets.UTF_8));
+
+        int count = 0;
+
+        for (String appId : appIds) {
+
+            EncodedApplication encodedApp;
+
+            try {
+                encodedApp = appsDAO.getEncodedApp(appId);
+            } catch (DaoException e) {
+                encodedApp = null;
+            }
+
+            if (count++ > 0)
+                output.write(',');
+
+            output.write(encodedApp == null ? DELETE_PREFIX : UPSERT_PREFIX);
+            output.write(quote(appId));
+
+            if (encodedApp != null) {
+                output.write(APPLICATION_PREFIX);
+                encodedApp.writeJson(output);
+            }
+
+            output.write('}');
+        }
+
+        output.write(OK_SUFFIX);
+        output.flush();
+    }
+
+    private static byte[] quote(String value) {
+        return new JsonPrimitive(value).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
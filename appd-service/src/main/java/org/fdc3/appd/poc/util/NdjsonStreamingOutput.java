@@ -0,0 +1,70 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.util;
+
+import org.fdc3.appd.poc.model.EncodedApplication;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams applications as newline-delimited json, one application per line, optionally gzip compressed.
+ * <p>
+ * Lines are written from the pre-encoded application json as they are pulled from the iterator, which is compact json
+ * without raw line breaks, so the heap used per export does not depend on the size of the catalog.
+ */
+public class NdjsonStreamingOutput implements StreamingOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Iterator<EncodedApplication> applications;
+    private final boolean gzip;
+
+    /**
+     * @param applications Applications to stream
+     * @param gzip         Compress the stream, the response must declare the gzip content encoding
+     */
+    public NdjsonStreamingOutput(Iterator<EncodedApplication> applications, boolean gzip) {
+        this.applications = applications;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+
+        OutputStream out = gzip ? new GZIPOutputStream(output, BUFFER_SIZE) : new BufferedOutputStream(output, BUFFER_SIZE);
+
+        while (applications.hasNext()) {
+            applications.next().writeJson(out);
+            out.write('\n');
+        }
+
+        if (gzip)
+            ((GZIPOutputStream) out).finish();
+
+        out.flush();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+package org.fdc3.appd.poc.util;
+
+import com.google.gson.Gson;
+import org.fdc3.appd.poc.dao.AppsDAO;
+import org.fdc3.appd.poc.model.EncodedApplication;
+import org.fdc3.appd.poc.model.IntentResolution;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Streams intent resolutions as
+ * {"resolutions":[{"intent":"...","context":"...","applications":[...]},...],"message":"OK"}.
+ * <p>
+ * Each resolution is looked up as it is written and the applications are written from their pre-encoded json.
+ */
+public class ResolutionsStreamingOutput implements StreamingOutput {
+
+    private static final byte[] RESOLUTIONS_PREFIX = "{\"resolutions\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OK_SUFFIX = "],\"message\":\"OK\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final Gson gson = new Gson();
+    private final AppsDAO appsDAO;
+    private final List<IntentResolution> resolutions;
+
+    /**
+     * @param appsDAO     Applications DAO
+     * @param resolutions Intents (and context types) to resolve
+     */
+    public ResolutionsStreamingOutput(AppsDAO appsDAO, List<IntentResolution> resolutions) {
+        this.appsDAO = appsDAO;
+        this.resolutions = resolutions;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+
+        output.write(RESOLUTIONS_PREFIX);
+
+        for (int i = 0; i < resolutions.size(); i++) {
+
+            if (i > 0)
+                output.write(',');
+
+            writeResolution(output, resolutions.get(i));
+        }
+
+        output.write(OK_SUFFIX);
+        output.flush();
+    }
+
+    private void writeResolution(OutputStream output, IntentResolution resolution) throws IOException {
+
+        String header = "{\"intent\":" + gson.toJson(resolution.getIntent())
+                + ",\"context\":" + gson.toJson(resolution.getContext())
+                + ",\"applications\":[";
+
+        output.write(header.getBytes(StandardCharsets.UTF_8));
+
+        int count = 0;
+
+        for (EncodedApplication encodedApp : appsDAO.resolveIntent(resolution.getIntent(), resolution.getContext())) {
+
+            if (count++ > 0)
+                output.write(',');
+
+            encodedApp.writeJson(output);
+        }
+
+        output.write(']');
+        output.write('}');
+    }
+
+}
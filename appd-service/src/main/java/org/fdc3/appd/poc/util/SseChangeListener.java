@@ -0,0 +1,193 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.fdc3.appd.poc.dao.AppsDAO;
+import org.fdc3.appd.poc.model.ChangeEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards catalog changes to a server-sent events connection.
+ * <p>
+ * Each change is sent as an event named after the change type, with the change id as event id, so the client resumes
+ * with a Last-Event-ID header after a reconnect.  A resync event asks the client to reload the catalog, and a comment
+ * is sent while idle to keep the connection open.  The listener fails once the connection is closed, which
+ * unsubscribes it.
+ * <p>
+ * Events are queued and written by a sender thread, the change dispatcher never waits for a client: writing to a
+ * client that does not read blocks.  A client letting more than its send queue of events pile up is disconnected as a
+ * slow consumer, like the WebSocket clients.
+ */
+public class SseChangeListener implements AppsDAO.ChangeListener {
+
+    public static final String RESYNC = "resync";
+
+    //Shared by all the connections, each one is drained by at most one sender at a time so its events stay in order
+    private static final ExecutorService SENDERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "sse-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Logger logger = LoggerFactory.getLogger(SseChangeListener.class);
+
+    private final SseEventSink sink;
+    private final Sse sse;
+    private final Gson gson;
+    private final int sendQueue;
+
+    private final Queue<OutboundSseEvent> pending = new ConcurrentLinkedQueue<>();
+    //Events queued or being written
+    private final AtomicInteger unsent = new AtomicInteger();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private volatile boolean evicted;
+
+    /**
+     * @param sink      Event stream
+     * @param sse       Event factory
+     * @param gson      Serializes the change events
+     * @param sendQueue Maximum events not yet written before the client is disconnected
+     */
+    public SseChangeListener(SseEventSink sink, Sse sse, Gson gson, int sendQueue) {
+        this.sink = sink;
+        this.sse = sse;
+        this.gson = gson;
+        this.sendQueue = sendQueue;
+    }
+
+    @Override
+    public void changed(ChangeEvent event) {
+
+        send(sse.newEventBuilder()
+                .id(Long.toString(event.getId()))
+                .name(event.getType())
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(gson.toJson(event)));
+    }
+
+    @Override
+    public void resync(long lastEventId) {
+
+        JsonObject jo = new JsonObject();
+        jo.addProperty("lastEventId", lastEventId);
+
+        send(sse.newEventBuilder()
+                .id(Long.toString(lastEventId))
+                .name(RESYNC)
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(jo.toString()));
+    }
+
+    @Override
+    public void idle() {
+
+        checkOpen();
+
+        //A connection with events pending is not idle
+        if (unsent.get() == 0)
+            send(sse.newEventBuilder().comment(""));
+    }
+
+    /**
+     * Queue an event, disconnecting the client if its send queue overflows
+     */
+    private void send(OutboundSseEvent.Builder event) {
+
+        checkOpen();
+
+        if (unsent.incrementAndGet() > sendQueue) {
+            unsent.decrementAndGet();
+            evict();
+            throw new IllegalStateException("Event stream closed, slow consumer");
+        }
+
+        pending.add(event.build());
+
+        if (sending.compareAndSet(false, true))
+            SENDERS.execute(this::drain);
+    }
+
+    /**
+     * Write the queued events in order, until none is left
+     */
+    private void drain() {
+
+        do {
+            OutboundSseEvent event;
+
+            while ((event = pending.poll()) != null) {
+
+                if (evicted || sink.isClosed()) {
+                    unsent.decrementAndGet();
+                    continue;
+                }
+
+                try {
+                    sink.send(event).whenComplete((result, e) -> {
+                        unsent.decrementAndGet();
+                        if (e != null)
+                            sink.close();
+                    });
+                } catch (RuntimeException e) {
+                    unsent.decrementAndGet();
+                    logger.debug("Could not send event, closing the stream", e);
+                    sink.close();
+                }
+            }
+
+            sending.set(false);
+
+        } while (!pending.isEmpty() && sending.compareAndSet(false, true));
+    }
+
+    /**
+     * Disconnect a slow consumer.  The stream is closed by a sender, closing it may wait for the write in progress.
+     */
+    private void evict() {
+
+        if (evicted)
+            return;
+
+        evicted = true;
+        logger.info("Closing event stream of a slow consumer, {} events not written", unsent.get());
+        SENDERS.execute(sink::close);
+    }
+
+    private void checkOpen() {
+        if (evicted || sink.isClosed())
+            throw new IllegalStateException("Event stream closed");
+    }
+
+}
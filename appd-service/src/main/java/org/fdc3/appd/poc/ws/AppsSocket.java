@@ -0,0 +1,317 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.ws;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.fdc3.appd.poc.dao.AppsDAOFactory;
+import org.fdc3.appd.poc.dao.impl.AppIndex;
+import org.fdc3.appd.poc.model.UserSecurity;
+import org.fdc3.appd.server.model.Application;
+import org.fdc3.appd.server.model.Intent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One WebSocket connection of the push channel, see {@link AppsSocketHub} for the pushed messages.
+ * <p>
+ * The client sends {"op":"subscribe","appIds":[...],"publishers":[...],"intents":[...]} to receive the changes of the
+ * matching applications, and {"op":"unsubscribe",...} with the same lists to stop.  Each subscribe is acknowledged
+ * with {"op":"subscribed","version"}, changes with a higher version follow.
+ * <p>
+ * Messages are sent asynchronously, the change dispatcher never waits for a client.  The characters of the messages
+ * not yet written are counted, and a client letting them grow over the send buffer is disconnected as a slow consumer
+ * so its pending messages are released at once.
+ */
+public class AppsSocket implements WebSocketListener {
+
+    private static final ByteBuffer PING = ByteBuffer.allocate(0);
+
+    private Logger logger = LoggerFactory.getLogger(AppsSocket.class);
+
+    private final AppsSocketHub hub;
+    private final UserSecurity user;
+    private final long sendBuffer;
+    private final int maxSubscriptions;
+
+    private final Set<String> appIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> publishers = ConcurrentHashMap.newKeySet();
+    private final Set<String> intents = ConcurrentHashMap.newKeySet();
+    private final AtomicLong buffered = new AtomicLong();
+    private volatile Session session;
+
+
+    /**
+     * @param hub              Hub fanning out the changes
+     * @param user             Authenticated user
+     * @param sendBuffer       Maximum characters of messages not yet written before the client is disconnected
+     * @param maxSubscriptions Maximum number of appIds, publishers and intents subscribed
+     */
+    public AppsSocket(AppsSocketHub hub, UserSecurity user, long sendBuffer, int maxSubscriptions) {
+        this.hub = hub;
+        this.user = user;
+        this.sendBuffer = sendBuffer;
+        this.maxSubscriptions = maxSubscriptions;
+    }
+
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        this.session = session;
+        hub.register(this);
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+
+        JsonObject command;
+        String op;
+
+        try {
+            command = new JsonParser().parse(message).getAsJsonObject();
+            op = command.has("op") ? command.get("op").getAsString() : null;
+        } catch (JsonParseException | IllegalStateException | ClassCastException | UnsupportedOperationException e) {
+            error("expected a json object with an op");
+            return;
+        }
+
+        Set<String> commandAppIds;
+        Set<String> commandPublishers;
+        Set<String> commandIntents;
+
+        try {
+            commandAppIds = strings(command, "appIds", false);
+            commandPublishers = strings(command, "publishers", true);
+            commandIntents = strings(command, "intents", true);
+        } catch (IllegalStateException | ClassCastException | UnsupportedOperationException e) {
+            error("appIds, publishers and intents must be arrays of strings");
+            return;
+        }
+
+        if ("subscribe".equals(op)) {
+
+            synchronized (this) {
+
+                if (appIds.size() + publishers.size() + intents.size()
+                        + commandAppIds.size() + commandPublishers.size() + commandIntents.size() > maxSubscriptions) {
+                    error("at most " + maxSubscriptions + " subscriptions per connection");
+                    return;
+                }
+
+                appIds.addAll(commandAppIds);
+                publishers.addAll(commandPublishers);
+                intents.addAll(commandIntents);
+                hub.subscribe(this, commandAppIds, commandPublishers, commandIntents);
+            }
+
+            JsonObject jo = new JsonObject();
+            jo.addProperty("op", "subscribed");
+            jo.addProperty("version", AppsDAOFactory.getAppsDAO().getCatalogVersion());
+            send(jo.toString());
+
+        } else if ("unsubscribe".equals(op)) {
+
+            synchronized (this) {
+                appIds.removeAll(commandAppIds);
+                publishers.removeAll(commandPublishers);
+                intents.removeAll(commandIntents);
+                hub.unsubscribe(this, commandAppIds, commandPublishers, commandIntents);
+            }
+
+        } else {
+            error("unknown op " + op);
+        }
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+        error("expected json text messages");
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        hub.unregister(this);
+        session = null;
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        logger.debug("WebSocket error for {}", user.getEmail(), cause);
+        hub.unregister(this);
+    }
+
+
+    /**
+     * Check if an application matches the subscriptions
+     *
+     * @param application Application, may be null
+     * @return True if subscribed to the appId, publisher or one of the intents of the application
+     */
+    boolean matches(Application application) {
+
+        if (application == null)
+            return false;
+
+        if (appIds.contains(application.getAppId()))
+            return true;
+
+        String publisher = AppIndex.normalize(application.getPublisher());
+
+        if (publisher != null && publishers.contains(publisher))
+            return true;
+
+        if (application.getIntents() != null && !intents.isEmpty()) {
+            for (Intent intent : application.getIntents()) {
+
+                String name = intent == null ? null : AppIndex.normalize(intent.getName());
+
+                if (name != null && intents.contains(name))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Queue a message, disconnecting the client if its send buffer overflows
+     *
+     * @param message Json message
+     */
+    void send(String message) {
+
+        Session current = session;
+
+        if (current == null || !current.isOpen())
+            return;
+
+        long size = message.length();
+
+        if (buffered.addAndGet(size) > sendBuffer) {
+            buffered.addAndGet(-size);
+            evict(current);
+            return;
+        }
+
+        current.getRemote().sendString(message, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                buffered.addAndGet(-size);
+                logger.debug("Could not push to {}", user.getEmail(), x);
+            }
+
+            @Override
+            public void writeSuccess() {
+                buffered.addAndGet(-size);
+            }
+        });
+    }
+
+    /**
+     * Keep an idle connection open, a connection with messages pending is not idle
+     */
+    void ping() {
+
+        Session current = session;
+
+        if (current == null || !current.isOpen() || buffered.get() > 0)
+            return;
+
+        try {
+            current.getRemote().sendPing(PING.duplicate());
+        } catch (IOException e) {
+            logger.debug("Could not ping {}", user.getEmail(), e);
+            hub.unregister(this);
+        }
+    }
+
+    Set<String> getAppIds() {
+        return appIds;
+    }
+
+    Set<String> getPublishers() {
+        return publishers;
+    }
+
+    Set<String> getIntents() {
+        return intents;
+    }
+
+
+    private void evict(Session current) {
+
+        logger.warn("Disconnecting slow WebSocket consumer {} at {}, more than {} characters pending", user.getEmail(), current.getRemoteAddress(), sendBuffer);
+
+        hub.unregister(this);
+
+        try {
+            current.disconnect();
+        } catch (IOException e) {
+            logger.debug("Could not disconnect {}", user.getEmail(), e);
+        }
+    }
+
+    private void error(String message) {
+
+        JsonObject jo = new JsonObject();
+        jo.addProperty("op", "error");
+        jo.addProperty("message", message);
+        send(jo.toString());
+    }
+
+    /**
+     * Read an optional array of strings from a command
+     */
+    private static Set<String> strings(JsonObject command, String name, boolean normalize) {
+
+        Set<String> values = new HashSet<>();
+        JsonElement element = command.get(name);
+
+        if (element == null || element.isJsonNull())
+            return values;
+
+        JsonArray array = element.getAsJsonArray();
+
+        for (JsonElement value : array) {
+
+            String string = normalize ? AppIndex.normalize(value.getAsString()) : value.getAsString();
+
+            if (string != null && !string.isEmpty())
+                values.add(string);
+        }
+
+        return values;
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.ws;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.fdc3.appd.poc.dao.AppsDAO;
+import org.fdc3.appd.poc.dao.impl.AppIndex;
+import org.fdc3.appd.poc.dao.impl.AppsDAOImpl;
+import org.fdc3.appd.poc.model.ChangeEvent;
+import org.fdc3.appd.server.model.Application;
+import org.fdc3.appd.server.model.Intent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Fans catalog changes out to the connected {@link AppsSocket}s.
+ * <p>
+ * The hub is a single change listener of the DAO, whatever the number of connections.  Subscriptions are indexed by
+ * appId, publisher and intent, so a change only visits the sockets interested in the application before or after the
+ * change, and idle connections cost nothing but their subscriptions.  The messages of a change are built once and
+ * shared by all the sockets receiving them:
+ * <ul>
+ * <li>{"op":"upsert","id","version","appId","application":{...}} when an application starts matching a socket</li>
+ * <li>{"op":"update","id","version","appId","set":{...},"unset":[...]} with the changed top-level fields</li>
+ * <li>{"op":"remove","id","version","appId"} when an application was deleted or no longer matches</li>
+ * <li>{"op":"resync","id"} when the whole catalog was replaced</li>
+ * </ul>
+ */
+public class AppsSocketHub implements AppsDAO.ChangeListener {
+
+    private Logger logger = LoggerFactory.getLogger(AppsSocketHub.class);
+
+    //Loaded copies carry their stored revision, which is not part of the messages
+    private final Gson gson = new GsonBuilder().addSerializationExclusionStrategy(AppsDAOImpl.SCHEMA_FIELDS).create();
+
+    private final Set<AppsSocket> sockets = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Set<AppsSocket>> byAppId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<AppsSocket>> byPublisher = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<AppsSocket>> byIntent = new ConcurrentHashMap<>();
+
+
+    /**
+     * Messages of one change, built on first use
+     */
+    private class Messages {
+
+        private final ChangeEvent event;
+        private String upsert;
+        private String update;
+        private String remove;
+
+        private Messages(ChangeEvent event) {
+            this.event = event;
+        }
+
+        private JsonObject header(String op) {
+
+            JsonObject jo = new JsonObject();
+            jo.addProperty("op", op);
+            jo.addProperty("id", event.getId());
+            jo.addProperty("version", event.getVersion());
+            jo.addProperty("appId", event.getAppId());
+            return jo;
+        }
+
+        private String upsert() {
+
+            if (upsert == null) {
+                JsonObject jo = header("upsert");
+                jo.add("application", gson.toJsonTree(event.getApplication()));
+                upsert = jo.toString();
+            }
+
+            return upsert;
+        }
+
+        private String update() {
+
+            if (update == null) {
+                JsonObject before = gson.toJsonTree(event.getPrevious()).getAsJsonObject();
+                JsonObject after = gson.toJsonTree(event.getApplication()).getAsJsonObject();
+                JsonObject set = new JsonObject();
+                JsonArray unset = new JsonArray();
+
+                for (Map.Entry<String, JsonElement> field : after.entrySet()) {
+                    if (!field.getValue().equals(before.get(field.getKey())))
+                        set.add(field.getKey(), field.getValue());
+                }
+
+                for (Map.Entry<String, JsonElement> field : before.entrySet()) {
+                    if (!after.has(field.getKey()))
+                        unset.add(new JsonPrimitive(field.getKey()));
+                }
+
+                JsonObject jo = header("update");
+                jo.add("set", set);
+                jo.add("unset", unset);
+                update = jo.toString();
+            }
+
+            return update;
+        }
+
+        private String remove() {
+
+            if (remove == null)
+                remove = header("remove").toString();
+
+            return remove;
+        }
+    }
+
+
+    /**
+     * @param socket Connected socket
+     */
+    void register(AppsSocket socket) {
+        sockets.add(socket);
+    }
+
+    /**
+     * Remove a socket and all its subscriptions
+     *
+     * @param socket Closed socket
+     */
+    void unregister(AppsSocket socket) {
+
+        synchronized (socket) {
+            if (sockets.remove(socket))
+                unsubscribe(socket, socket.getAppIds(), socket.getPublishers(), socket.getIntents());
+        }
+    }
+
+    /**
+     * Add subscriptions of a socket, already added to the socket itself
+     *
+     * @param socket     Socket
+     * @param appIds     AppIds
+     * @param publishers Normalized publishers
+     * @param intents    Normalized intent names
+     */
+    void subscribe(AppsSocket socket, Collection<String> appIds, Collection<String> publishers, Collection<String> intents) {
+
+        synchronized (socket) {
+
+            if (!sockets.contains(socket))
+                return;
+
+            appIds.forEach(appId -> add(byAppId, appId, socket));
+            publishers.forEach(publisher -> add(byPublisher, publisher, socket));
+            intents.forEach(intent -> add(byIntent, intent, socket));
+        }
+    }
+
+    /**
+     * Remove subscriptions of a socket
+     *
+     * @param socket     Socket
+     * @param appIds     AppIds
+     * @param publishers Normalized publishers
+     * @param intents    Normalized intent names
+     */
+    void unsubscribe(AppsSocket socket, Collection<String> appIds, Collection<String> publishers, Collection<String> intents) {
+
+        appIds.forEach(appId -> remove(byAppId, appId, socket));
+        publishers.forEach(publisher -> remove(byPublisher, publisher, socket));
+        intents.forEach(intent -> remove(byIntent, intent, socket));
+    }
+
+    /**
+     * @return Number of connected sockets
+     */
+    public int getConnections() {
+        return sockets.size();
+    }
+
+
+    @Override
+    public void changed(ChangeEvent event) {
+
+        if (ChangeEvent.RESET.equals(event.getType())) {
+            resync(event.getId());
+            return;
+        }
+
+        Set<AppsSocket> candidates = new HashSet<>();
+
+        collect(candidates, event.getPrevious());
+        collect(candidates, event.getApplication());
+
+        if (candidates.isEmpty())
+            return;
+
+        Messages messages = new Messages(event);
+
+        for (AppsSocket socket : candidates) {
+
+            try {
+                boolean was = socket.matches(event.getPrevious());
+                boolean is = socket.matches(event.getApplication());
+
+                if (was && is) {
+                    socket.send(messages.update());
+                } else if (is) {
+                    socket.send(messages.upsert());
+                } else if (was) {
+                    socket.send(messages.remove());
+                }
+            } catch (Exception e) {
+                logger.warn("Could not push change {} of [{}]", event.getId(), event.getAppId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void resync(long lastEventId) {
+
+        JsonObject jo = new JsonObject();
+        jo.addProperty("op", "resync");
+        jo.addProperty("id", lastEventId);
+
+        String message = jo.toString();
+
+        for (AppsSocket socket : sockets) {
+            try {
+                socket.send(message);
+            } catch (Exception e) {
+                logger.warn("Could not push resync {}", lastEventId, e);
+            }
+        }
+    }
+
+    @Override
+    public void idle() {
+
+        for (AppsSocket socket : sockets) {
+            try {
+                socket.ping();
+            } catch (Exception e) {
+                logger.warn("Could not ping socket", e);
+            }
+        }
+    }
+
+
+    /**
+     * Add the sockets subscribed to an application
+     */
+    private void collect(Set<AppsSocket> candidates, Application application) {
+
+        if (application == null)
+            return;
+
+        lookup(candidates, byAppId, application.getAppId());
+        lookup(candidates, byPublisher, AppIndex.normalize(application.getPublisher()));
+
+        if (application.getIntents() != null) {
+            for (Intent intent : application.getIntents()) {
+                if (intent != null)
+                    lookup(candidates, byIntent, AppIndex.normalize(intent.getName()));
+            }
+        }
+    }
+
+    private static void lookup(Set<AppsSocket> candidates, Map<String, Set<AppsSocket>> index, String key) {
+
+        Set<AppsSocket> subscribed = key == null ? null : index.get(key);
+
+        if (subscribed != null)
+            candidates.addAll(subscribed);
+    }
+
+    private static void add(ConcurrentMap<String, Set<AppsSocket>> index, String key, AppsSocket socket) {
+
+        index.compute(key, (k, subscribed) -> {
+            Set<AppsSocket> set = subscribed == null ? ConcurrentHashMap.newKeySet() : subscribed;
+            set.add(socket);
+            return set;
+        });
+    }
+
+    private static void remove(ConcurrentMap<String, Set<AppsSocket>> index, String key, AppsSocket socket) {
+
+        index.computeIfPresent(key, (k, subscribed) -> {
+            subscribed.remove(socket);
+            return subscribed.isEmpty() ? null : subscribed;
+        });
+    }
+
+}
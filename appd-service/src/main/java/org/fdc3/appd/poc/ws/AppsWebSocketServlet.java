@@ -0,0 +1,163 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.ws;
+
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.fdc3.appd.poc.config.ConfigId;
+import org.fdc3.appd.poc.config.Configuration;
+import org.fdc3.appd.poc.dao.AppsDAOFactory;
+import org.fdc3.appd.poc.dao.UserDAO;
+import org.fdc3.appd.poc.dao.UserDAOFactory;
+import org.fdc3.appd.poc.exceptions.UserNotFoundException;
+import org.fdc3.appd.poc.model.User;
+import org.fdc3.appd.poc.model.UserSecurity;
+import org.fdc3.appd.poc.security.TokenSecurity;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket push channel of application changes, see {@link AppsSocket}.
+ * <p>
+ * The upgrade request is authenticated like the REST API, with the bearer token in the Authorization header or, for
+ * browsers which cannot set headers on a WebSocket, in the access_token query parameter.  Idle connections hold no
+ * thread and small buffers, and are kept open by the change feed heartbeat pings.
+ */
+public class AppsWebSocketServlet extends WebSocketServlet {
+
+    private static final Set<String> ROLES = new HashSet<>(Arrays.asList("admin", "user", "guest"));
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final int INPUT_BUFFER_SIZE = 4 * 1024;
+
+    private Logger logger = LoggerFactory.getLogger(AppsWebSocketServlet.class);
+    private Configuration config = Configuration.get();
+
+    private final AppsSocketHub hub = new AppsSocketHub();
+    private final long sendBuffer = config.getInt(ConfigId.WS_SEND_BUFFER, 1024 * 1024);
+    private final int maxSubscriptions = config.getInt(ConfigId.WS_MAX_SUBSCRIPTIONS, 1000);
+
+
+    @Override
+    public void configure(WebSocketServletFactory factory) {
+
+        WebSocketPolicy policy = factory.getPolicy();
+        policy.setIdleTimeout(TimeUnit.SECONDS.toMillis(config.getInt(ConfigId.WS_IDLE_TIMEOUT, 300)));
+        policy.setMaxTextMessageSize(MAX_MESSAGE_SIZE);
+        policy.setMaxBinaryMessageSize(MAX_MESSAGE_SIZE);
+        policy.setInputBufferSize(INPUT_BUFFER_SIZE);
+
+        factory.setCreator(this::createSocket);
+
+        AppsDAOFactory.getAppsDAO().subscribe(null, hub);
+    }
+
+    @Override
+    public void destroy() {
+        AppsDAOFactory.getAppsDAO().unsubscribe(hub);
+        super.destroy();
+    }
+
+
+    /**
+     * Authenticate the upgrade request
+     *
+     * @return Socket, null if the request was rejected
+     */
+    private Object createSocket(ServletUpgradeRequest request, ServletUpgradeResponse response) {
+
+        UserSecurity user = authenticate(request);
+
+        if (user == null) {
+            try {
+                response.sendForbidden("Not allowed to access this resource!");
+            } catch (IOException e) {
+                logger.debug("Could not reject WebSocket upgrade", e);
+            }
+            return null;
+        }
+
+        return new AppsSocket(hub, user, sendBuffer, maxSubscriptions);
+    }
+
+    /**
+     * Validate the bearer token against the user it was issued to
+     *
+     * @param request Upgrade request
+     * @return Authenticated user, null if the token is missing, invalid or replaced
+     */
+    private UserSecurity authenticate(ServletUpgradeRequest request) {
+
+        String jwt = null;
+        String authorization = request.getHeader("Authorization");
+
+        if (authorization != null && authorization.startsWith("Bearer")) {
+            jwt = authorization.substring("Bearer".length()).trim();
+        } else if (request.getParameterMap() != null) {
+            List<String> tokens = request.getParameterMap().get("access_token");
+            jwt = tokens == null || tokens.isEmpty() ? null : tokens.get(0);
+        }
+
+        if (jwt == null || jwt.isEmpty()) {
+            logger.warn("No token provided!");
+            return null;
+        }
+
+        try {
+            String id = TokenSecurity.validateJwtToken(jwt);
+
+            UserDAO userDao = UserDAOFactory.getUserDAO();
+            User user = userDao.getUser(id);
+            UserSecurity userSecurity = user == null ? null : userDao.getUserAuthentication(user.getId());
+
+            //A token of a removed user, rejected like a token mismatch
+            if (userSecurity == null) {
+                logger.warn("Token of unknown user [{}]", id);
+                return null;
+            }
+
+            if (!jwt.equals(userSecurity.getToken()) || !ROLES.contains(userSecurity.getRole())) {
+                logger.warn("Token expired or role not allowed!");
+                return null;
+            }
+
+            return userSecurity;
+
+        } catch (InvalidJwtException e) {
+            logger.warn("Invalid token provided!");
+        } catch (UserNotFoundException e) {
+            logger.warn("Token missmatch!");
+        }
+
+        return null;
+    }
+
+}
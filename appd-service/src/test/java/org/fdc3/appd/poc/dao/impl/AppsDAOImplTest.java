@@ -0,0 +1,276 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.fdc3.appd.poc.exceptions.DaoException;
+import org.fdc3.appd.poc.exceptions.UpsertDeniedException;
+import org.fdc3.appd.poc.exceptions.VersionConflictException;
+import org.fdc3.appd.poc.model.BulkResult;
+import org.fdc3.appd.poc.model.EncodedApplication;
+import org.fdc3.appd.poc.model.RevisedApplication;
+import org.fdc3.appd.server.model.Application;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Upserts of {@link AppsDAOImpl} on the json backend, without write-ahead log, snapshot or directory watcher
+ */
+public class AppsDAOImplTest {
+
+    private static final int WRITERS = 8;
+    private static final int UPSERTS = 25;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AppsDAOImpl appsDAO;
+
+
+    @Before
+    public void open() throws Exception {
+
+        System.setProperty("json.apps.dir", folder.newFolder("apps").getPath());
+        System.setProperty("wal.enabled", "false");
+        System.setProperty("snapshot.enabled", "false");
+        System.setProperty("json.watch.enabled", "false");
+
+        appsDAO = new AppsDAOImpl();
+    }
+
+    @After
+    public void close() {
+        System.clearProperty("json.apps.dir");
+        System.clearProperty("wal.enabled");
+        System.clearProperty("snapshot.enabled");
+        System.clearProperty("json.watch.enabled");
+    }
+
+    private static Application application(String appId, String publisher, String version) {
+
+        Application application = new Application();
+        application.setAppId(appId);
+        application.setName(appId);
+        application.setManifest("https://example.com/" + appId);
+        application.setPublisher(publisher);
+        application.setVersion(version);
+        return application;
+    }
+
+
+    @Test
+    public void concurrentUpsertsAreSerializedWithTheOwnerCheck() throws Exception {
+
+        AtomicInteger checking = new AtomicInteger();
+        AtomicBoolean interleaved = new AtomicBoolean();
+        Set<String> seen = Collections.synchronizedSet(new HashSet<>());
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+
+        try {
+            List<Future<?>> results = new ArrayList<>();
+
+            for (int writer = 0; writer < WRITERS; writer++) {
+                int w = writer;
+
+                results.add(writers.submit(() -> {
+                    start.await();
+
+                    for (int i = 0; i < UPSERTS; i++) {
+                        appsDAO.upsertApp(application("app1", "Acme", w + "." + i), existing -> {
+
+                            if (checking.incrementAndGet() > 1)
+                                interleaved.set(true);
+
+                            //Each writer must see the definition of the previous one, never the same as another writer
+                            if (!seen.add(existing == null ? "new" : existing.getVersion()))
+                                interleaved.set(true);
+
+                            Thread.yield();
+                            checking.decrementAndGet();
+
+                            return existing == null || "Acme".equals(existing.getPublisher());
+                        }, null);
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<?> result : results)
+                result.get(30, TimeUnit.SECONDS);
+
+        } finally {
+            writers.shutdownNow();
+        }
+
+        assertFalse("Owner checks interleaved with writes", interleaved.get());
+        assertEquals(WRITERS * UPSERTS, seen.size());
+        assertEquals(WRITERS * UPSERTS, appsDAO.getEncodedApp("app1").getRevision());
+        assertEquals("Locks are unmapped once released", 0, appsDAO.getLockedAppIds());
+    }
+
+    @Test
+    public void deniedUpsertReleasesTheLock() throws DaoException {
+
+        appsDAO.upsertApp(application("app1", "Acme", "1"), null, null);
+
+        try {
+            appsDAO.upsertApp(application("app1", "Other", "2"), existing -> "Other".equals(existing.getPublisher()), null);
+            fail("Upsert of another publisher's application was allowed");
+        } catch (UpsertDeniedException e) {
+            assertEquals("1", appsDAO.getApp("app1").getVersion());
+        }
+
+        assertEquals(0, appsDAO.getLockedAppIds());
+    }
+
+    @Test
+    public void staleRevisionOrHashIsAConflict() throws DaoException {
+
+        EncodedApplication first = appsDAO.upsertApp(application("app1", "Acme", "1"), null, null);
+        EncodedApplication second = appsDAO.upsertApp(application("app1", "Acme", "2"), null, Long.toString(first.getRevision()));
+
+        assertEquals(first.getRevision() + 1, second.getRevision());
+
+        for (String stale : new String[]{Long.toString(first.getRevision()), first.getHash(), "garbage"}) {
+            try {
+                appsDAO.upsertApp(application("app1", "Acme", "3"), null, stale);
+                fail("Upsert based on [" + stale + "] was applied over revision " + second.getRevision());
+            } catch (VersionConflictException e) {
+                assertEquals("2", appsDAO.getApp("app1").getVersion());
+            }
+        }
+
+        appsDAO.upsertApp(application("app1", "Acme", "3"), null, second.getHash());
+        appsDAO.upsertApp(application("app1", "Acme", "4"), null, "*");
+        assertEquals("4", appsDAO.getApp("app1").getVersion());
+
+        try {
+            appsDAO.upsertApp(application("app2", "Acme", "1"), null, "*");
+            fail("If-Match * applied to a missing application");
+        } catch (VersionConflictException e) {
+            assertEquals(0, appsDAO.getLockedAppIds());
+        }
+    }
+
+    @Test
+    public void upsertsSurviveARestart() throws DaoException {
+
+        appsDAO.upsertApp(application("app1", "Acme", "1"), null, null);
+        EncodedApplication stored = appsDAO.upsertApp(application("app1", "Acme", "2"), null, null);
+
+        AppsDAOImpl restarted = new AppsDAOImpl();
+
+        assertEquals("2", restarted.getApp("app1").getVersion());
+        assertEquals(stored.getRevision(), restarted.getEncodedApp("app1").getRevision());
+        assertTrue(folder.getRoot().toPath().resolve("apps/app1.json").toFile().exists());
+    }
+
+    @Test
+    public void responsesAreWrittenWithoutTheRevision() throws DaoException, IOException {
+
+        EncodedApplication encodedApp = appsDAO.upsertApp(application("app1", "Acme", "1"), null, null);
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        encodedApp.writeJson(response);
+
+        JsonObject body = new JsonParser().parse(response.toString("UTF-8")).getAsJsonObject();
+        JsonObject stored = new JsonParser().parse(new String(encodedApp.getStoredJson(), StandardCharsets.UTF_8)).getAsJsonObject();
+
+        assertFalse("Response carries the revision", body.has(RevisedApplication.REVISION));
+        assertEquals(new Gson().toJsonTree(application("app1", "Acme", "1")), body);
+        assertEquals(encodedApp.getRevision(), stored.get(RevisedApplication.REVISION).getAsLong());
+    }
+
+    @Test
+    public void bulkResultsAreDecidedWithTheAppIdsLocked() throws Exception {
+
+        appsDAO.upsertApp(application("app2", "Acme", "1"), null, null);
+        appsDAO.upsertApp(application("app3", "Other", "1"), null, null);
+
+        List<BulkResult> results = appsDAO.upsertApps(Arrays.asList(application("app1", "Acme", "1"), application("app2", "Acme", "2"),
+                application("app3", "Acme", "2")), existing -> existing == null || "Acme".equals(existing.getPublisher()));
+
+        assertEquals(Arrays.asList(BulkResult.CREATED, BulkResult.UPDATED, BulkResult.ERROR),
+                results.stream().map(BulkResult::getStatus).collect(Collectors.toList()));
+        assertEquals("app3", results.get(2).getAppId());
+
+        //Concurrent imports of the same new application: only one of them created it
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+
+        try {
+            List<Future<List<BulkResult>>> imports = new ArrayList<>();
+
+            for (int writer = 0; writer < WRITERS; writer++) {
+                String version = Integer.toString(writer);
+
+                imports.add(writers.submit(() -> {
+                    start.await();
+                    return appsDAO.upsertApps(Collections.singletonList(application("app4", "Acme", version)), null);
+                }));
+            }
+
+            start.countDown();
+
+            int created = 0;
+
+            for (Future<List<BulkResult>> result : imports) {
+                if (BulkResult.CREATED.equals(result.get(30, TimeUnit.SECONDS).get(0).getStatus()))
+                    created++;
+            }
+
+            assertEquals(1, created);
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+}
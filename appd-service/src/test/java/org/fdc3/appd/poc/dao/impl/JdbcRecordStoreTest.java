@@ -0,0 +1,256 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.dao.AppsDAO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link JdbcRecordStore} on an in-memory H2 database, one table set per test
+ */
+public class JdbcRecordStoreTest {
+
+    private static final String URL = "jdbc:h2:mem:appd;DB_CLOSE_DELAY=-1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<JdbcRecordStore> stores = new ArrayList<>();
+
+
+    @BeforeClass
+    public static void configure() {
+        System.setProperty("storage.jdbc.url", URL);
+    }
+
+    @Before
+    public void clean() {
+        System.clearProperty("storage.backend");
+    }
+
+    @After
+    public void close() {
+        stores.forEach(JdbcRecordStore::close);
+        System.clearProperty("storage.backend");
+        System.clearProperty("json.apps.dir");
+        System.clearProperty("wal.enabled");
+    }
+
+    private JdbcRecordStore open(String name, String indexName) throws IOException {
+
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("publisher", "publisher");
+        attributes.put("intent", "intents.name");
+
+        JdbcRecordStore store = new JdbcRecordStore(name, indexName, attributes);
+        stores.add(store);
+        return store;
+    }
+
+    private static byte[] json(String appId, String publisher, String... intents) {
+
+        StringBuilder json = new StringBuilder("{\"appId\":\"" + appId + "\",\"publisher\":\"" + publisher + "\",\"intents\":[");
+
+        for (int i = 0; i < intents.length; i++)
+            json.append(i == 0 ? "" : ",").append("{\"name\":\"").append(intents[i]).append("\"}");
+
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+
+    @Test
+    public void putCommitGet() throws IOException {
+
+        JdbcRecordStore store = open("put_get", null);
+        byte[] json = json("app1", "Acme", "ViewChart", "ViewNews");
+
+        store.put("app1", json, null);
+        assertArrayEquals("Pending put is readable", json, store.get("app1"));
+
+        store.commit(Collections.singleton("app1"));
+        assertArrayEquals(json, store.get("app1"));
+        assertEquals(1, store.size());
+
+        store.remove("app1");
+        assertNull("Pending remove hides the record", store.get("app1"));
+
+        store.commit(Collections.singleton("app1"));
+        assertNull(store.get("app1"));
+        assertEquals(0, store.size());
+
+        //Written, not only buffered
+        JdbcRecordStore reopened = open("put_get", null);
+        store.put("app2", json, null);
+        store.commit(Collections.singleton("app2"));
+        assertArrayEquals(json, reopened.get("app2"));
+    }
+
+    @Test
+    public void findKeyWithPendingChanges() throws IOException {
+
+        JdbcRecordStore store = open("find_key", "email");
+
+        store.put("user1", json("user1", "Acme"), "a@example.com");
+        assertEquals("Pending put is indexed", "user1", store.findKey("a@example.com"));
+
+        store.commit(Collections.singleton("user1"));
+        assertEquals("user1", store.findKey("a@example.com"));
+
+        store.put("user1", json("user1", "Acme"), "b@example.com");
+        assertNull("Pending put moves the record out of its written index value", store.findKey("a@example.com"));
+        assertEquals("user1", store.findKey("b@example.com"));
+
+        store.commit(Collections.singleton("user1"));
+        assertNull(store.findKey("a@example.com"));
+        assertEquals("user1", store.findKey("b@example.com"));
+
+        store.remove("user1");
+        assertNull("Pending remove is not indexed", store.findKey("b@example.com"));
+    }
+
+    @Test
+    public void pagedIterator() throws IOException {
+
+        JdbcRecordStore store = open("paged", null);
+        int count = 1234;
+
+        for (int i = 0; i < count; i++)
+            store.put(String.format("app%05d", i), json("app" + i, "Acme"), null);
+
+        int read = 0;
+        String last = null;
+
+        for (Iterator<Map.Entry<String, byte[]>> records = store.iterator(); records.hasNext(); read++) {
+
+            String key = records.next().getKey();
+
+            assertTrue("Records are in key order", last == null || last.compareTo(key) < 0);
+            last = key;
+        }
+
+        assertEquals("Pending records are written before iterating, across pages", count, read);
+    }
+
+    @Test
+    public void failedCommitDropsOnlyTheFailedRecord() throws IOException {
+
+        JdbcRecordStore store = open("failed", null);
+        String tooLong = repeat('x', 300);
+
+        store.put("good", json("good", "Acme"), null);
+        store.put(tooLong, json(tooLong, "Acme"), null);
+
+        try {
+            store.commit(Arrays.asList("good", tooLong));
+            fail("Key over 255 characters was written");
+        } catch (CommitException e) {
+            assertEquals(Collections.singleton(tooLong), e.getKeys());
+        }
+
+        assertNotNull("Other records of the batch are written", store.get("good"));
+        assertNull("Failed record is dropped", store.get(tooLong));
+
+        //Not re-queued, so it neither fails nor writes later commits
+        store.put("later", json("later", "Acme"), null);
+        store.commit(Arrays.asList("later", tooLong));
+        assertNull(store.get(tooLong));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void longValuesAreTruncated() throws IOException {
+
+        JdbcRecordStore store = open("truncated", "email");
+        String email = repeat('e', 300) + "@example.com";
+
+        store.put("user1", json("user1", repeat('p', 300), repeat('i', 300)), email);
+        store.commit(Collections.singleton("user1"));
+
+        assertNotNull(store.get("user1"));
+        assertEquals("Long index values are looked up truncated", "user1", store.findKey(email));
+    }
+
+    @Test
+    public void migrationMarker() throws IOException {
+
+        JdbcRecordStore store = open("migrated", null);
+        assertFalse(store.isMigrated());
+
+        store.put("app1", json("app1", "Acme"), null);
+        store.setMigrated("json/apps");
+
+        assertTrue(store.isMigrated());
+        assertNotNull("Pending records are written with the marker", open("migrated", null).get("app1"));
+    }
+
+    @Test
+    public void migrateApplications() throws Exception {
+
+        String directory = folder.newFolder("apps").getPath();
+        Files.write(folder.getRoot().toPath().resolve("apps/app1.json"), json("app1", "Acme", "ViewChart"));
+
+        System.setProperty("storage.backend", RecordStore.JDBC);
+        System.setProperty("json.apps.dir", directory);
+        System.setProperty("wal.enabled", "false");
+
+        AppsDAO appsDAO = new AppsDAOImpl();
+        assertNotNull(appsDAO.getApp("app1"));
+
+        JdbcRecordStore store = open("applications", null);
+        assertTrue(store.isMigrated());
+        assertNotNull("Json directory is migrated to the store", store.get("app1"));
+
+        //Later startups read the store, not the json directory
+        Files.delete(folder.getRoot().toPath().resolve("apps/app1.json"));
+        assertNotNull(new AppsDAOImpl().getApp("app1"));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Precedence of the own json file of a record over the bundles holding it, see {@link LocalJsonStore}
+ */
+public class LocalJsonStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    //Source of each record loaded, by key
+    private final Map<String, String> loaded = new ConcurrentHashMap<>();
+    private final AtomicLong changes = new AtomicLong();
+
+    private final LocalJsonStore.RecordHandler handler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) {
+
+            JsonElement parsed = new JsonParser().parse(json);
+            JsonArray records = new JsonArray();
+
+            if (parsed.isJsonArray())
+                records = parsed.getAsJsonArray();
+            else
+                records.add(parsed);
+
+            List<String> keys = new ArrayList<>();
+
+            for (JsonElement record : records) {
+
+                String key = record.getAsJsonObject().get("id").getAsString();
+
+                if (accept.test(key)) {
+                    loaded.put(key, record.getAsJsonObject().get("source").getAsString());
+                    keys.add(key);
+                    changes.incrementAndGet();
+                }
+            }
+
+            return keys;
+        }
+
+        @Override
+        public void remove(String key) {
+            loaded.remove(key);
+            changes.incrementAndGet();
+        }
+    };
+
+
+    @Before
+    public void open() throws IOException {
+        directory = folder.newFolder("apps").toPath();
+        System.setProperty("snapshot.interval", "0");
+    }
+
+    @After
+    public void close() {
+        System.clearProperty("snapshot.interval");
+    }
+
+    private static String record(String id, String source) {
+        JsonObject record = new JsonObject();
+        record.addProperty("id", id);
+        record.addProperty("source", source);
+        return record.toString();
+    }
+
+    private void write(String fileName, String... records) throws IOException {
+        String json = records.length == 1 ? records[0] : "[" + String.join(",", records) + "]";
+        Files.write(directory.resolve(fileName), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private LocalJsonStore load() {
+
+        LocalJsonStore store = new LocalJsonStore("apps", directory.toString());
+        assertTrue(store.load(4, handler));
+
+        store.startSnapshots(changes::get, () -> loaded.entrySet().stream()
+                .map(entry -> (Map.Entry<String, byte[]>) new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                        record(entry.getKey(), entry.getValue()).getBytes(StandardCharsets.UTF_8)))
+                .iterator());
+
+        return store;
+    }
+
+
+    @Test
+    public void ownFileWinsWhateverTheLoadOrder() throws IOException {
+
+        //Bundles listed before and after the own file
+        write("0-bundle.json", record("app1", "0-bundle"), record("app2", "0-bundle"));
+        write("app1.json", record("app1", "own"));
+        write("z-bundle.json", record("app1", "z-bundle"), record("app3", "z-bundle"));
+
+        LocalJsonStore store = load();
+
+        assertEquals("own", loaded.get("app1"));
+        assertEquals("0-bundle", loaded.get("app2"));
+        assertEquals("z-bundle", loaded.get("app3"));
+        assertNull(store.getBundle("app1"));
+        assertEquals("0-bundle.json", store.getBundle("app2"));
+
+        //An edited bundle is parsed again on restart, and still skips the record with an own file
+        store.snapshot(true);
+        write("z-bundle.json", record("app1", "z-bundle-edited"), record("app3", "z-bundle-edited"));
+        loaded.clear();
+        load();
+
+        assertEquals("own", loaded.get("app1"));
+        assertEquals("z-bundle-edited", loaded.get("app3"));
+    }
+
+    @Test
+    public void removedOwnFileRestoresTheBundleEntry() throws IOException {
+
+        write("bundle.json", record("app1", "bundle"), record("app2", "bundle"));
+        write("app1.json", record("app1", "own"));
+
+        load().snapshot(true);
+        assertEquals("own", loaded.get("app1"));
+
+        //The snapshot holds the own version, the bundle itself is unchanged
+        Files.delete(directory.resolve("app1.json"));
+        loaded.clear();
+        LocalJsonStore store = load();
+
+        assertEquals("bundle", loaded.get("app1"));
+        assertEquals("bundle", loaded.get("app2"));
+        assertEquals("bundle.json", store.getBundle("app1"));
+    }
+
+    @Test
+    public void removedBundleKeepsTheRecordsWithAnOwnFile() throws IOException {
+
+        write("bundle.json", record("app1", "bundle"), record("app2", "bundle"));
+        write("app1.json", record("app1", "own"));
+
+        load().snapshot(true);
+
+        Files.delete(directory.resolve("bundle.json"));
+        loaded.clear();
+        load();
+
+        assertEquals("own", loaded.get("app1"));
+        assertNull(loaded.get("app2"));
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Replay of {@link MutationLog} segments, including a record torn by a crash or a failed write, and compaction
+ */
+public class MutationLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //Json by key, of the records replayed
+    private final Map<String, String> replayed = new LinkedHashMap<>();
+
+    private final LocalJsonStore.RecordHandler handler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) throws IOException {
+
+            String record = new BufferedReader(json).lines().collect(Collectors.joining());
+            String key = record.substring(record.indexOf(':') + 2, record.indexOf('"', record.indexOf(':') + 2));
+
+            replayed.put(key, record);
+            return Collections.singletonList(key);
+        }
+
+        @Override
+        public void remove(String key) {
+            replayed.remove(key);
+        }
+    };
+
+    private final List<MutationLog> logs = new ArrayList<>();
+
+
+    @Before
+    public void configure() {
+        System.setProperty("snapshot.enabled", "false");
+    }
+
+    @After
+    public void close() {
+        logs.forEach(MutationLog::close);
+        System.clearProperty("snapshot.enabled");
+    }
+
+    private MutationLog open(Path directory) throws IOException {
+        return open(new MutationLog("test", directory.resolve("wal"), new LocalJsonStore("test", directory.toString())));
+    }
+
+    private MutationLog open(MutationLog log) throws IOException {
+        log.open(handler);
+        logs.add(log);
+        return log;
+    }
+
+    /**
+     * Log whose segments fail on demand: a write stops after a few bytes, and a truncate fails if asked to
+     */
+    private static class FailingLog extends MutationLog {
+
+        private volatile boolean failWrite;
+        private volatile boolean failTruncate;
+
+        private FailingLog(Path directory) {
+            super("test", directory.resolve("wal"), new LocalJsonStore("test", directory.toString()));
+        }
+
+        @Override
+        FileChannel openSegment(Path path) throws IOException {
+            return new FailingChannel(super.openSegment(path), this);
+        }
+    }
+
+    private static class FailingChannel extends FileChannel {
+
+        private final FileChannel channel;
+        private final FailingLog log;
+
+        private FailingChannel(FileChannel channel, FailingLog log) {
+            this.channel = channel;
+            this.log = log;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+
+            if (!log.failWrite)
+                return channel.write(src);
+
+            log.failWrite = false;
+
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(5, part.remaining()));
+            channel.write(part);
+
+            throw new IOException("Disk full");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+
+            if (log.failTruncate)
+                throw new IOException("Read-only file system");
+
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static byte[] json(String key, int version) {
+        return ("{\"appId\":\"" + key + "\",\"version\":\"" + version + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy the segments of a running log, as a crash would leave them
+     */
+    private static void copySegments(Path from, Path to) throws IOException {
+
+        Files.createDirectories(to.resolve("wal"));
+
+        try (Stream<Path> segments = Files.list(from.resolve("wal"))) {
+            for (Path segment : segments.collect(Collectors.toList()))
+                Files.copy(segment, to.resolve("wal").resolve(segment.getFileName()));
+        }
+    }
+
+    private static Path lastSegment(Path directory) throws IOException {
+
+        try (Stream<Path> segments = Files.list(directory.resolve("wal"))) {
+            return segments.filter(segment -> segment.toFile().length() > 0).sorted().reduce((first, second) -> second).orElse(null);
+        }
+    }
+
+
+    @Test
+    public void tornFinalRecordIsDiscarded() throws IOException {
+
+        Path crashed = folder.newFolder("crashed").toPath();
+        Path restarted = folder.newFolder("restarted").toPath();
+
+        MutationLog log = open(crashed);
+        log.write("app1", json("app1", 1));
+        log.write("app2", json("app2", 1));
+        log.write("app1", json("app1", 2));
+        log.write("app3", json("app3", 1));
+
+        copySegments(crashed, restarted);
+
+        //Cut the last record short, as a crash during its write would
+        Path segment = lastSegment(restarted);
+        assertNotNull(segment);
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        replayed.clear();
+        MutationLog replay = open(restarted);
+
+        assertEquals(2, replayed.size());
+        assertTrue("Latest record of a key wins", replayed.get("app1").contains("\"version\":\"2\""));
+        assertNotNull(replayed.get("app2"));
+        assertNull("Torn record is not replayed", replayed.get("app3"));
+        assertNull(replay.getUncompacted("app3"));
+
+        //The log stays writable after the torn record, in a new segment
+        replay.write("app3", json("app3", 2));
+    }
+
+    @Test
+    public void corruptFinalRecordIsDiscarded() throws IOException {
+
+        Path crashed = folder.newFolder("crashed").toPath();
+        Path restarted = folder.newFolder("restarted").toPath();
+
+        MutationLog log = open(crashed);
+        log.write("app1", json("app1", 1));
+        log.write("app2", json("app2", 1));
+
+        copySegments(crashed, restarted);
+
+        //Flip the last byte of the last record, its checksum no longer matches
+        Path segment = lastSegment(restarted);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 0x7f;
+        Files.write(segment, bytes);
+
+        replayed.clear();
+        open(restarted);
+
+        assertEquals(Collections.singleton("app1"), replayed.keySet());
+    }
+
+    @Test
+    public void writesAfterATornBatchAreReplayed() throws IOException {
+
+        Path failing = folder.newFolder("failing").toPath();
+        Path restarted = folder.newFolder("restarted").toPath();
+
+        FailingLog log = new FailingLog(failing);
+        open(log);
+        log.write("app1", json("app1", 1));
+
+        log.failWrite = true;
+        try {
+            log.write("app2", json("app2", 1));
+            fail("Torn write was acknowledged");
+        } catch (IOException e) {
+            //Expected
+        }
+
+        log.write("app3", json("app3", 1));
+        copySegments(failing, restarted);
+
+        replayed.clear();
+        open(restarted);
+
+        assertEquals(new HashSet<>(Arrays.asList("app1", "app3")), replayed.keySet());
+    }
+
+    @Test
+    public void writesAfterATornBatchGoToANewSegmentIfItCannotBeCut() throws IOException {
+
+        Path failing = folder.newFolder("failing").toPath();
+        Path restarted = folder.newFolder("restarted").toPath();
+
+        FailingLog log = new FailingLog(failing);
+        open(log);
+        log.write("app1", json("app1", 1));
+
+        log.failWrite = true;
+        log.failTruncate = true;
+        try {
+            log.write("app2", json("app2", 1));
+            fail("Torn write was acknowledged");
+        } catch (IOException e) {
+            //Expected
+        }
+
+        log.write("app3", json("app3", 1));
+        copySegments(failing, restarted);
+
+        replayed.clear();
+        open(restarted);
+
+        assertEquals(new HashSet<>(Arrays.asList("app1", "app3")), replayed.keySet());
+    }
+
+    @Test
+    public void compactionKeepsRecordsNotCachedYet() throws IOException {
+
+        Path directory = folder.newFolder("apps").toPath();
+        Path restarted = folder.newFolder("restarted").toPath();
+
+        MutationLog log = open(directory);
+
+        byte[] cached = json("app1", 1);
+        log.write("app1", cached);
+        log.cached("app1", cached);
+
+        //Persisted, but the DAO did not cache it yet
+        log.write("app2", json("app2", 1));
+
+        log.close();
+
+        assertTrue(Files.exists(directory.resolve("app1.json")));
+        assertFalse("A file must not be newer than its cached record", Files.exists(directory.resolve("app2.json")));
+
+        copySegments(directory, restarted);
+
+        replayed.clear();
+        open(restarted);
+
+        assertEquals(Collections.singleton("app2"), replayed.keySet());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.fdc3.appd.poc.model.ReplicationStats;
+import org.fdc3.appd.poc.util.AwsS3Client;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalescing, retries and locking of {@link S3WriteBehind}, against an in-memory S3 client
+ */
+public class S3WriteBehindTest {
+
+    /**
+     * S3 client recording the puts, which can be held back or failed
+     */
+    private static class RecordingClient extends AwsS3Client {
+
+        private final List<String> puts = Collections.synchronizedList(new ArrayList<>());
+        private volatile CountDownLatch release = new CountDownLatch(0);
+        private volatile Predicate<String> fail = put -> false;
+
+        @Override
+        public boolean putObject(String destBucket, String key, InputStream inputStream, ObjectMetadata metaData) {
+
+            String put = key + "=" + read(inputStream);
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            if (fail.test(put))
+                return false;
+
+            puts.add(put);
+            return true;
+        }
+
+        private static String read(InputStream inputStream) {
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+
+            try {
+                while ((read = inputStream.read(buffer)) != -1)
+                    data.write(buffer, 0, read);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return new String(data.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+
+    private final RecordingClient client = new RecordingClient();
+    private S3WriteBehind writeBehind;
+
+
+    @After
+    public void close() {
+        client.release.countDown();
+        if (writeBehind != null)
+            writeBehind.close();
+    }
+
+    private static byte[] data(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void awaitUploads(int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+        while (writeBehind.getStats().getUploaded() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(count, writeBehind.getStats().getUploaded());
+    }
+
+
+    @Test(timeout = 10000)
+    public void putsQueuedDuringAnUploadAreCoalesced() throws Exception {
+
+        client.release = new CountDownLatch(1);
+        writeBehind = new S3WriteBehind("test", client, "bucket");
+
+        writeBehind.submit("app1.json", data("v1"));
+
+        //v1 is being uploaded, v2 is queued, then replaced by v3
+        while (writeBehind.getStats().getInFlightKeys() == 0)
+            Thread.sleep(10);
+
+        writeBehind.submit("app1.json", data("v2"));
+        writeBehind.submit("app1.json", data("v3"));
+
+        client.release.countDown();
+        awaitUploads(2);
+
+        ReplicationStats stats = writeBehind.getStats();
+        assertEquals(Arrays.asList("app1.json=v1", "app1.json=v3"), client.puts);
+        assertEquals(1, stats.getCoalesced());
+        assertEquals(0, stats.getQueuedBytes());
+        assertFalse(writeBehind.isPending("app1.json"));
+    }
+
+    @Test(timeout = 10000)
+    public void callersDoNotWaitForTheUploadsInFlight() throws Exception {
+
+        client.release = new CountDownLatch(1);
+        writeBehind = new S3WriteBehind("test", client, "bucket");
+
+        writeBehind.submit("app1.json", data("v1"));
+
+        while (writeBehind.getStats().getInFlightKeys() == 0)
+            Thread.sleep(10);
+
+        //The upload of app1 is held back, the queue must stay usable meanwhile
+        CompletableFuture<Boolean> pending = CompletableFuture.supplyAsync(() -> {
+            writeBehind.submit("app2.json", data("v1"));
+            writeBehind.getStats();
+            return writeBehind.isPending("app1.json");
+        });
+
+        assertTrue(pending.get(5, TimeUnit.SECONDS));
+
+        client.release.countDown();
+        awaitUploads(2);
+    }
+
+    @Test(timeout = 10000)
+    public void failedPutsAreRetried() throws Exception {
+
+        AtomicInteger attempts = new AtomicInteger();
+        client.fail = put -> put.startsWith("app1.json") && attempts.incrementAndGet() == 1;
+        writeBehind = new S3WriteBehind("test", client, "bucket");
+
+        writeBehind.submit("app1.json", data("v1"));
+        writeBehind.submit("app2.json", data("v1"));
+
+        awaitUploads(2);
+
+        ReplicationStats stats = writeBehind.getStats();
+        assertEquals(1, stats.getFailures());
+        assertTrue(client.puts.contains("app1.json=v1"));
+        assertTrue(client.puts.contains("app2.json=v1"));
+        assertEquals(0, stats.getQueuedKeys() + stats.getInFlightKeys());
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedPutIsRetriedWithTheVersionQueuedSince() throws Exception {
+
+        client.release = new CountDownLatch(1);
+        client.fail = put -> put.equals("app1.json=v1");
+        writeBehind = new S3WriteBehind("test", client, "bucket");
+
+        writeBehind.submit("app1.json", data("v1"));
+
+        while (writeBehind.getStats().getInFlightKeys() == 0)
+            Thread.sleep(10);
+
+        writeBehind.submit("app1.json", data("v2"));
+        client.release.countDown();
+
+        awaitUploads(1);
+
+        assertEquals(Collections.singletonList("app1.json=v2"), client.puts);
+        assertEquals(0, writeBehind.getStats().getQueuedBytes());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.dao.impl;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.fdc3.appd.poc.dao.impl.SnapshotFile.FileStamp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reading {@link SnapshotFile}s, and the fallback of {@link LocalJsonStore} to the json files when one is corrupt
+ */
+public class SnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //Json by key, of the records loaded
+    private final Map<String, String> loaded = new LinkedHashMap<>();
+
+    private final LocalJsonStore.RecordHandler handler = new LocalJsonStore.RecordHandler() {
+        @Override
+        public Collection<String> load(Reader json, Predicate<String> accept) {
+
+            String record = new BufferedReader(json).lines().collect(Collectors.joining());
+            String key = new JsonParser().parse(record).getAsJsonObject().get("id").getAsString();
+
+            if (!accept.test(key))
+                return Collections.emptyList();
+
+            loaded.put(key, record);
+            return Collections.singletonList(key);
+        }
+
+        @Override
+        public void remove(String key) {
+            loaded.remove(key);
+        }
+    };
+
+
+    @Before
+    public void configure() {
+        System.setProperty("snapshot.interval", "0");
+    }
+
+    @After
+    public void clear() {
+        System.clearProperty("snapshot.interval");
+    }
+
+    private static byte[] json(String id, int version) {
+
+        JsonObject record = new JsonObject();
+        record.addProperty("id", id);
+        record.addProperty("version", version);
+
+        return record.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path write(Map<String, byte[]> records) throws IOException {
+
+        Path path = folder.getRoot().toPath().resolve("test.snapshot");
+        Map<String, FileStamp> manifest = new LinkedHashMap<>();
+
+        for (String key : records.keySet())
+            manifest.put(key + ".json", new FileStamp(Collections.singleton(key), 1000, 10));
+
+        SnapshotFile.write(path, manifest, records.entrySet().iterator());
+        return path;
+    }
+
+    private static void assertUnreadable(Path path) {
+        try {
+            SnapshotFile.read(path);
+            fail("Corrupt snapshot was read");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+
+    @Test
+    public void snapshotIsReadBack() throws IOException {
+
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        records.put("user1", json("user1", 1));
+        records.put("user2", json("user2", 1));
+
+        SnapshotFile snapshot = SnapshotFile.read(write(records));
+
+        assertEquals(records.keySet(), snapshot.getRecords().keySet());
+        assertArrayEquals(records.get("user2"), snapshot.getRecords().get("user2"));
+        assertEquals(Collections.singletonList("user1"), snapshot.getManifest().get("user1.json").getKeys());
+        assertNull(SnapshotFile.read(folder.getRoot().toPath().resolve("missing.snapshot")));
+    }
+
+    @Test
+    public void everyFlippedByteIsDetected() throws IOException {
+
+        Path path = write(Collections.singletonMap("user1", json("user1", 1)));
+        byte[] bytes = Files.readAllBytes(path);
+
+        for (int i = 0; i < bytes.length; i++) {
+
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x55;
+            Files.write(path, corrupt);
+
+            assertUnreadable(path);
+        }
+    }
+
+    @Test
+    public void corruptSizesAreRejectedBeforeAllocating() throws IOException {
+
+        Path path = write(Collections.singletonMap("user1", json("user1", 1)));
+        byte[] bytes = Files.readAllBytes(path);
+
+        //Magic, format version and creation time, then the manifest size
+        int manifestSize = 8 + 4 + 8;
+
+        for (int size : new int[]{-1, Integer.MAX_VALUE, 1 << 30}) {
+
+            byte[] corrupt = bytes.clone();
+            ByteBuffer.wrap(corrupt).putInt(manifestSize, size);
+            Files.write(path, corrupt);
+
+            assertUnreadable(path);
+        }
+
+        //The json length of the record
+        String key = "user1";
+        int jsonLength = bytes.length - 8 - 1 - json(key, 1).length - 4;
+
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(jsonLength, Integer.MAX_VALUE);
+        Files.write(path, corrupt);
+
+        assertUnreadable(path);
+    }
+
+    @Test
+    public void corruptSnapshotFallsBackToTheJsonFiles() throws IOException {
+
+        Path directory = folder.newFolder("users").toPath();
+        Files.write(directory.resolve("user1.json"), json("user1", 2));
+        Files.write(directory.resolve("user2.json"), json("user2", 1));
+
+        //Snapshot of an older user1, whose manifest size is corrupt
+        Map<String, FileStamp> manifest = Collections.singletonMap("user1.json", new FileStamp(Collections.singleton("user1"), 1000, 10));
+        Path snapshot = directory.resolve("appd.snapshot");
+        SnapshotFile.write(snapshot, manifest, Collections.singletonMap("user1", json("user1", 1)).entrySet().iterator());
+
+        byte[] bytes = Files.readAllBytes(snapshot);
+        ByteBuffer.wrap(bytes).putInt(8 + 4 + 8, Integer.MAX_VALUE / 2);
+        Files.write(snapshot, bytes);
+
+        assertTrue(new LocalJsonStore("users", directory.toString()).load(2, handler));
+
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user2")), loaded.keySet());
+        assertTrue(loaded.get("user1").contains("\"version\":2"));
+    }
+}
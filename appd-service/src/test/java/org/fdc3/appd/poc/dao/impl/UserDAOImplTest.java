@@ -0,0 +1,96 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+package org.fdc3.appd.poc.dao.impl;
+
+import org.fdc3.appd.poc.exceptions.UserNotFoundException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Users of a bundle file loaded by {@link UserDAOImpl} on the json backend, without write-ahead log, snapshot or
+ * directory watcher
+ */
+public class UserDAOImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+
+    @Before
+    public void open() throws IOException {
+
+        directory = folder.newFolder("users");
+
+        System.setProperty("json.users.dir", directory.getPath());
+        System.setProperty("wal.enabled", "false");
+        System.setProperty("snapshot.enabled", "false");
+        System.setProperty("json.watch.enabled", "false");
+    }
+
+    @After
+    public void close() {
+        System.clearProperty("json.users.dir");
+        System.clearProperty("wal.enabled");
+        System.clearProperty("snapshot.enabled");
+        System.clearProperty("json.watch.enabled");
+    }
+
+    private void writeBundle(String firstname) throws IOException {
+        Files.write(directory.toPath().resolve("team.json"), ("["
+                + "{\"id\":\"u1\",\"email\":\"ann@example.com\",\"firstname\":\"" + firstname + "\",\"lastname\":\"Lee\"},"
+                + "{\"id\":\"u2\",\"email\":\"bob@example.com\",\"firstname\":\"Bob\",\"lastname\":\"Lee\"}"
+                + "]").getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    @Test
+    public void bundleUsersAreReadFromTheirBundle() throws IOException, UserNotFoundException {
+
+        writeBundle("Ann");
+        UserDAOImpl userDAO = new UserDAOImpl();
+
+        assertEquals("Ann", userDAO.getUser("u1").getFirstname());
+        assertEquals("u2", userDAO.getUserIdByEmail("BOB@example.com"));
+        assertFalse("Bundle user was written to its own json file", new File(directory, "u1.json").exists());
+        assertFalse("Bundle user was written to its own json file", new File(directory, "u2.json").exists());
+    }
+
+    @Test
+    public void bundleEditsApplyAfterARestart() throws IOException, UserNotFoundException {
+
+        writeBundle("Ann");
+        assertEquals("Ann", new UserDAOImpl().getUser("u1").getFirstname());
+
+        writeBundle("Anne");
+        assertEquals("Anne", new UserDAOImpl().getUser("u1").getFirstname());
+    }
+}
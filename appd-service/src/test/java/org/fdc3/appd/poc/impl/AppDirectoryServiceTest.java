@@ -0,0 +1,147 @@
+/*
+ *
+ *
+ *  Copyright (C) 2018 IHS Markit.
+ *  All Rights Reserved
+ *
+ *
+ *  NOTICE:  All information contained herein is, and remains
+ *  the property of IHS Markit and its suppliers,
+ *  if any.  The intellectual and technical concepts contained
+ *  herein are proprietary to IHS Markit and its suppliers
+ *  and may be covered by U.S. and Foreign Patents, patents in
+ *  process, and are protected by trade secret or copyright law.
+ *  Dissemination of this information or reproduction of this material
+ *  is strictly forbidden unless prior written permission is obtained
+ *  from IHS Markit.
+ */
+
+
+
+package org.fdc3.appd.poc.impl;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.fdc3.appd.poc.filter.IfMatchFilter;
+import org.fdc3.appd.poc.model.UserSecurity;
+import org.fdc3.appd.server.model.Application;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * If-Match handling of application upserts through the V1 API
+ */
+public class AppDirectoryServiceTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static AppDirectoryService service;
+
+    private final IfMatchFilter ifMatchFilter = new IfMatchFilter();
+
+
+    @BeforeClass
+    public static void open() throws Exception {
+
+        System.setProperty("json.apps.dir", folder.newFolder("apps").getPath());
+        System.setProperty("wal.enabled", "false");
+        System.setProperty("snapshot.enabled", "false");
+        System.setProperty("json.watch.enabled", "false");
+
+        service = new AppDirectoryService();
+    }
+
+    @After
+    public void clear() {
+        ifMatchFilter.filter(request(null), null);
+    }
+
+    private static ContainerRequestContext request(String ifMatch) {
+        return (ContainerRequestContext) Proxy.newProxyInstance(AppDirectoryServiceTest.class.getClassLoader(), new Class<?>[]{ContainerRequestContext.class},
+                (proxy, method, args) -> HttpHeaders.IF_MATCH.equals(args == null ? null : args[0]) ? ifMatch : null);
+    }
+
+    private static SecurityContext publisher(String company) {
+
+        UserSecurity user = new UserSecurity();
+        user.setEmail("admin@" + company.toLowerCase() + ".com");
+        user.setCompany(company);
+
+        return new SecurityContext() {
+            @Override
+            public Principal getUserPrincipal() {
+                return user;
+            }
+
+            @Override
+            public boolean isUserInRole(String role) {
+                return true;
+            }
+
+            @Override
+            public boolean isSecure() {
+                return true;
+            }
+
+            @Override
+            public String getAuthenticationScheme() {
+                return "Bearer";
+            }
+        };
+    }
+
+    private Response post(String appId, String version, String ifMatch) throws Exception {
+
+        Application application = new Application();
+        application.setAppId(appId);
+        application.setName(appId);
+        application.setManifest("https://example.com/" + appId);
+        application.setPublisher("Acme");
+        application.setVersion(version);
+
+        ifMatchFilter.filter(request(ifMatch));
+
+        return service.v1AppsPost(application, publisher("Acme"));
+    }
+
+    private static long revisionOf(Response response) {
+        JsonObject jo = new JsonParser().parse(response.getEntity().toString()).getAsJsonObject();
+        return jo.get("revision").getAsLong();
+    }
+
+
+    @Test
+    public void ifMatchOfTheCurrentRevisionIsApplied() throws Exception {
+
+        Response created = post("app1", "1", null);
+        assertEquals(200, created.getStatus());
+
+        Response updated = post("app1", "2", "\"" + revisionOf(created) + "\"");
+        assertEquals(200, updated.getStatus());
+        assertEquals(revisionOf(created) + 1, revisionOf(updated));
+    }
+
+    @Test
+    public void ifMatchOfAnotherRevisionIsPreconditionFailed() throws Exception {
+
+        Response created = post("app2", "1", null);
+        post("app2", "2", null);
+
+        assertEquals(412, post("app2", "3", Long.toString(revisionOf(created))).getStatus());
+        assertEquals(412, post("app2", "3", "\"0123456789abcdef\"").getStatus());
+        assertEquals(412, post("app3", "1", "*").getStatus());
+    }
+}